@@ -0,0 +1,31 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+
+// Activity whose bindService connects straight to an in-process
+// service, on the calling thread.
+class benchactivity extends Activity
+{
+    final IBinder mService;
+
+    benchactivity(IBinder service)
+    {
+        mService = service;
+    }
+
+    @Override public boolean bindService(Intent service,
+                                         ServiceConnection conn, int flags)
+    {
+        conn.onServiceConnected
+            (new ComponentName("com.android.vending", "InAppBillingService"),
+             mService);
+        return true;
+    }
+}
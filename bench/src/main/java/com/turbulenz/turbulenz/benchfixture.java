@@ -0,0 +1,123 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import android.os.IBinder;
+
+// Wiring shared by the benchmarks: a googlepayment agent connected to
+// an in-process service, with callbacks delivered synchronously (on
+// the posting thread) to a counting receiver in place of native code.
+class benchfixture
+{
+    static final int PURCHASE_REQUEST_CODE = 1001;
+
+    static final payment.CallbackHandler SYNCHRONOUS_HANDLER =
+        new payment.CallbackHandler() {
+            @Override public void post(Runnable r) {
+                r.run();
+            }
+        };
+
+    // Counts what would have been passed to native code
+    static class countingcallbacks implements payment.NativeCallbacks
+    {
+        long ready;
+        long purchases;
+        long purchaseFailures;
+        long products;
+        long consumes;
+        long purchaseItems;
+        long purchaseQueries;
+        long errors;
+
+        @Override public void onReadyStatus(long context, boolean r,
+                                            String agentInfo) {
+            ++ready;
+        }
+        @Override public void onPurchaseComplete
+            (long context, String sku, String details, String token,
+             String devPayload, String sig) {
+            ++purchases;
+        }
+        @Override public void onPurchaseFailed(long context, String msg) {
+            ++purchaseFailures;
+        }
+        @Override public void productQueryResponse
+            (long context, String sku, String title, String description,
+             String price) {
+            ++products;
+        }
+        @Override public void productsQueryResponse
+            (long context, String[] skus, String[] titles,
+             String[] descriptions, String[] prices) {
+            products += skus.length;
+        }
+        @Override public void consumeResponse
+            (long context, String token, boolean success, String msg) {
+            ++consumes;
+        }
+        @Override public void purchaseQueryResponse
+            (long context, String sku, String details, String token,
+             String devPayload, String sig) {
+            if (null == sku) {
+                ++errors;
+            } else if (0 == sku.length()) {
+                ++purchaseQueries;
+            } else {
+                ++purchaseItems;
+            }
+        }
+        @Override public void purchaseQueryPage
+            (long context, String[] skus, String[] details, String[] tokens,
+             String[] devPayloads, String[] sigs) {
+            purchaseItems += skus.length;
+        }
+        @Override public void purchaseDelta
+            (long context, String error, String[] addedSkus,
+             String[] addedDetails, String[] addedTokens,
+             String[] addedDevPayloads, String[] addedSigs,
+             String[] removedSkus, String[] removedTokens) {
+            if (null != error) {
+                ++errors;
+            } else {
+                ++purchaseQueries;
+            }
+        }
+    }
+
+    // Create a connected agent and make it the current one.  The
+    // catalog snapshot is deliberately not opened, so that no file
+    // I/O happens in the background while measuring.
+    static googlepayment connect(final IBinder service,
+                                 final countingcallbacks callbacks,
+                                 final boolean pooledDispatch)
+    {
+        payment.enableLogging(false);
+        payment.enablePooledDispatch(pooledDispatch);
+        payment.setNativeCallbacks(callbacks);
+        // Measure the code paths, not the limiter
+        for (int op = 0 ; op < ratelimiter.NUM_OPS ; ++op) {
+            payment.setServiceCallRate(op, 0, 1, 0);
+        }
+
+        benchactivity activity = new benchactivity(service);
+        payment.sActivity = activity;
+        payment.sPurchaseRequestCode = PURCHASE_REQUEST_CODE;
+        payment.sCallbackHandler = SYNCHRONOUS_HANDLER;
+
+        googlepayment agent =
+            new googlepayment(activity, PURCHASE_REQUEST_CODE);
+        if (!agent.isReady()) {
+            throw new IllegalStateException("agent did not become ready");
+        }
+        payment.sBillingAgent = agent;
+        return agent;
+    }
+
+    static void disconnect()
+    {
+        payment.shutdown();
+        payment.setNativeCallbacks(null);
+    }
+}
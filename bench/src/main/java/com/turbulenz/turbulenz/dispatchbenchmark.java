@@ -0,0 +1,80 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// BillingAgent.send* through to the native receiver, with the
+// CallbackHandler running each post immediately.  Compare
+// pooledDispatch=true/false with -prof gc for allocation per call.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class dispatchbenchmark
+{
+    @Param({ "false", "true" })
+    boolean pooledDispatch;
+
+    googlepayment                         mAgent;
+    benchfixture.countingcallbacks        mCallbacks;
+
+    final String[] mSkus = new String[] { "a", "b", "c" };
+    final String[] mData = new String[] { "{}", "{}", "{}" };
+    final String[] mTokens = new String[] { "t0", "t1", "t2" };
+    final String[] mPayloads = new String[] { "", "", "" };
+    final String[] mSigs = new String[] { "s0", "s1", "s2" };
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        mCallbacks = new benchfixture.countingcallbacks();
+        mAgent = benchfixture.connect(new fakebillingservice(1, 0, 100),
+                                      mCallbacks, pooledDispatch);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        benchfixture.disconnect();
+    }
+
+    @Benchmark
+    public long purchasePage()
+    {
+        mAgent.sendPurchaseInfoPage(1, mSkus, mData, mTokens, mPayloads,
+                                    mSigs);
+        return mCallbacks.purchaseItems;
+    }
+
+    @Benchmark
+    public long productInfo()
+    {
+        mAgent.postProductInfo(1, "a", "title", "description", "$0.99");
+        return mCallbacks.products;
+    }
+
+    @Benchmark
+    public long consumeResult()
+    {
+        mAgent.sendConsumeResult(1, "t0", true, null);
+        return mCallbacks.consumes;
+    }
+}
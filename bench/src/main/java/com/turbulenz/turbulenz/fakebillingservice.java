@@ -0,0 +1,155 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.app.PendingIntent;
+import android.os.Bundle;
+import com.android.vending.billing.IInAppBillingService;
+
+// In-process IInAppBillingService with a fixed catalog and set of
+// owned items.  Responses are built fresh on each call (as unparceling
+// a binder reply would), from strings generated up front, so the cost
+// measured is that of the billing layer rather than of the fake.
+class fakebillingservice extends IInAppBillingService.Stub
+{
+    final String[]                mSkus;
+    final HashMap<String, String> mDetails = new HashMap<String, String>();
+
+    final int                     mPageSize;
+    final ArrayList<String>       mOwnedSkus = new ArrayList<String>();
+    final ArrayList<String>       mOwnedData = new ArrayList<String>();
+    final ArrayList<String>       mOwnedSigs = new ArrayList<String>();
+
+    fakebillingservice(int catalogSize, int ownedCount, int pageSize)
+    {
+        mPageSize = pageSize;
+
+        mSkus = new String[catalogSize];
+        for (int i = 0 ; i < catalogSize ; ++i) {
+            final String sku = skuName(i);
+            mSkus[i] = sku;
+            mDetails.put(sku, skuDetailsJSON(sku, i));
+        }
+
+        for (int i = 0 ; i < ownedCount ; ++i) {
+            final String sku = skuName(i % Math.max(1, catalogSize));
+            mOwnedSkus.add(sku);
+            mOwnedData.add(purchaseJSON(sku, i));
+            mOwnedSigs.add("c2lnbmF0dXJlLWZvci1wdXJjaGFzZS0" + i + "==");
+        }
+    }
+
+    static String skuName(int i)
+    {
+        return "com.turbulenz.bench.sku_" + i;
+    }
+
+    static String skuDetailsJSON(String sku, int i)
+    {
+        return "{\"productId\":\"" + sku + "\",\"type\":\"inapp\"," +
+            "\"price\":\"$" + (i % 100) + ".99\"," +
+            "\"price_amount_micros\":" + ((i % 100) * 1000000 + 990000) + "," +
+            "\"price_currency_code\":\"USD\"," +
+            "\"title\":\"Item " + i + " (Bench)\"," +
+            "\"description\":\"Description of item " + i +
+            ", with a \\\"quoted\\\" word\"}";
+    }
+
+    static String purchaseJSON(String sku, int i)
+    {
+        return "{\"orderId\":\"12999763169054705758." + (1371079406387615L + i) +
+            "\",\"packageName\":\"com.turbulenz.bench\"," +
+            "\"productId\":\"" + sku + "\"," +
+            "\"purchaseTime\":" + (1345678900000L + i) + "," +
+            "\"purchaseState\":0," +
+            "\"developerPayload\":\"payload-" + i + "\"," +
+            "\"purchaseToken\":\"opaque-token-up-to-1000-characters-" + i +
+            "\"}";
+    }
+
+    static Bundle response(int code)
+    {
+        Bundle b = new Bundle();
+        b.putInt(googlepayment.RESPONSE_CODE, code);
+        return b;
+    }
+
+    // ------------------------------------------------------------------
+    // IInAppBillingService
+    // ------------------------------------------------------------------
+
+    @Override public int isBillingSupported(int apiVersion, String packageName,
+                                            String type)
+    {
+        return googlepayment.BILLING_RESPONSE_RESULT_OK;
+    }
+
+    @Override public Bundle getSkuDetails(int apiVersion, String packageName,
+                                          String type, Bundle skusBundle)
+    {
+        ArrayList<String> skus = skusBundle.getStringArrayList("ITEM_ID_LIST");
+        if (null == skus ||
+            skus.size() > googlepayment.MAX_SKUS_PER_QUERY) {
+            return response
+                (googlepayment.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR);
+        }
+
+        ArrayList<String> details = new ArrayList<String>(skus.size());
+        for (String sku : skus) {
+            String d = mDetails.get(sku);
+            if (null != d) {
+                details.add(d);
+            }
+        }
+
+        Bundle b = response(googlepayment.BILLING_RESPONSE_RESULT_OK);
+        b.putStringArrayList(googlepayment.RESPONSE_GET_SKU_DETAILS_LIST,
+                             details);
+        return b;
+    }
+
+    @Override public Bundle getBuyIntent(int apiVersion, String packageName,
+                                         String sku, String type,
+                                         String developerPayload)
+    {
+        Bundle b = response(googlepayment.BILLING_RESPONSE_RESULT_OK);
+        b.putParcelable(googlepayment.RESPONSE_BUY_INTENT,
+                        new PendingIntent());
+        return b;
+    }
+
+    @Override public Bundle getPurchases(int apiVersion, String packageName,
+                                         String type, String continuationToken)
+    {
+        final int total = mOwnedSkus.size();
+        final int start = (null == continuationToken)?
+            (0):(Integer.parseInt(continuationToken));
+        final int end = Math.min(total, start + mPageSize);
+
+        Bundle b = response(googlepayment.BILLING_RESPONSE_RESULT_OK);
+        b.putStringArrayList(googlepayment.RESPONSE_INAPP_ITEM_LIST,
+                             new ArrayList<String>
+                             (mOwnedSkus.subList(start, end)));
+        b.putStringArrayList(googlepayment.RESPONSE_INAPP_PURCHASE_DATA_LIST,
+                             new ArrayList<String>
+                             (mOwnedData.subList(start, end)));
+        b.putStringArrayList(googlepayment.RESPONSE_INAPP_SIGNATURE_LIST,
+                             new ArrayList<String>
+                             (mOwnedSigs.subList(start, end)));
+        if (end < total) {
+            b.putString(googlepayment.INAPP_CONTINUATION_TOKEN,
+                        Integer.toString(end));
+        }
+        return b;
+    }
+
+    @Override public int consumePurchase(int apiVersion, String packageName,
+                                         String purchaseToken)
+    {
+        return googlepayment.BILLING_RESPONSE_RESULT_OK;
+    }
+}
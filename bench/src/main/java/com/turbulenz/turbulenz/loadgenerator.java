@@ -0,0 +1,410 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.app.Activity;
+
+// Drives the payment facade with many concurrent requests against a
+// simulatorpayment agent, and reports per-operation latency (request
+// to callback), failures and the billingmetrics snapshot.
+//
+//   java -cp target/benchmarks.jar com.turbulenz.turbulenz.loadgenerator \
+//       threads=64 requests=20000 outstanding=2000 fail6=0.01
+//
+// See usage() for all options.
+public class loadgenerator
+{
+    static final int OP_PRODUCT = 0;
+    static final int OP_PRODUCTS = 1;
+    static final int OP_PURCHASES = 2;
+    static final int OP_CONSUME = 3;
+    static final int OP_PURCHASE = 4;
+    static final int NUM_OPS = 5;
+
+    static final String[] OP_NAMES = {
+        "queryProduct", "queryProducts", "queryPurchases", "consumeAsync",
+        "purchase",
+    };
+
+    static void usage()
+    {
+        System.err.println
+            ("options (name=value):\n" +
+             "  threads=64        generator threads\n" +
+             "  requests=10000    total requests\n" +
+             "  outstanding=1000  max requests awaiting a callback\n" +
+             "  mix=40,20,30,10,0 weights for queryProduct, queryProducts,\n" +
+             "                    queryPurchases, consumeAsync, purchase\n" +
+             "  batch=20          SKUs per queryProducts\n" +
+             "  catalog=500 owned=200 pageSize=100\n" +
+             "  latencyScale=1.0  multiplies all simulated latencies\n" +
+             "  fail<code>=rate   e.g. fail6=0.01 (BILLING_RESPONSE_RESULT_ERROR)\n" +
+             "  remote=0          RemoteException rate\n" +
+             "  workers=2 queue=32\n" +
+             "  cacheTTL=0        product cache TTL (ms); 0 sends every query\n" +
+             "  callRate=0        calls/s per service method (0: no limit)\n" +
+             "  callBurst=1 callWait=1000\n" +
+             "  pooled=true       pooled callback dispatch\n" +
+             "  timeout=120       seconds to wait for callbacks");
+    }
+
+    // ------------------------------------------------------------------
+    // Results
+    // ------------------------------------------------------------------
+
+    static class request
+    {
+        final int  op;
+        final long startNS;
+
+        request(int op, long startNS)
+        {
+            this.op = op;
+            this.startNS = startNS;
+        }
+    }
+
+    static final ConcurrentHashMap<Long, request> sPending =
+        new ConcurrentHashMap<Long, request>();
+    static Semaphore                sOutstanding;
+    static CountDownLatch           sDone;
+
+    static final AtomicLongArray    sSucceeded = new AtomicLongArray(NUM_OPS);
+    static final AtomicLongArray    sFailed = new AtomicLongArray(NUM_OPS);
+    static final AtomicLongArray    sRejected = new AtomicLongArray(NUM_OPS);
+    static long[][]                 sLatencies;
+    static final AtomicInteger[]    sLatencyCounts = new AtomicInteger[NUM_OPS];
+
+    static void complete(final long context, final boolean success)
+    {
+        final request req = sPending.remove(context);
+        if (null == req) {
+            return;
+        }
+
+        final long micros = (System.nanoTime() - req.startNS) / 1000;
+        final int idx = sLatencyCounts[req.op].getAndIncrement();
+        if (idx < sLatencies[req.op].length) {
+            sLatencies[req.op][idx] = micros;
+        }
+        if (success) {
+            sSucceeded.incrementAndGet(req.op);
+        } else {
+            sFailed.incrementAndGet(req.op);
+        }
+        sOutstanding.release();
+        sDone.countDown();
+    }
+
+    static final payment.NativeCallbacks RECORDER =
+        new payment.NativeCallbacks() {
+            @Override public void onReadyStatus(long context, boolean ready,
+                                                String agentInfo) {
+            }
+            @Override public void onPurchaseComplete
+                (long context, String sku, String details, String token,
+                 String devPayload, String sig) {
+                complete(context, true);
+            }
+            @Override public void onPurchaseFailed(long context, String msg) {
+                complete(context, false);
+            }
+            @Override public void productQueryResponse
+                (long context, String sku, String title, String description,
+                 String price) {
+                complete(context, null != title);
+            }
+            @Override public void productsQueryResponse
+                (long context, String[] skus, String[] titles,
+                 String[] descriptions, String[] prices) {
+                complete(context, null != titles);
+            }
+            @Override public void consumeResponse
+                (long context, String token, boolean success, String msg) {
+                complete(context, success);
+            }
+            @Override public void purchaseQueryResponse
+                (long context, String sku, String details, String token,
+                 String devPayload, String sig) {
+                if (null == sku) {
+                    complete(context, false);
+                } else if (0 == sku.length()) {
+                    complete(context, true);
+                }
+            }
+            @Override public void purchaseQueryPage
+                (long context, String[] skus, String[] details,
+                 String[] tokens, String[] devPayloads, String[] sigs) {
+            }
+            @Override public void purchaseDelta
+                (long context, String error, String[] addedSkus,
+                 String[] addedDetails, String[] addedTokens,
+                 String[] addedDevPayloads, String[] addedSigs,
+                 String[] removedSkus, String[] removedTokens) {
+                complete(context, null == error);
+            }
+        };
+
+    // ------------------------------------------------------------------
+
+    static HashMap<String, String> parseArgs(final String[] args)
+    {
+        HashMap<String, String> opts = new HashMap<String, String>();
+        for (String a : args) {
+            final int eq = a.indexOf('=');
+            if (eq <= 0) {
+                usage();
+                System.exit(1);
+            }
+            opts.put(a.substring(0, eq), a.substring(eq + 1));
+        }
+        return opts;
+    }
+
+    static int intOpt(HashMap<String, String> o, String name, int def)
+    {
+        return o.containsKey(name)?(Integer.parseInt(o.get(name))):(def);
+    }
+
+    static double doubleOpt(HashMap<String, String> o, String name, double def)
+    {
+        return o.containsKey(name)?(Double.parseDouble(o.get(name))):(def);
+    }
+
+    public static void main(final String[] args) throws Exception
+    {
+        final HashMap<String, String> o = parseArgs(args);
+        final int threads = intOpt(o, "threads", 64);
+        final int requests = intOpt(o, "requests", 10000);
+        final int batch = intOpt(o, "batch", 20);
+        final double scale = doubleOpt(o, "latencyScale", 1.0);
+
+        final int[] mix = new int[NUM_OPS];
+        final String[] mixStr =
+            (o.containsKey("mix")?(o.get("mix")):("40,20,30,10,0")).split(",");
+        int mixTotal = 0;
+        for (int i = 0 ; i < NUM_OPS && i < mixStr.length ; ++i) {
+            mix[i] = Integer.parseInt(mixStr[i].trim());
+            mixTotal += mix[i];
+        }
+
+        // Simulated service
+
+        simulatedbillingservice.Config config =
+            new simulatedbillingservice.Config();
+        config.catalogSize = intOpt(o, "catalog", 500);
+        config.ownedCount = intOpt(o, "owned", 200);
+        config.pageSize = intOpt(o, "pageSize", 100);
+        config.remoteExceptionRate = doubleOpt(o, "remote", 0);
+        for (int code = 1 ; code < config.failureRates.length ; ++code) {
+            config.setFailureRate(code, doubleOpt(o, "fail" + code, 0));
+        }
+        config.isBillingSupportedLatency =
+            simulatedbillingservice.Latency.constant(5 * scale);
+        config.getSkuDetailsLatency =
+            simulatedbillingservice.Latency.logNormal(60 * scale, 0.5,
+                                                      2000 * scale);
+        config.getPurchasesLatency =
+            simulatedbillingservice.Latency.logNormal(30 * scale, 0.5,
+                                                      2000 * scale);
+        config.getBuyIntentLatency =
+            simulatedbillingservice.Latency.logNormal(20 * scale, 0.5,
+                                                      1000 * scale);
+        config.consumePurchaseLatency =
+            simulatedbillingservice.Latency.logNormal(150 * scale, 0.5,
+                                                      3000 * scale);
+        config.purchaseFlowLatency =
+            simulatedbillingservice.Latency.uniform(500 * scale, 3000 * scale);
+        final simulatedbillingservice service =
+            new simulatedbillingservice(config);
+        final String[] skus = service.getSkus();
+
+        // Facade, with callbacks on their own thread (as on a device,
+        // where they run on the game thread)
+
+        final ExecutorService callbackThread =
+            Executors.newSingleThreadExecutor();
+        payment.CallbackHandler handler = new payment.CallbackHandler() {
+                @Override public void post(Runnable r) {
+                    callbackThread.execute(r);
+                }
+            };
+
+        payment.setNativeCallbacks(RECORDER);
+        payment.enablePooledDispatch
+            (!"false".equals(o.get("pooled")));
+        payment.setWorkerLimits(intOpt(o, "workers", 2),
+                                intOpt(o, "queue", 32), 2000);
+        payment.configureProductCache(intOpt(o, "cacheTTL", 0), 0, 1000);
+        for (int op = 0 ; op < ratelimiter.NUM_OPS ; ++op) {
+            payment.setServiceCallRate(op, doubleOpt(o, "callRate", 0),
+                                       doubleOpt(o, "callBurst", 1),
+                                       intOpt(o, "callWait", 1000));
+        }
+
+        final Activity activity = new Activity();
+        final simulatorpayment agent =
+            new simulatorpayment(activity, 1001, service);
+        payment.initialize(activity, 1001, handler, agent);
+        if (!agent.isReady()) {
+            System.err.println("agent not ready (isBillingSupported failed?)");
+            System.exit(1);
+        }
+
+        // Generate
+
+        sOutstanding = new Semaphore(intOpt(o, "outstanding", 1000));
+        sDone = new CountDownLatch(requests);
+        sLatencies = new long[NUM_OPS][requests];
+        for (int i = 0 ; i < NUM_OPS ; ++i) {
+            sLatencyCounts[i] = new AtomicInteger(0);
+        }
+
+        final AtomicLong nextContext = new AtomicLong(1);
+        final AtomicInteger remaining = new AtomicInteger(requests);
+        final int totalWeight = mixTotal;
+        final long startNS = System.nanoTime();
+
+        Thread[] generators = new Thread[threads];
+        for (int t = 0 ; t < threads ; ++t) {
+            final Random random = new Random(t);
+            generators[t] = new Thread(new Runnable() {
+                    @Override public void run() {
+                        while (remaining.getAndDecrement() > 0) {
+                            sOutstanding.acquireUninterruptibly();
+                            issue(random, totalWeight, mix, skus, batch,
+                                  config.ownedCount,
+                                  nextContext.getAndIncrement());
+                        }
+                    }
+                }, "loadgenerator-" + t);
+            generators[t].start();
+        }
+        for (Thread t : generators) {
+            t.join();
+        }
+
+        final boolean finished =
+            sDone.await(intOpt(o, "timeout", 120), TimeUnit.SECONDS);
+        final double seconds = (System.nanoTime() - startNS) / 1e9;
+
+        report(requests, seconds, finished, service);
+
+        payment.shutdown();
+        callbackThread.shutdown();
+        payment.setNativeCallbacks(null);
+        System.exit(finished?(0):(2));
+    }
+
+    static int pickOp(final Random random, final int totalWeight,
+                      final int[] mix)
+    {
+        int r = random.nextInt(totalWeight);
+        for (int op = 0 ; op < NUM_OPS ; ++op) {
+            if (r < mix[op]) {
+                return op;
+            }
+            r -= mix[op];
+        }
+        return OP_PRODUCT;
+    }
+
+    static void issue(final Random random, final int totalWeight,
+                      final int[] mix, final String[] skus, final int batch,
+                      final int owned, final long context)
+    {
+        final int op = pickOp(random, totalWeight, mix);
+        sPending.put(context, new request(op, System.nanoTime()));
+
+        boolean accepted;
+        switch (op) {
+        case OP_PRODUCTS: {
+            String[] b = new String[Math.min(batch, skus.length)];
+            for (int i = 0 ; i < b.length ; ++i) {
+                b[i] = skus[random.nextInt(skus.length)];
+            }
+            accepted = payment.doQueryProducts(b, context);
+            break;
+        }
+        case OP_PURCHASES:
+            accepted = payment.doQueryPurchases(context);
+            break;
+        case OP_CONSUME:
+            // Tokens of the initially owned items.  Once consumed
+            // they fail with ITEM_NOT_OWNED, which still exercises
+            // the full path.
+            accepted = payment.doConsumeAsync
+                ("sim-token-" + random.nextInt(Math.max(1, owned)), context);
+            break;
+        case OP_PURCHASE:
+            accepted = payment.doPurchase(skus[random.nextInt(skus.length)],
+                                          "load", context);
+            break;
+        default:
+            accepted = payment.doQueryProduct
+                (skus[random.nextInt(skus.length)], context);
+            break;
+        }
+
+        if (!accepted && null != sPending.remove(context)) {
+            sRejected.incrementAndGet(op);
+            sOutstanding.release();
+            sDone.countDown();
+        }
+    }
+
+    static void report(final int requests, final double seconds,
+                       final boolean finished,
+                       final simulatedbillingservice service)
+    {
+        System.out.printf("%d requests in %.2fs (%.0f/s)%s%n", requests,
+                          seconds, requests / seconds,
+                          finished?(""):(" -- TIMED OUT, " + sPending.size() +
+                                         " without callbacks"));
+        System.out.printf("%-16s %8s %8s %8s %10s %10s %10s %10s%n",
+                          "op", "ok", "failed", "rejected", "p50 ms",
+                          "p90 ms", "p99 ms", "max ms");
+        for (int op = 0 ; op < NUM_OPS ; ++op) {
+            final int n = Math.min(sLatencyCounts[op].get(),
+                                   sLatencies[op].length);
+            if (0 == n && 0 == sRejected.get(op)) {
+                continue;
+            }
+            long[] l = Arrays.copyOf(sLatencies[op], n);
+            Arrays.sort(l);
+            System.out.printf("%-16s %8d %8d %8d %10.1f %10.1f %10.1f %10.1f%n",
+                              OP_NAMES[op], sSucceeded.get(op),
+                              sFailed.get(op), sRejected.get(op),
+                              percentile(l, 0.5), percentile(l, 0.9),
+                              percentile(l, 0.99), percentile(l, 1.0));
+        }
+        System.out.println("service calls: " + service.getCallCount() +
+                           ", injected failures: " +
+                           service.getInjectedFailureCount());
+        System.out.println("metrics: " + payment.doGetMetricsSnapshot());
+    }
+
+    static double percentile(final long[] sorted, final double fraction)
+    {
+        if (0 == sorted.length) {
+            return 0;
+        }
+        final int idx = Math.min(sorted.length - 1,
+                                 (int )Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, idx)] / 1000.0;
+    }
+}
@@ -0,0 +1,97 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import android.os.Bundle;
+
+// Per-item parsing: purchasejson against the JSONObject parsing it
+// replaced, and getResponseCodeFromBundle.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class parsingbenchmark
+{
+    final String   mSkuDetails =
+        fakebillingservice.skuDetailsJSON(fakebillingservice.skuName(42), 42);
+    final String   mPurchase =
+        fakebillingservice.purchaseJSON(fakebillingservice.skuName(42), 42);
+    final String[] mOut = new String[purchasejson.DETAILS_NUM_FIELDS];
+
+    final Bundle   mIntResponse = fakebillingservice.response(0);
+    final Bundle   mLongResponse = new Bundle();
+    final Bundle   mNoResponse = new Bundle();
+
+    {
+        mLongResponse.put(googlepayment.RESPONSE_CODE, Long.valueOf(0));
+    }
+
+    @Benchmark
+    public void skuDetailsExtractor(Blackhole bh)
+    {
+        bh.consume(purchasejson.parseSkuDetails(mSkuDetails, mOut));
+        bh.consume(mOut);
+    }
+
+    @Benchmark
+    public void skuDetailsJSONObject(Blackhole bh) throws JSONException
+    {
+        JSONObject o = new JSONObject(mSkuDetails);
+        bh.consume(o.getString("productId"));
+        bh.consume(o.getString("title"));
+        bh.consume(o.getString("description"));
+        bh.consume(o.getString("price"));
+    }
+
+    @Benchmark
+    public void purchaseExtractor(Blackhole bh)
+    {
+        bh.consume(purchasejson.parsePurchase(mPurchase, mOut));
+        bh.consume(mOut);
+    }
+
+    @Benchmark
+    public void purchaseJSONObject(Blackhole bh) throws JSONException
+    {
+        JSONObject o = new JSONObject(mPurchase);
+        bh.consume(o.optString("productId"));
+        bh.consume(o.optString("token", o.optString("purchaseToken")));
+        bh.consume(o.optString("developerPayload"));
+    }
+
+    @Benchmark
+    public int responseCodeInteger()
+    {
+        return googlepayment.getResponseCodeFromBundle(mIntResponse);
+    }
+
+    @Benchmark
+    public int responseCodeLong()
+    {
+        return googlepayment.getResponseCodeFromBundle(mLongResponse);
+    }
+
+    @Benchmark
+    public int responseCodeMissing()
+    {
+        return googlepayment.getResponseCodeFromBundle(mNoResponse);
+    }
+}
@@ -0,0 +1,72 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// getSkuDetails round trips through the agent (threadQueryProduct,
+// threadQueryProducts), bypassing the product cache.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class productquerybenchmark
+{
+    @Param({ "20", "100", "1000" })
+    int batchSize;
+
+    googlepayment                         mAgent;
+    benchfixture.countingcallbacks        mCallbacks;
+    String[]                              mBatch;
+    int                                   mNext = 0;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        mCallbacks = new benchfixture.countingcallbacks();
+        fakebillingservice service =
+            new fakebillingservice(batchSize, 0, 100);
+        mAgent = benchfixture.connect(service, mCallbacks, true);
+        mBatch = service.mSkus;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        benchfixture.disconnect();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long queryProduct()
+    {
+        final String sku = mBatch[mNext];
+        mNext = (mNext + 1) % mBatch.length;
+        mAgent.threadQueryProduct(sku, 1);
+        return mCallbacks.products;
+    }
+
+    @Benchmark
+    public long queryProducts()
+    {
+        mAgent.threadQueryProducts(mBatch, 1);
+        return mCallbacks.products;
+    }
+}
@@ -0,0 +1,79 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A full getPurchases pagination (threadQueryPurchases), including
+// parsing each page and dispatching it to the native receiver.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class purchasequerybenchmark
+{
+    @Param({ "10", "100", "1000", "10000" })
+    int owned;
+
+    // Google Play returns roughly 100 items per page
+    @Param({ "100" })
+    int pageSize;
+
+    @Param({ "true" })
+    boolean pooledDispatch;
+
+    googlepayment                         mAgent;
+    benchfixture.countingcallbacks        mCallbacks;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        mCallbacks = new benchfixture.countingcallbacks();
+        mAgent = benchfixture.connect
+            (new fakebillingservice(Math.max(1, owned), owned, pageSize),
+             mCallbacks, pooledDispatch);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        if (mCallbacks.errors > 0 ||
+            mCallbacks.purchaseItems != (long )owned * mCallbacks.purchaseQueries) {
+            throw new IllegalStateException
+                ("bad results: " + mCallbacks.purchaseItems + " items, " +
+                 mCallbacks.purchaseQueries + " queries, " +
+                 mCallbacks.errors + " errors");
+        }
+        benchfixture.disconnect();
+    }
+
+    @Benchmark
+    public long queryPurchases()
+    {
+        final googlepayment.PurchaseQuery query =
+            new googlepayment.PurchaseQuery();
+        synchronized (mAgent.mPurchaseQueryLock) {
+            query.sinks.add(mAgent.nativePurchaseQuerySink(1));
+            mAgent.mPurchaseQuery = query;
+        }
+        mAgent.threadQueryPurchases(query);
+        return mCallbacks.purchaseItems;
+    }
+}
@@ -0,0 +1,35 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentSender;
+import android.os.Handler;
+import android.os.Looper;
+
+public class Activity extends Context
+{
+    public static final int RESULT_CANCELED = 0;
+    public static final int RESULT_OK = -1;
+
+    final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+    public void runOnUiThread(Runnable action)
+    {
+        if (Looper.getMainLooper().isCurrentThread()) {
+            action.run();
+        } else {
+            mUiHandler.post(action);
+        }
+    }
+
+    public void startIntentSenderForResult(IntentSender intent,
+                                           int requestCode, Intent fillInIntent,
+                                           int flagsMask, int flagsValues,
+                                           int extraFlags)
+        throws IntentSender.SendIntentException
+    {
+    }
+}
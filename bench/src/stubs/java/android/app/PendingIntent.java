@@ -0,0 +1,17 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.app;
+
+import android.content.IntentSender;
+import android.os.Parcelable;
+
+public class PendingIntent implements Parcelable
+{
+    final IntentSender mSender = new IntentSender();
+
+    public IntentSender getIntentSender()
+    {
+        return mSender;
+    }
+}
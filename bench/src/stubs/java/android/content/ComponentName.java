@@ -0,0 +1,26 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.content;
+
+public class ComponentName
+{
+    final String mPackage;
+    final String mClass;
+
+    public ComponentName(String pkg, String cls)
+    {
+        mPackage = pkg;
+        mClass = cls;
+    }
+
+    public String getPackageName()
+    {
+        return mPackage;
+    }
+
+    public String getClassName()
+    {
+        return mClass;
+    }
+}
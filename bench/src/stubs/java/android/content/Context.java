@@ -0,0 +1,31 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.content;
+
+import java.io.File;
+
+public class Context
+{
+    public static final int BIND_AUTO_CREATE = 1;
+
+    public String getPackageName()
+    {
+        return "com.turbulenz.bench";
+    }
+
+    public File getFilesDir()
+    {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    public boolean bindService(Intent service, ServiceConnection conn,
+                               int flags)
+    {
+        return false;
+    }
+
+    public void unbindService(ServiceConnection conn)
+    {
+    }
+}
@@ -0,0 +1,62 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.content;
+
+import java.util.HashMap;
+
+import android.os.Bundle;
+
+public class Intent
+{
+    final String                  mAction;
+    final HashMap<String, Object> mExtras = new HashMap<String, Object>();
+
+    public Intent()
+    {
+        this(null);
+    }
+
+    public Intent(String action)
+    {
+        mAction = action;
+    }
+
+    public String getAction()
+    {
+        return mAction;
+    }
+
+    public Intent putExtra(String name, String value)
+    {
+        mExtras.put(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, int value)
+    {
+        mExtras.put(name, Integer.valueOf(value));
+        return this;
+    }
+
+    public String getStringExtra(String name)
+    {
+        Object o = mExtras.get(name);
+        return (o instanceof String)?((String )o):(null);
+    }
+
+    public int getIntExtra(String name, int defaultValue)
+    {
+        Object o = mExtras.get(name);
+        return (o instanceof Integer)?(((Integer )o).intValue()):(defaultValue);
+    }
+
+    public Bundle getExtras()
+    {
+        Bundle b = new Bundle();
+        for (String k : mExtras.keySet()) {
+            b.put(k, mExtras.get(k));
+        }
+        return b;
+    }
+}
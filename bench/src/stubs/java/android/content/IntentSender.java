@@ -0,0 +1,21 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.content;
+
+public class IntentSender
+{
+    public static class SendIntentException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        public SendIntentException()
+        {
+        }
+
+        public SendIntentException(String name)
+        {
+            super(name);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.content;
+
+import android.os.IBinder;
+
+public interface ServiceConnection
+{
+    void onServiceConnected(ComponentName name, IBinder service);
+
+    void onServiceDisconnected(ComponentName name);
+}
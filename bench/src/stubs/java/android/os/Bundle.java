@@ -0,0 +1,73 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class Bundle
+{
+    final HashMap<String, Object> mMap = new HashMap<String, Object>();
+
+    public Object get(String key)
+    {
+        return mMap.get(key);
+    }
+
+    // Untyped put, for the stubs only
+    public void put(String key, Object value)
+    {
+        mMap.put(key, value);
+    }
+
+    public boolean containsKey(String key)
+    {
+        return mMap.containsKey(key);
+    }
+
+    public void putInt(String key, int value)
+    {
+        mMap.put(key, Integer.valueOf(value));
+    }
+
+    public int getInt(String key)
+    {
+        Object o = mMap.get(key);
+        return (o instanceof Integer)?(((Integer )o).intValue()):(0);
+    }
+
+    public void putString(String key, String value)
+    {
+        mMap.put(key, value);
+    }
+
+    public String getString(String key)
+    {
+        Object o = mMap.get(key);
+        return (o instanceof String)?((String )o):(null);
+    }
+
+    public void putStringArrayList(String key, ArrayList<String> value)
+    {
+        mMap.put(key, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ArrayList<String> getStringArrayList(String key)
+    {
+        Object o = mMap.get(key);
+        return (o instanceof ArrayList)?((ArrayList<String> )o):(null);
+    }
+
+    public void putParcelable(String key, Parcelable value)
+    {
+        mMap.put(key, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T getParcelable(String key)
+    {
+        return (T )mMap.get(key);
+    }
+}
@@ -0,0 +1,81 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class Handler
+{
+    final Looper mLooper;
+
+    // Messages not yet run, so removeCallbacks can cancel them.
+    // Guarded by itself.
+    final HashMap<Runnable, ArrayList<ScheduledFuture<?>>> mPending =
+        new HashMap<Runnable, ArrayList<ScheduledFuture<?>>>();
+
+    public Handler()
+    {
+        this((null == Looper.myLooper())?
+             (Looper.getMainLooper()):(Looper.myLooper()));
+    }
+
+    public Handler(Looper looper)
+    {
+        mLooper = looper;
+    }
+
+    public Looper getLooper()
+    {
+        return mLooper;
+    }
+
+    public final boolean post(Runnable r)
+    {
+        return postDelayed(r, 0);
+    }
+
+    public final boolean postDelayed(final Runnable r, long delayMillis)
+    {
+        final ScheduledFuture<?>[] self = new ScheduledFuture<?>[1];
+        synchronized (mPending) {
+            self[0] = mLooper.mExecutor.schedule(new Runnable() {
+                    @Override public void run() {
+                        synchronized (mPending) {
+                            ArrayList<ScheduledFuture<?>> l = mPending.get(r);
+                            if (null == l || !l.remove(self[0])) {
+                                return;
+                            }
+                            if (l.isEmpty()) {
+                                mPending.remove(r);
+                            }
+                        }
+                        r.run();
+                    }
+                }, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+
+            ArrayList<ScheduledFuture<?>> l = mPending.get(r);
+            if (null == l) {
+                l = new ArrayList<ScheduledFuture<?>>(1);
+                mPending.put(r, l);
+            }
+            l.add(self[0]);
+        }
+        return true;
+    }
+
+    public final void removeCallbacks(Runnable r)
+    {
+        synchronized (mPending) {
+            ArrayList<ScheduledFuture<?>> l = mPending.remove(r);
+            if (null != l) {
+                for (ScheduledFuture<?> f : l) {
+                    f.cancel(false);
+                }
+            }
+        }
+    }
+}
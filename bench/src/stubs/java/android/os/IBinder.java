@@ -0,0 +1,8 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.os;
+
+public interface IBinder
+{
+}
@@ -0,0 +1,9 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.os;
+
+public interface IInterface
+{
+    IBinder asBinder();
+}
@@ -0,0 +1,62 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.os;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+// Each Looper is a single daemon thread running posted messages in
+// order.
+public final class Looper
+{
+    static final Looper                sMainLooper = new Looper("main");
+    static final ThreadLocal<Looper>   sThreadLooper = new ThreadLocal<Looper>();
+
+    final ScheduledThreadPoolExecutor  mExecutor;
+    final MessageQueue                 mQueue;
+    volatile Thread                    mThread;
+
+    Looper(final String name)
+    {
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(new Runnable() {
+                            @Override public void run() {
+                                sThreadLooper.set(Looper.this);
+                                r.run();
+                            }
+                        }, name);
+                    t.setDaemon(true);
+                    mThread = t;
+                    return t;
+                }
+            });
+        mQueue = new MessageQueue(this);
+    }
+
+    public static Looper getMainLooper()
+    {
+        return sMainLooper;
+    }
+
+    public static Looper myLooper()
+    {
+        return sThreadLooper.get();
+    }
+
+    public static MessageQueue myQueue()
+    {
+        return myLooper().mQueue;
+    }
+
+    public MessageQueue getQueue()
+    {
+        return mQueue;
+    }
+
+    public boolean isCurrentThread()
+    {
+        return Thread.currentThread() == mThread;
+    }
+}
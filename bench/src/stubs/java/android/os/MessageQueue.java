@@ -0,0 +1,42 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.os;
+
+import java.util.concurrent.TimeUnit;
+
+public final class MessageQueue
+{
+    public interface IdleHandler
+    {
+        boolean queueIdle();
+    }
+
+    // Idle handlers are approximated: they run once the messages
+    // already queued have run, and (if they ask to stay registered)
+    // again every IDLE_REPEAT_MS.
+    static final long IDLE_REPEAT_MS = 16;
+
+    final Looper      mLooper;
+
+    MessageQueue(Looper looper)
+    {
+        mLooper = looper;
+    }
+
+    public void addIdleHandler(final IdleHandler handler)
+    {
+        scheduleIdle(handler, 0);
+    }
+
+    void scheduleIdle(final IdleHandler handler, final long delayMS)
+    {
+        mLooper.mExecutor.schedule(new Runnable() {
+                @Override public void run() {
+                    if (handler.queueIdle()) {
+                        scheduleIdle(handler, IDLE_REPEAT_MS);
+                    }
+                }
+            }, delayMS, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,18 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.os;
+
+public class RemoteException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    public RemoteException()
+    {
+    }
+
+    public RemoteException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,17 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.os;
+
+public final class SystemClock
+{
+    public static long elapsedRealtime()
+    {
+        return System.nanoTime() / 1000000;
+    }
+
+    public static long uptimeMillis()
+    {
+        return elapsedRealtime();
+    }
+}
@@ -0,0 +1,12 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.text;
+
+public class TextUtils
+{
+    public static boolean isEmpty(CharSequence str)
+    {
+        return (null == str || 0 == str.length());
+    }
+}
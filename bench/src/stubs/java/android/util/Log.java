@@ -0,0 +1,27 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package android.util;
+
+// Output is dropped unless -Dtzbilling.log=true, so that logging does
+// not dominate benchmark results.
+public final class Log
+{
+    static final boolean sEnabled = Boolean.getBoolean("tzbilling.log");
+
+    public static int i(String tag, String msg)
+    {
+        if (sEnabled) {
+            System.out.println(tag + msg);
+        }
+        return 0;
+    }
+
+    public static int e(String tag, String msg)
+    {
+        if (sEnabled) {
+            System.err.println(tag + msg);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,48 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.android.vending.billing;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.RemoteException;
+
+// Java equivalent of IInAppBillingService.aidl.  There is no binder
+// on a plain JVM, so a service is its own IBinder and asInterface
+// just casts it.
+public interface IInAppBillingService extends IInterface
+{
+    int isBillingSupported(int apiVersion, String packageName, String type)
+        throws RemoteException;
+
+    Bundle getSkuDetails(int apiVersion, String packageName, String type,
+                         Bundle skusBundle)
+        throws RemoteException;
+
+    Bundle getBuyIntent(int apiVersion, String packageName, String sku,
+                        String type, String developerPayload)
+        throws RemoteException;
+
+    Bundle getPurchases(int apiVersion, String packageName, String type,
+                        String continuationToken)
+        throws RemoteException;
+
+    int consumePurchase(int apiVersion, String packageName,
+                        String purchaseToken)
+        throws RemoteException;
+
+    public static abstract class Stub implements IBinder, IInAppBillingService
+    {
+        public static IInAppBillingService asInterface(IBinder obj)
+        {
+            return (obj instanceof IInAppBillingService)?
+                ((IInAppBillingService )obj):(null);
+        }
+
+        @Override public IBinder asBinder()
+        {
+            return this;
+        }
+    }
+}
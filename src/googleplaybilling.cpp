@@ -3,6 +3,7 @@
 
 #include "googleplaybilling.h"
 
+#include <pthread.h>
 #include <android/log.h>
 
 using namespace turbulenz;
@@ -24,8 +25,99 @@ InitStringFromJString(std::string &out_string, JNIEnv *env, jstring jstr)
     env->ReleaseStringUTFChars(jstr, jstrChars);
 }
 
+// Returns element 'idx' of a String[] (or "" if the array or element
+// is null).
+static void
+InitStringFromJStringArray(std::string &out_string, JNIEnv *env,
+                           jobjectArray jarray, jsize idx)
+{
+    if (0 == jarray)
+    {
+        out_string.clear();
+        return;
+    }
+
+    jstring jstr = (jstring )env->GetObjectArrayElement(jarray, idx);
+    if (0 == jstr)
+    {
+        out_string.clear();
+        return;
+    }
+
+    InitStringFromJString(out_string, env, jstr);
+    env->DeleteLocalRef(jstr);
+}
+
+// Append purchases from parallel arrays to 'list'.  Any of the
+// arrays apart from 'skus' may be null.
+static void
+InitPurchaseListFromJArrays(GooglePlayBilling::PurchaseList &list,
+                            JNIEnv *env, jobjectArray skus,
+                            jobjectArray details, jobjectArray tokens,
+                            jobjectArray devPayloads, jobjectArray sigs)
+{
+    const jsize numPurchases = env->GetArrayLength(skus);
+    const size_t first = list.size();
+    list.resize(first + numPurchases);
+
+    for (jsize i = 0 ; i < numPurchases ; ++i)
+    {
+        GooglePlayBilling::Purchase &purchase = list[first + i];
+        InitStringFromJStringArray(purchase.sku, env, skus, i);
+        InitStringFromJStringArray(purchase.details, env, details, i);
+        InitStringFromJStringArray(purchase.googleToken, env, tokens, i);
+        InitStringFromJStringArray(purchase.clientToken, env, devPayloads, i);
+        InitStringFromJStringArray(purchase.signature, env, sigs, i);
+    }
+}
+
+// Live instances, by id.  Request contexts and the ready status
+// callback hold an id rather than a pointer, so that a response that
+// arrives after its GooglePlayBilling has been destroyed finds nothing
+// to update.
+typedef std::unordered_map<unsigned, GooglePlayBilling *> InstanceMap;
+
+static pthread_mutex_t sInstancesLock = PTHREAD_MUTEX_INITIALIZER;
+static InstanceMap     sInstances;
+static unsigned        sLastInstanceId = 0;
+
+// Returns the instance with the registry locked, so that it cannot be
+// destroyed until UnlockInstances is called, or 0 (with the registry
+// unlocked) if it has gone.
+static GooglePlayBilling *
+LockInstance(unsigned id)
+{
+    pthread_mutex_lock(&sInstancesLock);
+    InstanceMap::iterator it = sInstances.find(id);
+    if (sInstances.end() == it)
+    {
+        pthread_mutex_unlock(&sInstancesLock);
+        LOGI("response for destroyed instance %u", id);
+        return 0;
+    }
+    return it->second;
+}
+
+static void
+UnlockInstances()
+{
+    pthread_mutex_unlock(&sInstancesLock);
+}
+
+static void
+InvalidateInstancePurchases(unsigned id)
+{
+    GooglePlayBilling *billing = LockInstance(id);
+    if (0 != billing)
+    {
+        billing->InvalidatePurchases();
+        UnlockInstances();
+    }
+}
+
 struct PurchaseContext
 {
+    unsigned                              billingId;
     void                                 *callerContext;
     GooglePlayBilling::PurchaseSuccessCB  successCallback;
     GooglePlayBilling::PurchaseFailureCB  failureCallback;
@@ -51,6 +143,7 @@ Java_com_turbulenz_turbulenz_payment_nativeOnPurchaseComplete
     InitStringFromJString(purchase.clientToken, env, devPayload);
     InitStringFromJString(purchase.signature, env, sig);
 
+    InvalidateInstancePurchases(purchaseCtx->billingId);
     purchaseCtx->successCallback(purchaseCtx->callerContext, purchase);
 
     delete purchaseCtx;
@@ -82,13 +175,30 @@ Java_com_turbulenz_turbulenz_payment_nativeOnPurchaseFailed
     delete purchaseCtx;
 }
 
+// In streaming mode (pageCallback != 0), 'purchases' only holds the
+// page being delivered, and is cleared after each page.
 struct QueryContext
 {
-    void                               *callerContext;
-    GooglePlayBilling::PurchaseQueryCB  callback;
-    GooglePlayBilling::PurchaseList     purchases;
+    unsigned                                billingId;
+    void                                   *callerContext;
+    GooglePlayBilling::PurchaseQueryCB      callback;
+    GooglePlayBilling::PurchasePageCB       pageCallback;
+    GooglePlayBilling::PurchaseQueryDoneCB  doneCallback;
+    GooglePlayBilling::PurchaseList         purchases;
+    unsigned                                cacheGeneration;
 };
 
+// Deliver and discard the purchases collected so far
+static void
+FlushPurchasePage(QueryContext *queryCtx)
+{
+    if (!queryCtx->purchases.empty())
+    {
+        queryCtx->pageCallback(queryCtx->callerContext, queryCtx->purchases);
+        queryCtx->purchases.clear();
+    }
+}
+
 extern "C" void
 Java_com_turbulenz_turbulenz_payment_nativePurchaseQueryResponse
 (JNIEnv *env, jobject thiz, jlong context, jstring sku, jstring details,
@@ -119,6 +229,13 @@ Java_com_turbulenz_turbulenz_payment_nativePurchaseQueryResponse
             LOGE("query failed: (internal error - no details available)");
         }
 
+        if (0 != queryCtx->pageCallback)
+        {
+            queryCtx->doneCallback(queryCtx->callerContext, false);
+            delete queryCtx;
+            return;
+        }
+
         // Create a single empty entry to indicate an error.
 
         GooglePlayBilling::PurchaseList &list = queryCtx->purchases;
@@ -132,6 +249,21 @@ Java_com_turbulenz_turbulenz_payment_nativePurchaseQueryResponse
     {
         // The list has been terminated.  We can make the callback now.
 
+        if (0 != queryCtx->pageCallback)
+        {
+            FlushPurchasePage(queryCtx);
+            queryCtx->doneCallback(queryCtx->callerContext, true);
+            delete queryCtx;
+            return;
+        }
+
+        GooglePlayBilling *billing = LockInstance(queryCtx->billingId);
+        if (0 != billing)
+        {
+            billing->CachePurchases(queryCtx->purchases,
+                                    queryCtx->cacheGeneration);
+            UnlockInstances();
+        }
         queryCtx->callback(queryCtx->callerContext, queryCtx->purchases);
 
         delete queryCtx;
@@ -149,11 +281,103 @@ Java_com_turbulenz_turbulenz_payment_nativePurchaseQueryResponse
         InitStringFromJString(purchase.googleToken, env, token);
         InitStringFromJString(purchase.clientToken, env, devPayload);
         InitStringFromJString(purchase.signature, env, sig);
+
+        // Agents sending one purchase at a time give one-entry pages
+
+        if (0 != queryCtx->pageCallback)
+        {
+            FlushPurchasePage(queryCtx);
+        }
     }
 }
 
+extern "C" void
+Java_com_turbulenz_turbulenz_payment_nativePurchaseQueryPage
+(JNIEnv *env, jobject thiz, jlong context, jobjectArray skus,
+ jobjectArray details, jobjectArray tokens, jobjectArray devPayloads,
+ jobjectArray sigs)
+{
+    if (0 == context)
+    {
+        LOGE("purchase page callback called with null context");
+        return;
+    }
+    if (0 == skus)
+    {
+        LOGE("purchase page has null SKU list");
+        return;
+    }
+
+    QueryContext *queryCtx = (QueryContext *)(size_t )context;
+
+    InitPurchaseListFromJArrays(queryCtx->purchases, env, skus, details,
+                                tokens, devPayloads, sigs);
+
+    if (0 != queryCtx->pageCallback)
+    {
+        FlushPurchasePage(queryCtx);
+    }
+}
+
+struct PurchaseDeltaContext
+{
+    void                               *callerContext;
+    GooglePlayBilling::PurchaseDeltaCB  callback;
+};
+
+extern "C" void
+Java_com_turbulenz_turbulenz_payment_nativePurchaseDelta
+(JNIEnv *env, jobject thiz, jlong context, jstring error,
+ jobjectArray addedSkus, jobjectArray addedDetails, jobjectArray addedTokens,
+ jobjectArray addedDevPayloads, jobjectArray addedSigs,
+ jobjectArray removedSkus, jobjectArray removedTokens)
+{
+    if (0 == context)
+    {
+        LOGE("purchase delta callback called with null context");
+        return;
+    }
+
+    PurchaseDeltaContext *ctx = (PurchaseDeltaContext *)(size_t )context;
+
+    GooglePlayBilling::PurchaseList added;
+    GooglePlayBilling::PurchaseList removed;
+
+    if (0 != error)
+    {
+        std::string errStr;
+        InitStringFromJString(errStr, env, error);
+        LOGE("delta query failed: %s", errStr.c_str());
+
+        added.push_back({ "", "", "", "", "" });
+        ctx->callback(ctx->callerContext, added, removed, false);
+    }
+    else if (0 == addedSkus && 0 == removedSkus)
+    {
+        ctx->callback(ctx->callerContext, added, removed, true);
+    }
+    else
+    {
+        if (0 != addedSkus)
+        {
+            InitPurchaseListFromJArrays(added, env, addedSkus, addedDetails,
+                                        addedTokens, addedDevPayloads,
+                                        addedSigs);
+        }
+        if (0 != removedSkus)
+        {
+            InitPurchaseListFromJArrays(removed, env, removedSkus, 0,
+                                        removedTokens, 0, 0);
+        }
+        ctx->callback(ctx->callerContext, added, removed, false);
+    }
+
+    delete ctx;
+}
+
 struct ProductQueryContext
 {
+    unsigned                           billingId;
     void                              *callerContext;
     GooglePlayBilling::ProductQueryCB  callback;
 };
@@ -189,6 +413,12 @@ Java_com_turbulenz_turbulenz_payment_nativeProductQueryResponse
         InitStringFromJString(product.title, env, title);
         InitStringFromJString(product.description, env, description);
         InitStringFromJString(product.price, env, price);
+        GooglePlayBilling *billing = LockInstance(ctx->billingId);
+        if (0 != billing)
+        {
+            billing->CacheProducts(&product, 1);
+            UnlockInstances();
+        }
     }
 
     ctx->callback(ctx->callerContext, product);
@@ -196,9 +426,108 @@ Java_com_turbulenz_turbulenz_payment_nativeProductQueryResponse
     delete ctx;
 }
 
+struct ProductListQueryContext
+{
+    unsigned                               billingId;
+    void                                  *callerContext;
+    GooglePlayBilling::ProductListQueryCB  callback;
+};
+
+extern "C" void
+Java_com_turbulenz_turbulenz_payment_nativeProductsQueryResponse
+(JNIEnv *env, jobject thiz, jlong context, jobjectArray skus,
+ jobjectArray titles, jobjectArray descriptions, jobjectArray prices)
+{
+    if (0 == context)
+    {
+        LOGE("products query callback called with null context");
+        return;
+    }
+
+    ProductListQueryContext *ctx = (ProductListQueryContext *)(size_t )context;
+
+    GooglePlayBilling::ProductList products;
+    if (0 == skus)
+    {
+        LOGE("products query has null SKU list");
+    }
+    else
+    {
+        const jsize numSkus = env->GetArrayLength(skus);
+        products.resize(numSkus);
+        for (jsize i = 0 ; i < numSkus ; ++i)
+        {
+            GooglePlayBilling::Product &product = products[i];
+            InitStringFromJStringArray(product.sku, env, skus, i);
+            InitStringFromJStringArray(product.title, env, titles, i);
+            if (!product.title.empty())
+            {
+                InitStringFromJStringArray(product.description, env,
+                                           descriptions, i);
+                InitStringFromJStringArray(product.price, env, prices, i);
+            }
+        }
+
+        GooglePlayBilling *billing =
+            (0 != numSkus)?(LockInstance(ctx->billingId)):(0);
+        if (0 != billing)
+        {
+            billing->CacheProducts(&products[0], products.size());
+            UnlockInstances();
+        }
+    }
+
+    ctx->callback(ctx->callerContext, products);
+
+    delete ctx;
+}
+
+struct ConsumeContext
+{
+    unsigned                       billingId;
+    void                          *callerContext;
+    GooglePlayBilling::ConsumeCB   callback;
+};
+
+extern "C" void
+Java_com_turbulenz_turbulenz_payment_nativeConsumeResponse
+(JNIEnv *env, jobject thiz, jlong context, jstring token, jboolean success,
+ jstring msg)
+{
+    if (0 == context)
+    {
+        LOGE("consume callback called with null context");
+        return;
+    }
+
+    ConsumeContext *ctx = (ConsumeContext *)(size_t )context;
+
+    std::string tokenStr;
+    if (0 != token)
+    {
+        InitStringFromJString(tokenStr, env, token);
+    }
+
+    if (0 != msg)
+    {
+        std::string msgStr;
+        InitStringFromJString(msgStr, env, msg);
+        LOGE("consume failed: %s", msgStr.c_str());
+    }
+
+    if (success)
+    {
+        InvalidateInstancePurchases(ctx->billingId);
+    }
+
+    ctx->callback(ctx->callerContext, tokenStr.c_str(), !!success);
+
+    delete ctx;
+}
+
 extern "C" void
 Java_com_turbulenz_turbulenz_payment_nativeOnReadyStatus
-(JNIEnv *env, jobject thiz, jlong context, jboolean ready)
+(JNIEnv *env, jobject thiz, jlong context, jboolean ready, jstring agentInfo)
 {
     LOGI("ready state updated: %s", (ready)?("true"):("false"));
 
@@ -208,11 +537,36 @@ Java_com_turbulenz_turbulenz_payment_nativeOnReadyStatus
         return;
     }
 
-    GooglePlayBilling *billing = (GooglePlayBilling *)context;
-    if (0 != billing->mReadyStatusCallback)
+    // Copy the callback out, so that it may destroy the instance
+    GooglePlayBilling *billing = LockInstance((unsigned )context);
+    if (0 == billing)
+    {
+        return;
+    }
+    void *readyCtx = billing->mReadyStatusContext;
+    GooglePlayBilling::ReadyStatusCB readyCallback =
+        billing->mReadyStatusCallback;
+    GooglePlayBilling::ReadyStatusInfoCB readyInfoCallback =
+        billing->mReadyStatusInfoCallback;
+    UnlockInstances();
+
+    if (0 != readyInfoCallback)
+    {
+        std::string info;
+        if (0 != agentInfo)
+        {
+            InitStringFromJString(info, env, agentInfo);
+        }
+
+        LOGI("making onreadystate callback (agent: %s) ...", info.c_str());
+        readyInfoCallback(readyCtx, !!ready,
+                          (0 != agentInfo)?(info.c_str()):(0));
+        LOGI("back from onreadystate callback.");
+    }
+    else if (0 != readyCallback)
     {
         LOGI("making onreadystate callback ...");
-        billing->mReadyStatusCallback(billing->mReadyStatusContext, !!ready);
+        readyCallback(readyCtx, !!ready);
         LOGI("back from onreadystate callback.");
     }
     else
@@ -221,21 +575,75 @@ Java_com_turbulenz_turbulenz_payment_nativeOnReadyStatus
     }
 }
 
+// Threads attached by GetJNIEnv are detached when they exit by the
+// destructor of this key, whose value is the JavaVM.
+static pthread_key_t  sAttachedThreadKey;
+static pthread_once_t sAttachedThreadKeyOnce = PTHREAD_ONCE_INIT;
+
+static void
+DetachThread(void *vm)
+{
+    ((JavaVM *)vm)->DetachCurrentThread();
+}
+
+static void
+CreateAttachedThreadKey()
+{
+    if (0 != pthread_key_create(&sAttachedThreadKey, DetachThread))
+    {
+        LOGE("failed to create thread key, attached threads will leak");
+    }
+}
+
+// AttachCurrentThread takes a JNIEnv ** in the Android headers, and a
+// void ** in the JDK ones.
+#ifdef __ANDROID__
+typedef JNIEnv **AttachEnvPtr;
+#else
+typedef void **AttachEnvPtr;
+#endif
+
 namespace turbulenz
 {
 
 GooglePlayBilling::GooglePlayBilling(JNIEnv *jniEnv, jclass paymentClass) :
-    mJNIEnv(jniEnv),
+    mJavaVM(0),
     mPaymentClass(paymentClass),
-    mReadyStatusCallback(0)
+    mStringClass(0),
+    mReadyStatusCallback(0),
+    mReadyStatusInfoCallback(0),
+    mCacheEnabled(false),
+    mPurchaseCacheValid(false),
+    mPurchasesGeneration(0)
 {
     LOGI("initializing");
 
+    pthread_rwlock_init(&mCacheLock, 0);
+
+    pthread_mutex_lock(&sInstancesLock);
+    // 0 is never used, since it means 'no context' to the Java side
+    do
+    {
+        mInstanceId = ++sLastInstanceId;
+    } while (0 == mInstanceId || sInstances.count(mInstanceId));
+    sInstances[mInstanceId] = this;
+    pthread_mutex_unlock(&sInstancesLock);
+
     if (0 == jniEnv)
     {
         LOGE("constructor called with null jniEnv parameter");
         return;
     }
+    if (JNI_OK != jniEnv->GetJavaVM(&mJavaVM))
+    {
+        LOGE("cannot get JavaVM");
+        mJavaVM = 0;
+        return;
+    }
+
+    jclass stringLocal = jniEnv->FindClass("java/lang/String");
+    mStringClass = (jclass )(jniEnv->NewGlobalRef(stringLocal));
+    jniEnv->DeleteLocalRef(stringLocal);
 
     if (0 == mPaymentClass)
     {
@@ -243,7 +651,10 @@ GooglePlayBilling::GooglePlayBilling(JNIEnv *jniEnv, jclass paymentClass) :
         jclass paymentLocal = jniEnv->FindClass(paymentClassName);
         if (0 == paymentLocal)
         {
-            mJNIEnv = 0;
+            jniEnv->ExceptionClear();
+            jniEnv->DeleteGlobalRef(mStringClass);
+            mStringClass = 0;
+            mJavaVM = 0;
             LOGE("cannot find Java class");
             return;
         }
@@ -255,25 +666,42 @@ GooglePlayBilling::GooglePlayBilling(JNIEnv *jniEnv, jclass paymentClass) :
         jniEnv->GetStaticMethodID(mPaymentClass, "doCheckInitialized", "()Z");
     if (0 != checkInitMethod)
     {
-        if (CallJavaMethod(checkInitMethod))
+        if (CallJavaMethod(jniEnv, checkInitMethod))
         {
             mDoCheckReadyMethod = jniEnv->GetStaticMethodID
                 (mPaymentClass, "doCheckReady", "(J)Z");
+            // Asynchronous requests use the overloads that take a
+            // timeout and return a handle.
             mDoPurchaseMethod = jniEnv->GetStaticMethodID
                 (mPaymentClass, "doPurchase",
-                 "(Ljava/lang/String;Ljava/lang/String;J)Z");
+                 "(Ljava/lang/String;Ljava/lang/String;JIZ)J");
             mDoQueryPurchasesMethod = jniEnv->GetStaticMethodID
-                (mPaymentClass, "doQueryPurchases", "(J)Z");
+                (mPaymentClass, "doQueryPurchases", "(JIZ)J");
+            mDoQueryPurchasesDeltaMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doQueryPurchasesDelta", "(JIZ)J");
             mDoQueryProductMethod = jniEnv->GetStaticMethodID
-                (mPaymentClass, "doQueryProduct", "(Ljava/lang/String;J)Z");
+                (mPaymentClass, "doQueryProduct", "(Ljava/lang/String;JIZ)J");
+            mDoQueryProductsMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doQueryProducts", "([Ljava/lang/String;JIZ)J");
             mDoConsumeMethod = jniEnv->GetStaticMethodID
                 (mPaymentClass, "doConsume", "(Ljava/lang/String;)Z");
+            mDoConsumeAsyncMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doConsumeAsync", "(Ljava/lang/String;JIZ)J");
+            mDoGetMetricsSnapshotMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doGetMetricsSnapshot", "()Ljava/lang/String;");
+            mDoCancelMethod = jniEnv->GetStaticMethodID
+                (mPaymentClass, "doCancel", "(J)Z");
 
             if (0 == mDoCheckReadyMethod     ||
                 0 == mDoQueryPurchasesMethod ||
+                0 == mDoQueryPurchasesDeltaMethod ||
                 0 == mDoQueryProductMethod   ||
+                0 == mDoQueryProductsMethod  ||
                 0 == mDoPurchaseMethod       ||
-                0 == mDoConsumeMethod)
+                0 == mDoConsumeMethod        ||
+                0 == mDoConsumeAsyncMethod   ||
+                0 == mDoGetMetricsSnapshotMethod ||
+                0 == mDoCancelMethod)
             {
                 LOGE("Cannot find all methods on Java class");
             }
@@ -295,30 +723,80 @@ GooglePlayBilling::GooglePlayBilling(JNIEnv *jniEnv, jclass paymentClass) :
 
     jniEnv->DeleteGlobalRef(mPaymentClass);
     mPaymentClass = 0;
-    mJNIEnv = 0;
+    jniEnv->DeleteGlobalRef(mStringClass);
+    mStringClass = 0;
+    mJavaVM = 0;
 }
 
 GooglePlayBilling::~GooglePlayBilling()
 {
     LOGI("shutting down");
-    if (0 != mJNIEnv)
+
+    // Responses to outstanding requests still reach their callbacks,
+    // but no longer touch this instance.  Waits for any response that
+    // is updating the cache.
+    pthread_mutex_lock(&sInstancesLock);
+    sInstances.erase(mInstanceId);
+    pthread_mutex_unlock(&sInstancesLock);
+
+    JNIEnv *env = GetJNIEnv();
+    if (0 != env)
     {
         if (0 != mPaymentClass)
         {
             // Disable onready callbacks
 
-            CallJavaMethod(mDoCheckReadyMethod, (jlong )0);
+            CallJavaMethod(env, mDoCheckReadyMethod, (jlong )0);
 
-            mJNIEnv->DeleteGlobalRef(mPaymentClass);
+            env->DeleteGlobalRef(mPaymentClass);
             mPaymentClass = 0;
         }
+        if (0 != mStringClass)
+        {
+            env->DeleteGlobalRef(mStringClass);
+            mStringClass = 0;
+        }
+    }
+
+    pthread_rwlock_destroy(&mCacheLock);
+}
+
+JNIEnv *
+GooglePlayBilling::GetJNIEnv()
+{
+    if (0 == mJavaVM)
+    {
+        return 0;
+    }
+
+    JNIEnv *env = 0;
+    const jint status = mJavaVM->GetEnv((void **)&env, JNI_VERSION_1_6);
+    if (JNI_OK == status)
+    {
+        return env;
+    }
+    if (JNI_EDETACHED != status)
+    {
+        LOGE("GetEnv failed: %d", (int )status);
+        return 0;
     }
+
+    if (JNI_OK != mJavaVM->AttachCurrentThread((AttachEnvPtr )&env, 0))
+    {
+        LOGE("failed to attach thread to JavaVM");
+        return 0;
+    }
+    LOGI("attached thread to JavaVM");
+
+    pthread_once(&sAttachedThreadKeyOnce, CreateAttachedThreadKey);
+    pthread_setspecific(sAttachedThreadKey, mJavaVM);
+    return env;
 }
 
 bool
-GooglePlayBilling::CallJavaMethod(jmethodID method, ...)
+GooglePlayBilling::CheckJavaCall(JNIEnv *env, jmethodID method)
 {
-    if (0 == mJNIEnv)
+    if (0 == env)
     {
         LOGE("attempt to call Java with no JNI env set");
         return false;
@@ -333,36 +811,97 @@ GooglePlayBilling::CallJavaMethod(jmethodID method, ...)
         LOGE("attempt to call null Java method");
         return false;
     }
+    return true;
+}
+
+void
+GooglePlayBilling::ClearJavaException(JNIEnv *env)
+{
+    jthrowable exc = env->ExceptionOccurred();
+    if (exc)
+    {
+        LOGE("!! exception in Java call:");
+        env->ExceptionDescribe();
+        env->ExceptionClear();
+        env->DeleteLocalRef(exc);
+    }
+}
+
+bool
+GooglePlayBilling::CallJavaMethod(JNIEnv *env, jmethodID method, ...)
+{
+    if (!CheckJavaCall(env, method))
+    {
+        return false;
+    }
 
     va_list args;
     va_start(args, method);
 
     LOGI("making call to Java ...");
     jboolean ret =
-        mJNIEnv->CallStaticBooleanMethodV(mPaymentClass, method, args);
-    jthrowable exc = mJNIEnv->ExceptionOccurred();
-    if (exc)
+        env->CallStaticBooleanMethodV(mPaymentClass, method, args);
+    ClearJavaException(env);
+    LOGI("done");
+
+    va_end(args);
+
+    return !!ret;
+}
+
+bool
+GooglePlayBilling::StartRequest(JNIEnv *env, RequestHandle *handle,
+                                jmethodID method, ...)
+{
+    if (!CheckJavaCall(env, method))
     {
-        LOGE("!! exception in Java call:");
-        mJNIEnv->ExceptionDescribe();
-        mJNIEnv->ExceptionClear();
+        return false;
+    }
+
+    va_list args;
+    va_start(args, method);
+
+    LOGI("making request to Java ...");
+    jlong ret = env->CallStaticLongMethodV(mPaymentClass, method, args);
+    if (env->ExceptionCheck())
+    {
+        ClearJavaException(env);
+        ret = 0;
     }
     LOGI("done");
 
     va_end(args);
 
-    return !!ret;
+    if (0 != handle)
+    {
+        *handle = ret;
+    }
+    return (0 != ret);
 }
 
 bool
 GooglePlayBilling::QueryPurchases(void *ctx,
-                                  GooglePlayBilling::PurchaseQueryCB callback)
+                                  GooglePlayBilling::PurchaseQueryCB callback,
+                                  unsigned timeoutMs, RequestHandle *handle)
 {
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
+    {
+        LOGE("call to QueryPurchases before initialization");
+        return false;
+    }
+
     QueryContext *queryCtx = new QueryContext;
+    queryCtx->billingId = mInstanceId;
+    queryCtx->cacheGeneration = PurchasesGeneration();
     queryCtx->callerContext = ctx;
     queryCtx->callback = callback;
+    queryCtx->pageCallback = 0;
+    queryCtx->doneCallback = 0;
 
-    if (!CallJavaMethod(mDoQueryPurchasesMethod, (jlong )(size_t )queryCtx))
+    if (!StartRequest(env, handle, mDoQueryPurchasesMethod,
+                      (jlong )(size_t )queryCtx, (jint )timeoutMs,
+                      (jboolean )(0 != handle)))
     {
         delete queryCtx;
         return false;
@@ -371,23 +910,97 @@ GooglePlayBilling::QueryPurchases(void *ctx,
     return true;
 }
 
+bool
+GooglePlayBilling::QueryPurchasesStreaming(void *ctx,
+                                           PurchasePageCB pageCallback,
+                                           PurchaseQueryDoneCB doneCallback,
+                                           unsigned timeoutMs,
+                                           RequestHandle *handle)
+{
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
+    {
+        LOGE("call to QueryPurchasesStreaming before initialization");
+        return false;
+    }
+    if (0 == pageCallback || 0 == doneCallback)
+    {
+        LOGE("call to QueryPurchasesStreaming with null callback");
+        return false;
+    }
+
+    QueryContext *queryCtx = new QueryContext;
+    queryCtx->billingId = mInstanceId;
+    queryCtx->cacheGeneration = 0;
+    queryCtx->callerContext = ctx;
+    queryCtx->callback = 0;
+    queryCtx->pageCallback = pageCallback;
+    queryCtx->doneCallback = doneCallback;
+
+    if (!StartRequest(env, handle, mDoQueryPurchasesMethod,
+                      (jlong )(size_t )queryCtx, (jint )timeoutMs,
+                      (jboolean )(0 != handle)))
+    {
+        delete queryCtx;
+        return false;
+    }
+
+    return true;
+}
+
+bool
+GooglePlayBilling::QueryPurchasesDelta(void *ctx,
+                                       GooglePlayBilling::PurchaseDeltaCB
+                                       callback,
+                                       unsigned timeoutMs,
+                                       RequestHandle *handle)
+{
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
+    {
+        LOGE("call to QueryPurchasesDelta before initialization");
+        return false;
+    }
+
+    PurchaseDeltaContext *deltaCtx = new PurchaseDeltaContext;
+    deltaCtx->callerContext = ctx;
+    deltaCtx->callback = callback;
+
+    if (!StartRequest(env, handle, mDoQueryPurchasesDeltaMethod,
+                      (jlong )(size_t )deltaCtx, (jint )timeoutMs,
+                      (jboolean )(0 != handle)))
+    {
+        delete deltaCtx;
+        return false;
+    }
+
+    return true;
+}
+
 bool
 GooglePlayBilling::QueryProduct(void *ctx, const char *sku,
-                                GooglePlayBilling::ProductQueryCB callback)
+                                GooglePlayBilling::ProductQueryCB callback,
+                                unsigned timeoutMs, RequestHandle *handle)
 {
-    if (0 == mJNIEnv)
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
     {
         LOGE("call to QueryProduct before initialization");
         return false;
     }
 
     ProductQueryContext *productQueryCtx = new ProductQueryContext;
+    productQueryCtx->billingId = mInstanceId;
     productQueryCtx->callerContext = ctx;
     productQueryCtx->callback = callback;
 
-    jstring jSKU = mJNIEnv->NewStringUTF(sku);
-    const jlong jCtx = (jlong )productQueryCtx;
-    if (!CallJavaMethod(mDoQueryProductMethod, jSKU, jCtx))
+    jstring jSKU = env->NewStringUTF(sku);
+    const jlong jCtx = (jlong )(size_t )productQueryCtx;
+    const bool ok = StartRequest(env, handle, mDoQueryProductMethod, jSKU,
+                                 jCtx, (jint )timeoutMs,
+                                 (jboolean )(0 != handle));
+    env->DeleteLocalRef(jSKU);
+    if (!ok)
     {
         delete productQueryCtx;
         return false;
@@ -396,28 +1009,89 @@ GooglePlayBilling::QueryProduct(void *ctx, const char *sku,
     return true;
 }
 
+bool
+GooglePlayBilling::QueryProducts(void *ctx, const char **skus, size_t numSkus,
+                                 GooglePlayBilling::ProductListQueryCB callback,
+                                 unsigned timeoutMs, RequestHandle *handle)
+{
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
+    {
+        LOGE("call to QueryProducts before initialization");
+        return false;
+    }
+    if (0 == numSkus)
+    {
+        LOGE("call to QueryProducts with no SKUs");
+        return false;
+    }
+
+    // FindClass would use the wrong class loader on threads attached
+    // from native code, hence the cached class.
+    jobjectArray jSKUs =
+        env->NewObjectArray((jsize )numSkus, mStringClass, 0);
+    if (0 == jSKUs)
+    {
+        LOGE("failed to allocate SKU array");
+        return false;
+    }
+
+    for (size_t i = 0 ; i < numSkus ; ++i)
+    {
+        jstring jSKU = env->NewStringUTF(skus[i]);
+        env->SetObjectArrayElement(jSKUs, (jsize )i, jSKU);
+        env->DeleteLocalRef(jSKU);
+    }
+
+    ProductListQueryContext *productsQueryCtx = new ProductListQueryContext;
+    productsQueryCtx->billingId = mInstanceId;
+    productsQueryCtx->callerContext = ctx;
+    productsQueryCtx->callback = callback;
+
+    const jlong jCtx = (jlong )(size_t )productsQueryCtx;
+    const bool ok = StartRequest(env, handle, mDoQueryProductsMethod, jSKUs,
+                                 jCtx, (jint )timeoutMs,
+                                 (jboolean )(0 != handle));
+    env->DeleteLocalRef(jSKUs);
+    if (!ok)
+    {
+        delete productsQueryCtx;
+        return false;
+    }
+
+    return true;
+}
+
 bool
 GooglePlayBilling::ConfirmPurchase(void *ctx, const char *sku,
                                    const char *clientToken,
                                    GooglePlayBilling::PurchaseSuccessCB success,
-                                   GooglePlayBilling::PurchaseFailureCB failure)
+                                   GooglePlayBilling::PurchaseFailureCB failure,
+                                   unsigned timeoutMs, RequestHandle *handle)
 {
-    if (0 == mJNIEnv)
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
     {
         LOGE("call to ConfirmPurchase before initialization");
         return false;
     }
 
     PurchaseContext *purchaseCtx = new PurchaseContext;
+    purchaseCtx->billingId = mInstanceId;
     purchaseCtx->callerContext = ctx;
     purchaseCtx->successCallback = success;
     purchaseCtx->failureCallback = failure;
 
-    jstring jSKU = mJNIEnv->NewStringUTF(sku);
-    jstring jClientToken = mJNIEnv->NewStringUTF(clientToken);
+    jstring jSKU = env->NewStringUTF(sku);
+    jstring jClientToken = env->NewStringUTF(clientToken);
     jlong jCtx = (jlong )(size_t )purchaseCtx;
 
-    if (!CallJavaMethod(mDoPurchaseMethod, jSKU, jClientToken, jCtx))
+    const bool ok = StartRequest(env, handle, mDoPurchaseMethod, jSKU,
+                                 jClientToken, jCtx, (jint )timeoutMs,
+                                 (jboolean )(0 != handle));
+    env->DeleteLocalRef(jSKU);
+    env->DeleteLocalRef(jClientToken);
+    if (!ok)
     {
         delete purchaseCtx;
         return false;
@@ -431,22 +1105,258 @@ GooglePlayBilling::ConsumePurchase(const char *googleToken)
 {
     // TODO: async?
 
-    if (0 == mJNIEnv)
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
     {
         LOGE("call to ConsumePurchase before initialization");
         return false;
     }
 
-    jstring jGoogleToken = mJNIEnv->NewStringUTF(googleToken);
-    return CallJavaMethod(mDoConsumeMethod, jGoogleToken);
+    jstring jGoogleToken = env->NewStringUTF(googleToken);
+    const bool ok = CallJavaMethod(env, mDoConsumeMethod, jGoogleToken);
+    env->DeleteLocalRef(jGoogleToken);
+    if (ok)
+    {
+        InvalidatePurchases();
+    }
+    return ok;
+}
+
+bool
+GooglePlayBilling::ConsumePurchaseAsync(void *ctx, const char *googleToken,
+                                        GooglePlayBilling::ConsumeCB callback,
+                                        unsigned timeoutMs,
+                                        RequestHandle *handle)
+{
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
+    {
+        LOGE("call to ConsumePurchaseAsync before initialization");
+        return false;
+    }
+
+    ConsumeContext *consumeCtx = new ConsumeContext;
+    consumeCtx->billingId = mInstanceId;
+    consumeCtx->callerContext = ctx;
+    consumeCtx->callback = callback;
+
+    jstring jGoogleToken = env->NewStringUTF(googleToken);
+    const jlong jCtx = (jlong )(size_t )consumeCtx;
+    const bool ok = StartRequest(env, handle, mDoConsumeAsyncMethod,
+                                 jGoogleToken, jCtx, (jint )timeoutMs,
+                                 (jboolean )(0 != handle));
+    env->DeleteLocalRef(jGoogleToken);
+    if (!ok)
+    {
+        delete consumeCtx;
+        return false;
+    }
+
+    return true;
+}
+
+bool
+GooglePlayBilling::Cancel(RequestHandle handle)
+{
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
+    {
+        LOGE("call to Cancel before initialization");
+        return false;
+    }
+    if (0 == handle)
+    {
+        return false;
+    }
+
+    return CallJavaMethod(env, mDoCancelMethod, handle);
+}
+
+bool
+GooglePlayBilling::GetMetricsSnapshot(std::string &json)
+{
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env || 0 == mDoGetMetricsSnapshotMethod)
+    {
+        LOGE("call to GetMetricsSnapshot before initialization");
+        return false;
+    }
+
+    jstring jJSON = (jstring )env->CallStaticObjectMethod
+        (mPaymentClass, mDoGetMetricsSnapshotMethod);
+    if (env->ExceptionCheck())
+    {
+        LOGE("!! exception in Java call:");
+        env->ExceptionDescribe();
+        env->ExceptionClear();
+        return false;
+    }
+    if (0 == jJSON)
+    {
+        return false;
+    }
+
+    InitStringFromJString(json, env, jJSON);
+    env->DeleteLocalRef(jJSON);
+    return true;
+}
+
+// ----------------------------------------------------------------------
+// Cache
+// ----------------------------------------------------------------------
+
+void
+GooglePlayBilling::EnableCache(bool enable)
+{
+    pthread_rwlock_wrlock(&mCacheLock);
+    mCacheEnabled = enable;
+    if (!enable)
+    {
+        mProductCache.clear();
+        mPurchaseCache.clear();
+        mPurchaseCacheValid = false;
+    }
+    pthread_rwlock_unlock(&mCacheLock);
+}
+
+bool
+GooglePlayBilling::TryGetProduct(const char *sku, Product &product)
+{
+    bool found = false;
+
+    pthread_rwlock_rdlock(&mCacheLock);
+    ProductMap::const_iterator it = mProductCache.find(sku);
+    if (mProductCache.end() != it)
+    {
+        product = it->second;
+        found = true;
+    }
+    pthread_rwlock_unlock(&mCacheLock);
+
+    return found;
 }
 
+bool
+GooglePlayBilling::TryGetPurchases(PurchaseList &purchases)
+{
+    bool found = false;
+
+    pthread_rwlock_rdlock(&mCacheLock);
+    if (mPurchaseCacheValid)
+    {
+        purchases.clear();
+        purchases.reserve(mPurchaseCache.size());
+        PurchaseMap::const_iterator it = mPurchaseCache.begin();
+        for ( ; mPurchaseCache.end() != it ; ++it)
+        {
+            purchases.push_back(it->second);
+        }
+        found = true;
+    }
+    pthread_rwlock_unlock(&mCacheLock);
+
+    return found;
+}
+
+bool
+GooglePlayBilling::TryGetPurchase(const char *sku, Purchase &purchase)
+{
+    bool found = false;
+
+    pthread_rwlock_rdlock(&mCacheLock);
+    if (mPurchaseCacheValid)
+    {
+        PurchaseMap::const_iterator it = mPurchaseCache.find(sku);
+        if (mPurchaseCache.end() != it)
+        {
+            purchase = it->second;
+            found = true;
+        }
+    }
+    pthread_rwlock_unlock(&mCacheLock);
+
+    return found;
+}
+
+void
+GooglePlayBilling::InvalidateCache()
+{
+    pthread_rwlock_wrlock(&mCacheLock);
+    mProductCache.clear();
+    mPurchaseCache.clear();
+    mPurchaseCacheValid = false;
+    ++mPurchasesGeneration;
+    pthread_rwlock_unlock(&mCacheLock);
+}
+
+void
+GooglePlayBilling::CacheProducts(const Product *products, size_t numProducts)
+{
+    pthread_rwlock_wrlock(&mCacheLock);
+    if (mCacheEnabled)
+    {
+        for (size_t i = 0 ; i < numProducts ; ++i)
+        {
+            if (!products[i].title.empty())
+            {
+                mProductCache[products[i].sku] = products[i];
+            }
+        }
+    }
+    pthread_rwlock_unlock(&mCacheLock);
+}
+
+void
+GooglePlayBilling::CachePurchases(const PurchaseList &purchases,
+                                  unsigned generation)
+{
+    pthread_rwlock_wrlock(&mCacheLock);
+
+    // Drop the list if a purchase or consume completed after the
+    // query started, since it may not reflect it.
+
+    if (mCacheEnabled && generation == mPurchasesGeneration)
+    {
+        mPurchaseCache.clear();
+        const size_t numPurchases = purchases.size();
+        for (size_t i = 0 ; i < numPurchases ; ++i)
+        {
+            mPurchaseCache[purchases[i].sku] = purchases[i];
+        }
+        mPurchaseCacheValid = true;
+    }
+
+    pthread_rwlock_unlock(&mCacheLock);
+}
+
+void
+GooglePlayBilling::InvalidatePurchases()
+{
+    pthread_rwlock_wrlock(&mCacheLock);
+    mPurchaseCache.clear();
+    mPurchaseCacheValid = false;
+    ++mPurchasesGeneration;
+    pthread_rwlock_unlock(&mCacheLock);
+}
+
+unsigned
+GooglePlayBilling::PurchasesGeneration()
+{
+    pthread_rwlock_rdlock(&mCacheLock);
+    const unsigned generation = mPurchasesGeneration;
+    pthread_rwlock_unlock(&mCacheLock);
+    return generation;
+}
+
+// ----------------------------------------------------------------------
+
 bool
 GooglePlayBilling::SetReadyStatusCallback(void *ctx, ReadyStatusCB callback)
 {
     LOGI("setting onreadystatus callback: %p, %p", ctx, callback);
 
-    if (0 == mJNIEnv)
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
     {
         LOGE("call to SetReadyStatusCallback before initialization");
         return false;
@@ -459,14 +1369,46 @@ GooglePlayBilling::SetReadyStatusCallback(void *ctx, ReadyStatusCB callback)
 
     mReadyStatusContext = ctx;
     mReadyStatusCallback = callback;
+    mReadyStatusInfoCallback = 0;
+
+    jlong jCtx = (jlong )mInstanceId;
+    if (0 == callback)
+    {
+        jCtx = 0;
+    }
+
+    return CallJavaMethod(env, mDoCheckReadyMethod, jCtx);
+}
+
+bool
+GooglePlayBilling::SetReadyStatusInfoCallback(void *ctx,
+                                              ReadyStatusInfoCB callback)
+{
+    LOGI("setting onreadystatus info callback: %p, %p", ctx, callback);
+
+    JNIEnv *env = GetJNIEnv();
+    if (0 == env)
+    {
+        LOGE("call to SetReadyStatusInfoCallback before initialization");
+        return false;
+    }
+    if (0 == mDoCheckReadyMethod)
+    {
+        LOGE("call to SetReadyStatusInfoCallback before Java methods bound");
+        return false;
+    }
+
+    mReadyStatusContext = ctx;
+    mReadyStatusCallback = 0;
+    mReadyStatusInfoCallback = callback;
 
-    jlong jCtx = (jlong )(size_t )this;
+    jlong jCtx = (jlong )mInstanceId;
     if (0 == callback)
     {
         jCtx = 0;
     }
 
-    return CallJavaMethod(mDoCheckReadyMethod, jCtx);
+    return CallJavaMethod(env, mDoCheckReadyMethod, jCtx);
 }
 
 } // namespace turbulenz
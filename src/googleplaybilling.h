@@ -6,6 +6,8 @@
 
 #include <string>
 #include <vector>
+#include <unordered_map>
+#include <pthread.h>
 #include <jni.h>
 
 namespace turbulenz
@@ -33,55 +35,242 @@ public:
 
     typedef std::vector<Purchase> PurchaseList;
 
+    typedef std::vector<Product> ProductList;
+
     typedef void (*ReadyStatusCB)(void *ctx, bool ready);
 
+    /// As ReadyStatusCB, with a JSON description of the billing agent
+    /// in use and how it was chosen, e.g.
+    ///   {"agent":"google","probes":[{"name":"google","result":"ready",
+    ///    "ms":412}]}
+    /// 'agentInfo' may be null if no agent has been chosen.
+    typedef void (*ReadyStatusInfoCB)(void *ctx, bool ready,
+                                      const char *agentInfo);
+
     typedef void (*ProductQueryCB)(void *ctx, const Product &product);
 
+    /// 'products' has one entry per requested SKU, in the order they
+    /// were requested.  Entries with an empty title do not exist or
+    /// could not be retrieved.
+    typedef void (*ProductListQueryCB)(void *ctx, const ProductList &products);
+
     /// If 'purchases' is empty, no purchases have been made.  If
     /// 'purchases' contains a single entry with sku == "", an error
     /// occured and the correct list cannot be retrieved.
     typedef void (*PurchaseQueryCB)(void *ctx, const PurchaseList &purchases);
 
+    /// One page of a streaming purchase query.  'page' is only valid
+    /// for the duration of the call.
+    typedef void (*PurchasePageCB)(void *ctx, const PurchaseList &page);
+
+    /// Ends a streaming purchase query.  If 'success' is false, an
+    /// error occured and the pages delivered so far may not be the
+    /// complete list.
+    typedef void (*PurchaseQueryDoneCB)(void *ctx, bool success);
+
+    /// Purchases made and purchases consumed (or otherwise gone)
+    /// since the last QueryPurchasesDelta.  Entries in 'removed' only
+    /// have 'sku' and 'googleToken' set.  If 'unchanged' is true, both
+    /// lists are empty and nothing has changed.  As for
+    /// PurchaseQueryCB, a single entry in 'added' with sku == ""
+    /// means an error occured.
+    typedef void (*PurchaseDeltaCB)(void *ctx, const PurchaseList &added,
+                                    const PurchaseList &removed,
+                                    bool unchanged);
+
     typedef void (*PurchaseSuccessCB)(void *ctx, const Purchase &purchase);
 
     /// message == null means the user cancelled the purchase,
     /// otherwise message contains the error message.
     typedef void (*PurchaseFailureCB)(void *ctx, const char *message);
 
+    /// Identifies an asynchronous request, for Cancel().  0 is never
+    /// a valid handle.
+    typedef jlong RequestHandle;
+
+    /// Called once per ConsumePurchaseAsync request.
+    typedef void (*ConsumeCB)(void *ctx, const char *googleToken,
+                              bool success);
+
+    /// May be called from any thread, as may every other method.
+    /// Threads that are not attached to the VM are attached on first
+    /// use and detached automatically when they exit.
     GooglePlayBilling(JNIEnv *jniEnv, jclass paymentClass = 0);
 
+    /// Requests still outstanding are not cancelled: their callbacks
+    /// are still made (with their own ctx), but no longer update this
+    /// instance's cache.
     ~GooglePlayBilling();
 
     // Set a callback to be notified of ready status changes.  Returns
     // the current status.
     bool SetReadyStatusCallback(void *ctx, ReadyStatusCB callback);
 
+    // As SetReadyStatusCallback, also passing the agent description.
+    // Replaces any callback set with SetReadyStatusCallback, and vice
+    // versa.
+    bool SetReadyStatusInfoCallback(void *ctx, ReadyStatusInfoCB callback);
+
+    /// Every asynchronous request below takes an optional deadline
+    /// and handle.  If 'timeoutMs' is non-zero and the request has
+    /// not completed within that time, it is failed through its usual
+    /// error callback (and any later result is discarded).  If
+    /// 'handle' is non-null, it receives a handle that can be passed
+    /// to Cancel().  Either way, each callback described below is
+    /// made exactly once.
+
     /// If this call returns true, the callback will be called at some
     /// point in the future.  An error may still occur, in which case
     /// the callback is notified (see PurchaseQueryCB).
-    bool QueryPurchases(void *ctx, PurchaseQueryCB callback);
+    bool QueryPurchases(void *ctx, PurchaseQueryCB callback,
+                        unsigned timeoutMs = 0, RequestHandle *handle = 0);
+
+    /// As QueryPurchases, but each page of results is passed to
+    /// 'pageCallback' as soon as it arrives and then discarded, so
+    /// memory use does not grow with the number of purchases.
+    /// 'doneCallback' is called exactly once at the end.  Results are
+    /// not added to the cache (see EnableCache).
+    bool QueryPurchasesStreaming(void *ctx, PurchasePageCB pageCallback,
+                                 PurchaseQueryDoneCB doneCallback,
+                                 unsigned timeoutMs = 0,
+                                 RequestHandle *handle = 0);
+
+    /// As QueryPurchases, but only reports the difference from the
+    /// previous call.  The first call reports every purchase as
+    /// added.  The previous state is shared by all callers.
+    bool QueryPurchasesDelta(void *ctx, PurchaseDeltaCB callback,
+                             unsigned timeoutMs = 0,
+                             RequestHandle *handle = 0);
+
+    /// A query that times out or is cancelled reports the product as
+    /// not found.
+    bool QueryProduct(void *ctx, const char *sku, ProductQueryCB callback,
+                      unsigned timeoutMs = 0, RequestHandle *handle = 0);
 
-    bool QueryProduct(void *ctx, const char *sku, ProductQueryCB callback);
+    /// Query several products with a single request to the billing
+    /// agent.  The callback is called exactly once with all results.
+    bool QueryProducts(void *ctx, const char **skus, size_t numSkus,
+                       ProductListQueryCB callback,
+                       unsigned timeoutMs = 0, RequestHandle *handle = 0);
 
+    /// A purchase that times out is reported to 'failure'.  The user
+    /// may still complete it in the Play UI, in which case it will be
+    /// returned by a later QueryPurchases.
     bool ConfirmPurchase(void *ctx, const char *sku, const char *clientToken,
-                         PurchaseSuccessCB success, PurchaseFailureCB failure);
+                         PurchaseSuccessCB success, PurchaseFailureCB failure,
+                         unsigned timeoutMs = 0, RequestHandle *handle = 0);
 
     bool ConsumePurchase(const char *googleToken);
 
-    void          *mReadyStatusContext;
-    ReadyStatusCB  mReadyStatusCallback;
+    /// Queue a purchase to be consumed without blocking the calling
+    /// thread.  If this returns true, the callback will be called
+    /// exactly once with the result.
+    bool ConsumePurchaseAsync(void *ctx, const char *googleToken,
+                              ConsumeCB callback, unsigned timeoutMs = 0,
+                              RequestHandle *handle = 0);
+
+    /// Fail a request now, through its usual error callback.  Returns
+    /// false if it has already completed (or is about to), in which
+    /// case the callback is made with the real result.
+    bool Cancel(RequestHandle handle);
+
+    /// Fill 'json' with a snapshot of the billing metrics (latency
+    /// histograms, response code counts and queue gauges).  See
+    /// billingmetrics.java for the format.
+    bool GetMetricsSnapshot(std::string &json);
+
+    // ------------------------------------------------------------------
+    // Cache
+    // ------------------------------------------------------------------
+
+    /// Opt in to (or out of) caching query results on the native
+    /// side.  While enabled, every product returned by QueryProduct /
+    /// QueryProducts and every complete purchase list returned by
+    /// QueryPurchases is kept, and can be read back with the TryGet*
+    /// methods below.  Disabling the cache empties it.
+    void EnableCache(bool enable);
+
+    /// Look up a product from an earlier query.  Never calls into
+    /// Java, so is cheap enough to call every frame.  Returns false if
+    /// the cache is disabled or has no entry for 'sku'.  Products
+    /// that do not exist are not cached.
+    bool TryGetProduct(const char *sku, Product &product);
+
+    /// The purchase list from the last QueryPurchases, if nothing has
+    /// been purchased or consumed since.  Returns false if there is no
+    /// such list (in which case QueryPurchases should be called).
+    bool TryGetPurchases(PurchaseList &purchases);
+
+    /// Look up a single owned purchase by SKU, subject to the same
+    /// conditions as TryGetPurchases.  Returns false if the purchase
+    /// list is not cached or does not contain 'sku'.
+    bool TryGetPurchase(const char *sku, Purchase &purchase);
+
+    /// Drop all cached products and purchases.
+    void InvalidateCache();
+
+    // Called from the JNI callbacks to update the cache.
+
+    void CacheProducts(const Product *products, size_t numProducts);
+
+    void CachePurchases(const PurchaseList &purchases, unsigned generation);
+
+    void InvalidatePurchases();
+
+    unsigned PurchasesGeneration();
+
+    void              *mReadyStatusContext;
+    ReadyStatusCB      mReadyStatusCallback;
+    ReadyStatusInfoCB  mReadyStatusInfoCallback;
 
 protected:
 
-    bool CallJavaMethod(jmethodID method, ...);
+    /// The calling thread's env, attaching the thread if necessary.
+    /// Returns 0 if not initialized.
+    JNIEnv *GetJNIEnv();
+
+    bool CallJavaMethod(JNIEnv *env, jmethodID method, ...);
+
+    bool CheckJavaCall(JNIEnv *env, jmethodID method);
 
-    JNIEnv        *mJNIEnv;
+    void ClearJavaException(JNIEnv *env);
+
+    /// Make a request, storing the handle if 'handle' is non-null.
+    /// The last argument must be (jboolean )(0 != handle): Java only
+    /// keeps track of requests that have a deadline or a handle.
+    /// Returns false if the request was not accepted.
+    bool StartRequest(JNIEnv *env, RequestHandle *handle, jmethodID method,
+                      ...);
+
+    // Identifies this instance to the JNI callbacks (see sInstances)
+    unsigned       mInstanceId;
+    JavaVM        *mJavaVM;
     jclass         mPaymentClass;
+    jclass         mStringClass;
     jmethodID      mDoCheckReadyMethod;
     jmethodID      mDoPurchaseMethod;
     jmethodID      mDoQueryPurchasesMethod;
+    jmethodID      mDoQueryPurchasesDeltaMethod;
     jmethodID      mDoQueryProductMethod;
+    jmethodID      mDoQueryProductsMethod;
     jmethodID      mDoConsumeMethod;
+    jmethodID      mDoConsumeAsyncMethod;
+    jmethodID      mDoGetMetricsSnapshotMethod;
+    jmethodID      mDoCancelMethod;
+
+    typedef std::unordered_map<std::string, Product>  ProductMap;
+    typedef std::unordered_map<std::string, Purchase> PurchaseMap;
+
+    // Readers (TryGet*) take the lock shared, so lookups from several
+    // threads do not serialize.  A purchase list is only stored if no
+    // purchase or consume completed while it was being queried, which
+    // is tracked by mPurchasesGeneration.
+    pthread_rwlock_t  mCacheLock;
+    bool              mCacheEnabled;
+    ProductMap        mProductCache;
+    PurchaseMap       mPurchaseCache;
+    bool              mPurchaseCacheValid;
+    unsigned          mPurchasesGeneration;
 
 };
 
@@ -0,0 +1,326 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+
+// Chooses between several registered billing agents (see
+// payment.registerAgent) by creating them all at once, each on its
+// own thread, and keeping the first to report itself ready.  The
+// others are shut down.
+//
+// While a selection is running, the agents' ready reports come here
+// instead of going to native code.  If no agent is ready before the
+// timeout, the first (in registration order) that has been created
+// and has not reported a failure is kept, since it may still become
+// ready.  Failing that, the first agent created is kept, so that
+// billing reports itself unavailable as it would with one agent.
+//
+// The chosen agent's ready report (and any made later) carries a JSON
+// description of the selection (see agentInfo()).
+class agentselector
+{
+    static class Probe
+    {
+        final String               name;
+        final payment.AgentFactory factory;
+        payment.BillingAgent       agent = null;
+        // "pending", "ready", "failed", "timeout", "unavailable" (the
+        // factory returned null) or "cancelled" (another agent won)
+        String                     result = "pending";
+        long                       elapsedMS = -1;
+
+        Probe(String name, payment.AgentFactory factory)
+        {
+            this.name = name;
+            this.factory = factory;
+        }
+    }
+
+    final ArrayList<Probe>  mProbes = new ArrayList<Probe>();
+    final long              mTimeoutMS;
+    final Handler           mHandler = new Handler(Looper.getMainLooper());
+    long                    mStartNS;
+
+    // Guarded by this
+    final IdentityHashMap<payment.BillingAgent, Boolean> mEarlyReports =
+        new IdentityHashMap<payment.BillingAgent, Boolean>();
+    boolean                 mDone = false;
+    Probe                   mChosen = null;
+    long                    mReadyContext = 0;
+
+    final Runnable          mTimeoutRunnable = new Runnable() {
+            @Override public void run() {
+                timeout();
+            }
+        };
+
+    agentselector(final List<Probe> probes, final long timeoutMS)
+    {
+        mProbes.addAll(probes);
+        mTimeoutMS = timeoutMS;
+    }
+
+    static void _log(final String msg)   { payment.BillingAgent._log(msg);   }
+    static void _print(final String msg) { payment.BillingAgent._print(msg); }
+    static void _error(final String msg) { payment.BillingAgent._error(msg); }
+
+    // ------------------------------------------------------------------
+    // Probing
+    // ------------------------------------------------------------------
+
+    void start(final Activity activity, final int purchaseRequestCode)
+    {
+        _log("agentselector: probing " + mProbes.size() + " agents");
+        mStartNS = System.nanoTime();
+        mHandler.postDelayed(mTimeoutRunnable, mTimeoutMS);
+
+        for (final Probe p : mProbes) {
+            new Thread(new Runnable() {
+                    @Override public void run() {
+                        payment.BillingAgent agent = null;
+                        try {
+                            agent = p.factory.create(activity,
+                                                     purchaseRequestCode);
+                        } catch (RuntimeException e) {
+                            _error("agentselector: !! creating " + p.name +
+                                   ": " + e);
+                        }
+                        created(p, agent);
+                    }
+                }, "tzbilling-probe-" + p.name).start();
+        }
+    }
+
+    long elapsedMS()
+    {
+        return (System.nanoTime() - mStartNS) / 1000000;
+    }
+
+    void created(final Probe p, final payment.BillingAgent agent)
+    {
+        synchronized (this) {
+            if (!mDone) {
+                if (null == agent) {
+                    p.result = "unavailable";
+                    p.elapsedMS = elapsedMS();
+                    checkAllFinished();
+                } else {
+                    // Before it connects, so that warmup queries are
+                    // verified.
+                    payment.applyPublicKey(agent);
+                    p.agent = agent;
+                    final Boolean early = mEarlyReports.remove(agent);
+                    if (null != early) {
+                        report(p, early.booleanValue());
+                    }
+                }
+                return;
+            }
+        }
+
+        // Created too late to be considered
+        if (null != agent) {
+            _log("agentselector: " + p.name + " created after selection");
+            agent.shutdown();
+        }
+    }
+
+    // Called from BillingAgent.reportReady.  Returns true if the report
+    // should go no further.
+    boolean onReadyReport(final payment.BillingAgent agent,
+                          final boolean ready)
+    {
+        synchronized (this) {
+            if (mDone) {
+                return (null == mChosen || agent != mChosen.agent);
+            }
+            for (Probe p : mProbes) {
+                if (agent == p.agent) {
+                    report(p, ready);
+                    return true;
+                }
+            }
+
+            // Reported from within its constructor
+            mEarlyReports.put(agent, Boolean.valueOf(ready));
+            return true;
+        }
+    }
+
+    // Guarded by this
+    void report(final Probe p, final boolean ready)
+    {
+        if (!"pending".equals(p.result)) {
+            return;
+        }
+
+        p.elapsedMS = elapsedMS();
+        _log("agentselector: " + p.name + " ready: " + ready + " after " +
+             p.elapsedMS + "ms");
+        if (ready) {
+            p.result = "ready";
+            finish(p);
+        } else {
+            p.result = "failed";
+            checkAllFinished();
+        }
+    }
+
+    // Guarded by this
+    void checkAllFinished()
+    {
+        for (Probe p : mProbes) {
+            if ("pending".equals(p.result)) {
+                return;
+            }
+        }
+        finish(fallback());
+    }
+
+    void timeout()
+    {
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            _error("agentselector: no agent ready after " + mTimeoutMS + "ms");
+            for (Probe p : mProbes) {
+                if ("pending".equals(p.result)) {
+                    p.result = "timeout";
+                    p.elapsedMS = elapsedMS();
+                }
+            }
+            finish(fallback());
+        }
+    }
+
+    // Guarded by this.  The agent to keep when none is ready.
+    Probe fallback()
+    {
+        for (Probe p : mProbes) {
+            if (null != p.agent && "timeout".equals(p.result)) {
+                return p;
+            }
+        }
+        for (Probe p : mProbes) {
+            if (null != p.agent) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    // ------------------------------------------------------------------
+    // Selection
+    // ------------------------------------------------------------------
+
+    // Guarded by this.  'chosen' may be null if no agent could be
+    // created at all.
+    void finish(final Probe chosen)
+    {
+        mDone = true;
+        mChosen = chosen;
+        mEarlyReports.clear();
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        for (Probe p : mProbes) {
+            if ("pending".equals(p.result)) {
+                p.result = "cancelled";
+                p.elapsedMS = elapsedMS();
+            }
+        }
+
+        final payment.BillingAgent agent =
+            (null == chosen)?(null):(chosen.agent);
+        payment.sAgentInfo = agentInfo();
+        payment.sBillingAgent = agent;
+        _print("agentselector: chose " +
+               ((null == chosen)?("no agent"):(chosen.name)));
+
+        // The rest is done on the main thread, outside the lock
+        final long readyContext = mReadyContext;
+        final ArrayList<payment.BillingAgent> losers =
+            new ArrayList<payment.BillingAgent>();
+        for (Probe p : mProbes) {
+            if (null != p.agent && p != chosen) {
+                losers.add(p.agent);
+            }
+        }
+        mHandler.post(new Runnable() {
+                @Override public void run() {
+                    for (payment.BillingAgent loser : losers) {
+                        loser.shutdown();
+                    }
+                    if (null != agent) {
+                        payment.agentChosen(agent, readyContext);
+                    }
+                }
+            });
+    }
+
+    // If the selection is still running, hold 'context' to pass to the
+    // chosen agent and return true.
+    synchronized boolean holdReadyContext(final long context)
+    {
+        if (mDone) {
+            return false;
+        }
+        mReadyContext = context;
+        return true;
+    }
+
+    // Stop probing and shut down every agent not already chosen
+    void cancel()
+    {
+        final ArrayList<payment.BillingAgent> agents =
+            new ArrayList<payment.BillingAgent>();
+        synchronized (this) {
+            mHandler.removeCallbacks(mTimeoutRunnable);
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            for (Probe p : mProbes) {
+                if (null != p.agent) {
+                    agents.add(p.agent);
+                }
+            }
+        }
+        for (payment.BillingAgent agent : agents) {
+            agent.shutdown();
+        }
+    }
+
+    // Guarded by this.  For example:
+    //   {"agent":"google","probes":[{"name":"google","result":"ready",
+    //    "ms":412},{"name":"other","result":"failed","ms":96}]}
+    String agentInfo()
+    {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("{\"agent\":");
+        if (null == mChosen) {
+            sb.append("null");
+        } else {
+            sb.append('"').append(mChosen.name).append('"');
+        }
+        sb.append(",\"probes\":[");
+        for (int i = 0 ; i < mProbes.size() ; ++i) {
+            final Probe p = mProbes.get(i);
+            if (0 != i) {
+                sb.append(',');
+            }
+            sb.append("{\"name\":\"").append(p.name)
+                .append("\",\"result\":\"").append(p.result)
+                .append("\",\"ms\":").append(p.elapsedMS).append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+}
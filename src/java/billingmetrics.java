@@ -0,0 +1,218 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Process-wide counters for billing operations.  Recording is
+// lock-free (atomic increments only) so it can be left on in
+// production.  Readers take a Snapshot, from Java or (as JSON) from
+// native code via payment.doGetMetricsSnapshot().
+public class billingmetrics
+{
+    // Operations with latency histograms
+    public static final int OP_IS_BILLING_SUPPORTED = 0;
+    public static final int OP_GET_SKU_DETAILS = 1;
+    public static final int OP_GET_PURCHASES_PAGE = 2;
+    public static final int OP_GET_BUY_INTENT = 3;
+    public static final int OP_CONSUME_PURCHASE = 4;
+    // Time from posting a callback to its delivery to native code
+    public static final int OP_CALLBACK_DISPATCH = 5;
+    public static final int NUM_OPS = 6;
+
+    static final String[] OP_NAMES = {
+        "isBillingSupported",
+        "getSkuDetails",
+        "getPurchases",
+        "getBuyIntent",
+        "consumePurchase",
+        "callbackDispatch",
+    };
+
+    // Billing response codes (BILLING_RESPONSE_RESULT_*) are counted
+    // by value.  Anything out of range, and RemoteExceptions, are
+    // counted as RESPONSE_OTHER.
+    public static final int RESPONSE_EXCEPTION = -1;
+    static final int        NUM_RESPONSE_CODES = 9;
+    static final int        RESPONSE_OTHER = NUM_RESPONSE_CODES;
+
+    // Latency bucket i counts durations in [2^i, 2^(i+1)) microseconds
+    // (bucket 0 also takes anything under 1us).
+    public static final int NUM_BUCKETS = 32;
+
+    static final AtomicLongArray sBuckets =
+        new AtomicLongArray(NUM_OPS * NUM_BUCKETS);
+    static final AtomicLongArray sCounts = new AtomicLongArray(NUM_OPS);
+    static final AtomicLongArray sTotalMicros = new AtomicLongArray(NUM_OPS);
+    static final AtomicLongArray sMaxMicros = new AtomicLongArray(NUM_OPS);
+    static final AtomicLongArray sResponses =
+        new AtomicLongArray(NUM_RESPONSE_CODES + 1);
+
+    // Gauges
+    static final AtomicInteger   sInFlightCalls = new AtomicInteger(0);
+    static final AtomicInteger   sDeferredRequests = new AtomicInteger(0);
+
+    // Calls refused by the rate limiter or open circuit (ratelimiter)
+    static final AtomicLong      sRateLimitedCalls = new AtomicLong(0);
+
+    // Time from payment.initialize() to the first ready report
+    static final AtomicLong      sInitTimeNS = new AtomicLong(0);
+    static final AtomicLong      sTimeToReadyMicros = new AtomicLong(-1);
+
+    // ------------------------------------------------------------------
+    // Recording
+    // ------------------------------------------------------------------
+
+    // Start timing a call into the billing service
+    static long begin()
+    {
+        sInFlightCalls.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    // Finish a call started with begin(), recording its latency and
+    // response code.
+    static void end(final int op, final long startNS, final int response)
+    {
+        sInFlightCalls.decrementAndGet();
+        recordLatency(op, startNS);
+        recordResponse(response);
+    }
+
+    static void recordLatency(final int op, final long startNS)
+    {
+        final long micros = Math.max(0, (System.nanoTime() - startNS) / 1000);
+        final int bucket = Math.min(NUM_BUCKETS - 1,
+                                    63 - Long.numberOfLeadingZeros(micros | 1));
+
+        sBuckets.incrementAndGet(op * NUM_BUCKETS + bucket);
+        sCounts.incrementAndGet(op);
+        sTotalMicros.addAndGet(op, micros);
+
+        long max;
+        do {
+            max = sMaxMicros.get(op);
+        } while (micros > max && !sMaxMicros.compareAndSet(op, max, micros));
+    }
+
+    static void recordResponse(final int response)
+    {
+        final int idx = (response >= 0 && response < NUM_RESPONSE_CODES)?
+            (response):(RESPONSE_OTHER);
+        sResponses.incrementAndGet(idx);
+    }
+
+    static void markInitialize()
+    {
+        sInitTimeNS.set(System.nanoTime());
+        sTimeToReadyMicros.set(-1);
+    }
+
+    static void markReady()
+    {
+        final long init = sInitTimeNS.get();
+        if (0 != init) {
+            sTimeToReadyMicros.compareAndSet
+                (-1, (System.nanoTime() - init) / 1000);
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Reading
+    // ------------------------------------------------------------------
+
+    public static class Snapshot
+    {
+        public final long[][] buckets = new long[NUM_OPS][NUM_BUCKETS];
+        public final long[]   counts = new long[NUM_OPS];
+        public final long[]   totalMicros = new long[NUM_OPS];
+        public final long[]   maxMicros = new long[NUM_OPS];
+        public final long[]   responses = new long[NUM_RESPONSE_CODES + 1];
+        public int            inFlightCalls;
+        public int            queuedTasks;
+        public int            deferredRequests;
+        public long           rateLimitedCalls;
+        public long           timeToReadyMicros;
+
+        // Upper bound (in microseconds) of the bucket containing the
+        // given fraction (0..1) of samples for 'op', or 0 if empty.
+        public long percentileMicros(final int op, final double fraction)
+        {
+            final long target = (long )Math.ceil(fraction * counts[op]);
+            long seen = 0;
+            for (int b = 0 ; b < NUM_BUCKETS ; ++b) {
+                seen += buckets[op][b];
+                if (seen >= target && 0 != seen) {
+                    return 1L << (b + 1);
+                }
+            }
+            return 0;
+        }
+
+        public String toJSON()
+        {
+            StringBuilder sb = new StringBuilder(1024);
+            sb.append("{\"ops\":{");
+            for (int op = 0 ; op < NUM_OPS ; ++op) {
+                if (0 != op) {
+                    sb.append(',');
+                }
+                sb.append('"').append(OP_NAMES[op]).append("\":{")
+                    .append("\"count\":").append(counts[op])
+                    .append(",\"totalUs\":").append(totalMicros[op])
+                    .append(",\"maxUs\":").append(maxMicros[op])
+                    .append(",\"p50Us\":").append(percentileMicros(op, 0.5))
+                    .append(",\"p90Us\":").append(percentileMicros(op, 0.9))
+                    .append(",\"p99Us\":").append(percentileMicros(op, 0.99))
+                    .append(",\"buckets\":[");
+                for (int b = 0 ; b < NUM_BUCKETS ; ++b) {
+                    if (0 != b) {
+                        sb.append(',');
+                    }
+                    sb.append(buckets[op][b]);
+                }
+                sb.append("]}");
+            }
+            sb.append("},\"responses\":{");
+            for (int r = 0 ; r < NUM_RESPONSE_CODES ; ++r) {
+                sb.append('"').append(r).append("\":").append(responses[r])
+                    .append(',');
+            }
+            sb.append("\"other\":").append(responses[RESPONSE_OTHER])
+                .append("},\"inFlightCalls\":").append(inFlightCalls)
+                .append(",\"queuedTasks\":").append(queuedTasks)
+                .append(",\"deferredRequests\":").append(deferredRequests)
+                .append(",\"rateLimitedCalls\":").append(rateLimitedCalls)
+                .append(",\"timeToReadyUs\":").append(timeToReadyMicros)
+                .append('}');
+            return sb.toString();
+        }
+    }
+
+    // Values are read individually, so a snapshot taken while calls
+    // are being recorded may be very slightly inconsistent.
+    public static Snapshot snapshot()
+    {
+        Snapshot s = new Snapshot();
+        for (int op = 0 ; op < NUM_OPS ; ++op) {
+            for (int b = 0 ; b < NUM_BUCKETS ; ++b) {
+                s.buckets[op][b] = sBuckets.get(op * NUM_BUCKETS + b);
+            }
+            s.counts[op] = sCounts.get(op);
+            s.totalMicros[op] = sTotalMicros.get(op);
+            s.maxMicros[op] = sMaxMicros.get(op);
+        }
+        for (int r = 0 ; r <= NUM_RESPONSE_CODES ; ++r) {
+            s.responses[r] = sResponses.get(r);
+        }
+        s.inFlightCalls = sInFlightCalls.get();
+        s.queuedTasks = payment.BillingAgent.queuedTaskCount();
+        s.deferredRequests = sDeferredRequests.get();
+        s.rateLimitedCalls = sRateLimitedCalls.get();
+        s.timeToReadyMicros = sTimeToReadyMicros.get();
+        return s;
+    }
+}
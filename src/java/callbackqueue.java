@@ -0,0 +1,320 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Delivery of agent callbacks to native code.  Every callback is an
+// Event.  In the default mode each Event is posted to the
+// CallbackHandler as its own Runnable.  In pooled mode, Events come
+// from a preallocated pool and are pushed onto a lock-free
+// multi-producer / single-consumer queue, and a single drain Runnable
+// delivers everything queued, so steady-state delivery allocates
+// nothing.
+class callbackqueue
+{
+    static final int READY = 0;
+    static final int PURCHASE_FAILURE = 1;
+    static final int PURCHASE_RESULT = 2;
+    static final int PURCHASE_INFO = 3;
+    static final int PURCHASE_INFO_PAGE = 4;
+    static final int PURCHASE_INFO_TERMINATOR = 5;
+    static final int PURCHASE_INFO_ERROR = 6;
+    static final int PRODUCT_INFO = 7;
+    static final int PRODUCTS_INFO = 8;
+    static final int CONSUME_RESULT = 9;
+    static final int PURCHASE_DELTA = 10;
+
+    static final int MAX_STRINGS = 5;
+    static final int MAX_ARRAYS = 7;
+
+    // Strings and arrays used by each type of event, so that Events
+    // allocated outside the pool are no bigger than they need to be.
+    static final int[] NUM_STRINGS = { 1, 1, 5, 5, 0, 0, 1, 4, 0, 2, 1 };
+    static final int[] NUM_ARRAYS =  { 0, 0, 0, 0, 5, 0, 0, 0, 4, 0, 7 };
+
+    static final String[]   NO_STRINGS = new String[0];
+    static final String[][] NO_ARRAYS = new String[0][];
+
+    static class Event implements Runnable
+    {
+        // Index in the pool, or -1 if allocated because the pool was
+        // empty (or pooling is off).
+        final int                   slot;
+        // Whether the Event goes through the queue (and is released
+        // after delivery) or is posted directly, decided when it was
+        // created.
+        boolean                     queued;
+
+        int                         type;
+        long                        context;
+        // 'context' is already a native context, not a requesttracker
+        // id (set for errors made by requesttracker itself)
+        boolean                     resolved;
+        boolean                     flag;
+        // When the Event was filled in, for billingmetrics
+        long                        postTimeNS;
+        payment.BillingAgent        agent;
+        final String[]              str;
+        final String[][]            arr;
+
+        // Intrusive link for the pending queue
+        Event                       next;
+
+        // A pool Event, big enough for any type
+        Event(int slot)
+        {
+            this.slot = slot;
+            this.str = new String[MAX_STRINGS];
+            this.arr = new String[MAX_ARRAYS][];
+        }
+
+        // An Event for one use, as 'type'
+        Event(int slot, int type)
+        {
+            this.slot = slot;
+            final int numStrings = NUM_STRINGS[type];
+            final int numArrays = NUM_ARRAYS[type];
+            this.str = (0 == numStrings)?(NO_STRINGS):(new String[numStrings]);
+            this.arr = (0 == numArrays)?(NO_ARRAYS):(new String[numArrays][]);
+            this.type = type;
+        }
+
+        // Non-pooled mode: posted directly to the handler
+        @Override public void run()
+        {
+            deliver(this);
+        }
+
+        void clear()
+        {
+            resolved = false;
+            agent = null;
+            next = null;
+            final int numStrings = NUM_STRINGS[type];
+            for (int i = 0 ; i < numStrings ; ++i) {
+                str[i] = null;
+            }
+            final int numArrays = NUM_ARRAYS[type];
+            for (int i = 0 ; i < numArrays ; ++i) {
+                arr[i] = null;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Pool
+    // ------------------------------------------------------------------
+
+    final Event[]                   mPool;
+    final AtomicIntegerArray        mInUse;
+    final AtomicInteger             mNextSlot = new AtomicInteger(0);
+
+    // ------------------------------------------------------------------
+    // Queue
+    // ------------------------------------------------------------------
+
+    // Most recently pushed Event (the list runs newest to oldest)
+    final AtomicReference<Event>    mHead = new AtomicReference<Event>(null);
+    final AtomicBoolean             mDrainScheduled = new AtomicBoolean(false);
+    final Runnable                  mDrain;
+
+    callbackqueue(int poolSize)
+    {
+        mPool = new Event[poolSize];
+        for (int i = 0 ; i < poolSize ; ++i) {
+            mPool[i] = new Event(i);
+        }
+        mInUse = new AtomicIntegerArray(poolSize);
+
+        mDrain = new Runnable() {
+            @Override public void run() {
+                drain();
+            }
+        };
+    }
+
+    // Claim a free Event, or allocate one if the pool is exhausted.
+    Event acquire(final int type)
+    {
+        final int poolSize = mPool.length;
+        int slot = (mNextSlot.getAndIncrement() & 0x7fffffff) % poolSize;
+        for (int i = 0 ; i < poolSize ; ++i) {
+            if (mInUse.compareAndSet(slot, 0, 1)) {
+                return mPool[slot];
+            }
+            if (++slot == poolSize) {
+                slot = 0;
+            }
+        }
+
+        return new Event(-1, type);
+    }
+
+    void release(Event e)
+    {
+        final int slot = e.slot;
+        if (slot >= 0) {
+            e.clear();
+            mInUse.lazySet(slot, 0);
+        }
+    }
+
+    // Queue 'e' and make sure a drain is scheduled on 'handler'
+    void post(final Event e, final payment.CallbackHandler handler)
+    {
+        Event head;
+        do {
+            head = mHead.get();
+            e.next = head;
+        } while (!mHead.compareAndSet(head, e));
+
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            handler.post(mDrain);
+        }
+    }
+
+    // Deliver everything queued, oldest first.
+    void drain()
+    {
+        // Clear the flag before taking the list, so an Event pushed
+        // after this point schedules another drain.
+        mDrainScheduled.set(false);
+
+        Event e = mHead.getAndSet(null);
+
+        // Reverse into posting order
+        Event ordered = null;
+        while (null != e) {
+            Event next = e.next;
+            e.next = ordered;
+            ordered = e;
+            e = next;
+        }
+
+        while (null != ordered) {
+            Event next = ordered.next;
+            deliver(ordered);
+            release(ordered);
+            ordered = next;
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Delivery
+    // ------------------------------------------------------------------
+
+    // Map a requesttracker id back to the native context, claiming
+    // the request if this is its terminal callback.  Returns 0 if the
+    // request has already completed (timed out or been cancelled).
+    static long resolveContext(final Event e)
+    {
+        final long ctx = e.context;
+        if (e.resolved || !requesttracker.isId(ctx)) {
+            return ctx;
+        }
+
+        final long nativeCtx =
+            (PURCHASE_INFO == e.type || PURCHASE_INFO_PAGE == e.type)?
+            (requesttracker.peek(ctx)):(requesttracker.claim(ctx));
+        if (0 == nativeCtx && payment.isLogging()) {
+            payment.BillingAgent._log("callbackqueue: dropping event " +
+                                      e.type + " for completed request " +
+                                      ctx);
+        }
+        return nativeCtx;
+    }
+
+    static void deliver(final Event e)
+    {
+        final long ctx = resolveContext(e);
+        if (0 == ctx && 0 != e.context) {
+            return;
+        }
+
+        final String[] s = e.str;
+        final String[][] a = e.arr;
+        final payment.NativeCallbacks cb = payment.sNativeCallbacks;
+
+        billingmetrics.recordLatency(billingmetrics.OP_CALLBACK_DISPATCH,
+                                     e.postTimeNS);
+
+        switch (e.type) {
+        case READY:
+            if (payment.isLogging()) {
+                payment.BillingAgent._log("reportReady (h): " +
+                                          Boolean.toString(e.flag));
+            }
+            cb.onReadyStatus(e.agent.mReadyContext, e.flag, s[0]);
+            break;
+
+        case PURCHASE_FAILURE:
+            payment.BillingAgent._error("sendPurchaseFailure (runnable): " +
+                                        "context: " + ctx + ", msg: " + s[0]);
+            cb.onPurchaseFailed(ctx, s[0]);
+            payment.BillingAgent._log("sendPurchaseFailure (runnable): " +
+                                      "back from native");
+            break;
+
+        case PURCHASE_RESULT:
+            if (payment.isLogging()) {
+                payment.BillingAgent._log("sendPurchaseResult (runnable): " +
+                                          "context: " + ctx);
+                payment.BillingAgent._log
+                    ("sendPurchaseResult (h): " +
+                     "sku: " + ((null == s[0])?("null"):(s[0])) +
+                     ", data: " + ((null == s[1])?("null"):(s[1])) +
+                     ", token: " + ((null == s[2])?("null"):(s[2])) +
+                     ", devPayload: " + ((null == s[3])?("null"):(s[3])) +
+                     ", sig: " + ((null == s[4])?("null"):(s[4])));
+            }
+
+            cb.onPurchaseComplete(ctx, s[0], s[1], s[2], s[3], s[4]);
+            payment.BillingAgent._log("sendPurchaseResult (runnable): " +
+                                      "back from native");
+            break;
+
+        case PURCHASE_INFO:
+            cb.purchaseQueryResponse(ctx, s[0], s[1], s[2], s[3], s[4]);
+            break;
+
+        case PURCHASE_INFO_PAGE:
+            cb.purchaseQueryPage(ctx, a[0], a[1], a[2], a[3], a[4]);
+            break;
+
+        case PURCHASE_INFO_TERMINATOR:
+            cb.purchaseQueryResponse(ctx, "", null, null, null, null);
+            break;
+
+        case PURCHASE_INFO_ERROR:
+            cb.purchaseQueryResponse(ctx, null, s[0], null, null, null);
+            break;
+
+        case PRODUCT_INFO:
+            cb.productQueryResponse(ctx, s[0], s[1], s[2], s[3]);
+            break;
+
+        case PRODUCTS_INFO:
+            cb.productsQueryResponse(ctx, a[0], a[1], a[2], a[3]);
+            break;
+
+        case CONSUME_RESULT:
+            cb.consumeResponse(ctx, s[0], e.flag, s[1]);
+            break;
+
+        case PURCHASE_DELTA:
+            cb.purchaseDelta(ctx, s[0], a[0], a[1], a[2], a[3], a[4],
+                             a[5], a[6]);
+            break;
+
+        default:
+            payment.BillingAgent._error("callbackqueue: !! unknown event: " +
+                                        e.type);
+            break;
+        }
+    }
+}
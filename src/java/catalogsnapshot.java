@@ -0,0 +1,275 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+
+// On-disk snapshot of the last known product catalog, so that product
+// queries can be answered at startup before the billing service is
+// bound.  The file is memory-mapped and entries are only decoded when
+// looked up.
+//
+// Each entry records when its details were last fetched from the
+// billing service.  Entries older than 'maxAgeMS' (products that have
+// been removed from the catalog, for example) are neither served nor
+// carried over into the next snapshot.
+//
+// Layout (all integers big-endian):
+//
+//   int   MAGIC
+//   int   VERSION
+//   int   entry count (N)
+//   long  time written (System.currentTimeMillis())
+//   int   N absolute offsets, one per entry
+//   N entries, each a long time last seen (currentTimeMillis())
+//         followed by 4 strings (sku, title, description, price),
+//         each string as an int byte length followed by UTF-8 bytes
+//
+class catalogsnapshot
+{
+    static final int     MAGIC = 0x545a4353; // "TZCS"
+    static final int     VERSION = 2;
+    static final int     HEADER_SIZE = 4 + 4 + 4 + 8;
+
+    // Sanity limit on any single string, to reject corrupt files
+    static final int     MAX_STRING_BYTES = 64 * 1024;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    final File                      mFile;
+    final long                      mMaxAgeMS;
+    MappedByteBuffer                mBuffer = null;
+    HashMap<String, Integer>        mOffsets = null;
+    long                            mWriteTime = 0;
+
+    catalogsnapshot(File file, long maxAgeMS)
+    {
+        mFile = file;
+        mMaxAgeMS = maxAgeMS;
+    }
+
+    // Map the file and index its entries.  Returns false (and leaves
+    // the snapshot empty) if the file is missing or invalid.
+    synchronized boolean load()
+    {
+        mBuffer = null;
+        mOffsets = null;
+
+        if (!mFile.exists()) {
+            payment.BillingAgent._log("catalogsnapshot: no snapshot at " +
+                                      mFile);
+            return false;
+        }
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                      channel.size());
+            } finally {
+                raf.close();
+            }
+
+            if (mBuffer.limit() < HEADER_SIZE ||
+                MAGIC != mBuffer.getInt(0) ||
+                VERSION != mBuffer.getInt(4)) {
+                throw new IOException("bad header");
+            }
+
+            final int count = mBuffer.getInt(8);
+            mWriteTime = mBuffer.getLong(12);
+            if (count < 0 || HEADER_SIZE + 4L * count > mBuffer.limit()) {
+                throw new IOException("bad entry count: " + count);
+            }
+
+            HashMap<String, Integer> offsets =
+                new HashMap<String, Integer>(2 * count);
+            for (int i = 0 ; i < count ; ++i) {
+                final int offset = mBuffer.getInt(HEADER_SIZE + 4 * i);
+                ByteBuffer b = entryBuffer(offset);
+                b.getLong();
+                offsets.put(readString(b), Integer.valueOf(offset));
+            }
+            mOffsets = offsets;
+        } catch (Exception e) {
+            payment.BillingAgent._error("catalogsnapshot: !! ignoring " +
+                                        mFile + ": " + e);
+            mBuffer = null;
+            mOffsets = null;
+            return false;
+        }
+
+        payment.BillingAgent._log("catalogsnapshot: mapped " +
+                                  mOffsets.size() + " entries");
+        return true;
+    }
+
+    synchronized int size()
+    {
+        return (null == mOffsets)?(0):(mOffsets.size());
+    }
+
+    // Decode the entry for 'sku', or return null (also if it is too
+    // old).  'fetchTime' is assigned to the entry, so the caller
+    // decides how stale it is.
+    synchronized productcache.Entry lookup(final String sku, long fetchTime)
+    {
+        if (null == mOffsets) {
+            return null;
+        }
+
+        final Integer offset = mOffsets.get(sku);
+        if (null == offset) {
+            return null;
+        }
+
+        try {
+            ByteBuffer b = entryBuffer(offset.intValue());
+            final long seenTime = b.getLong();
+            if (System.currentTimeMillis() - seenTime > mMaxAgeMS) {
+                return null;
+            }
+            final String _sku = readString(b);
+            final String title = readString(b);
+            final String description = readString(b);
+            final String price = readString(b);
+            productcache.Entry e =
+                new productcache.Entry(_sku, title, description, price,
+                                       fetchTime);
+            e.seenTime = seenTime;
+            return e;
+        } catch (Exception e) {
+            payment.BillingAgent._error("catalogsnapshot: !! bad entry for "
+                                        + sku + ": " + e);
+            return null;
+        }
+    }
+
+    // Decode every entry that is not too old, for merging into a new
+    // snapshot
+    synchronized void collect(HashMap<String, productcache.Entry> out,
+                              long fetchTime)
+    {
+        if (null == mOffsets) {
+            return;
+        }
+        for (String sku : mOffsets.keySet()) {
+            if (!out.containsKey(sku)) {
+                productcache.Entry e = lookup(sku, fetchTime);
+                if (null != e) {
+                    out.put(sku, e);
+                }
+            }
+        }
+    }
+
+    // Write 'entries' to a temporary file and move it over the
+    // snapshot, then re-map.
+    synchronized boolean write(Collection<productcache.Entry> entries)
+    {
+        final int count = entries.size();
+        byte[][] strings = new byte[4 * count][];
+        long[] seenTimes = new long[count];
+        final long now = System.currentTimeMillis();
+        int dataSize = 0;
+        int i = 0;
+        for (productcache.Entry e : entries) {
+            seenTimes[i / 4] = (0 == e.seenTime)?(now):(e.seenTime);
+            strings[i++] = encode(e.sku);
+            strings[i++] = encode(e.title);
+            strings[i++] = encode(e.description);
+            strings[i++] = encode(e.price);
+        }
+        for (byte[] str : strings) {
+            dataSize += 4 + str.length;
+        }
+        dataSize += 8 * count;
+
+        final int indexSize = 4 * count;
+        ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE + indexSize + dataSize);
+        b.putInt(MAGIC);
+        b.putInt(VERSION);
+        b.putInt(count);
+        b.putLong(now);
+
+        int offset = HEADER_SIZE + indexSize;
+        for (int entryIdx = 0 ; entryIdx < count ; ++entryIdx) {
+            b.putInt(offset);
+            offset += 8;
+            for (int s = 0 ; s < 4 ; ++s) {
+                offset += 4 + strings[4 * entryIdx + s].length;
+            }
+        }
+        for (int entryIdx = 0 ; entryIdx < count ; ++entryIdx) {
+            b.putLong(seenTimes[entryIdx]);
+            for (int s = 0 ; s < 4 ; ++s) {
+                final byte[] str = strings[4 * entryIdx + s];
+                b.putInt(str.length);
+                b.put(str);
+            }
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(b.array());
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            payment.BillingAgent._error("catalogsnapshot: !! failed to write "
+                                        + mFile + ": " + e);
+            tmp.delete();
+            return false;
+        }
+
+        payment.BillingAgent._log("catalogsnapshot: wrote " + count +
+                                  " entries");
+        return load();
+    }
+
+    // ------------------------------------------------------------------
+
+    ByteBuffer entryBuffer(int offset) throws IOException
+    {
+        if (offset < HEADER_SIZE || offset >= mBuffer.limit()) {
+            throw new IOException("bad entry offset: " + offset);
+        }
+        ByteBuffer b = mBuffer.duplicate();
+        b.position(offset);
+        return b;
+    }
+
+    static String readString(ByteBuffer b) throws IOException
+    {
+        final int length = b.getInt();
+        if (length < 0 || length > MAX_STRING_BYTES ||
+            length > b.remaining()) {
+            throw new IOException("bad string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        b.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    static byte[] encode(final String s)
+    {
+        return ((null == s)?(""):(s)).getBytes(UTF8);
+    }
+}
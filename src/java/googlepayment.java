@@ -3,16 +3,31 @@
 
 package com.turbulenz.turbulenz;
 
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Base64;
 import android.util.Log;
 import android.app.Activity;
 import android.app.PendingIntent;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
 import android.os.RemoteException;
 import android.text.TextUtils;
 import android.content.Context;
@@ -30,6 +45,7 @@ public class googlepayment extends payment.BillingAgent
     // Billing response codes
     public static final int BILLING_RESPONSE_RESULT_OK = 0;
     public static final int BILLING_RESPONSE_RESULT_USER_CANCELED = 1;
+    public static final int BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE = 2;
     public static final int BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE = 3;
     public static final int BILLING_RESPONSE_RESULT_ITEM_UNAVAILABLE = 4;
     public static final int BILLING_RESPONSE_RESULT_DEVELOPER_ERROR = 5;
@@ -44,6 +60,8 @@ public class googlepayment extends payment.BillingAgent
             return "OK";
         case BILLING_RESPONSE_RESULT_USER_CANCELED:
             return "cancelled by user";
+        case BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE:
+            return "service unavailable";
         case BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE:
             return "billing unavailable";
         case BILLING_RESPONSE_RESULT_ITEM_UNAVAILABLE:
@@ -80,24 +98,74 @@ public class googlepayment extends payment.BillingAgent
         "INAPP_CONTINUATION_TOKEN";
 
     public static final String ITEM_TYPE_INAPP = "inapp";
+
+    // getSkuDetails rejects requests with more than this many entries
+    // in ITEM_ID_LIST.
+    public static final int MAX_SKUS_PER_QUERY = 20;
     //
     // ------------------------------------------------------------------
 
-    Activity             mActivity = null;
-    int                  mPurchaseRequestCode;
+    // Cleared by shutdown() and (mService) on disconnection.  Request
+    // threads can still run after that, for example tasks queued in
+    // the shared pool for an agent that lost the selection, so they
+    // read each of these once and check it.
+    volatile Activity             mActivity = null;
+    int                           mPurchaseRequestCode;
+
+    ServiceConnection             mServiceConnection = null;
+    volatile IInAppBillingService mService = null;
+    final IBinder        mLocalService;
 
-    ServiceConnection    mServiceConnection = null;
-    IInAppBillingService mService = null;
+    // Read by request threads, so volatile
+    volatile boolean     mReady = false;
 
-    boolean              mReady = false;
+    // Purchase requests, identified by their context.  The active
+    // request owns the buy intent UI, the rest wait in FIFO order.
+    // Guarded by mPurchaseLock.
+    static final int     MAX_PURCHASE_REQUESTS = 16;
+
+    // An active purchase flow with no result after this long is
+    // failed, so that it does not hold up the purchases queued behind
+    // it.  0 means no limit.
+    static long          sPurchaseFlowTimeoutMS = 15 * 60 * 1000;
+
+    static class PurchaseRequest
+    {
+        final String sku;
+        final String devPayload;
+        final long   context;
+        // Timed out or cancelled (see requestAbandoned) while active
+        volatile boolean abandoned = false;
+
+        PurchaseRequest(String sku, String devPayload, long context)
+        {
+            this.sku = sku;
+            this.devPayload = devPayload;
+            this.context = context;
+        }
+    }
 
-    // If not zero, indicates that a purchase is already in progress
-    long                 mPurchaseContext = 0;
+    final Object                         mPurchaseLock = new Object();
+    final ArrayDeque<PurchaseRequest>    mPurchaseQueue =
+        new ArrayDeque<PurchaseRequest>();
+    PurchaseRequest                      mActivePurchase = null;
+    // Times out the active flow (see sPurchaseFlowTimeoutMS)
+    Runnable                             mPurchaseWatch = null;
 
     public googlepayment(Activity activity, int purchaseRequestCode)
     {
+        this(activity, purchaseRequestCode, null);
+    }
+
+    // If 'localService' is non-null, connect directly to it instead of
+    // binding to the Play Store (see simulatorpayment).
+    protected googlepayment(Activity activity, int purchaseRequestCode,
+                            IBinder localService)
+    {
+        mLocalService = localService;
         mActivity = activity;
         mPurchaseRequestCode = purchaseRequestCode;
+        mMainHandler = new Handler(Looper.getMainLooper());
 
         // Just listens for connection / disconnection
         mServiceConnection = new ServiceConnection() {
@@ -108,13 +176,23 @@ public class googlepayment extends payment.BillingAgent
                 mService = null;
                 mReady = false;
                 reportReady(false);
+                startReconnecting();
             }
 
             @Override
             public void onServiceConnected(ComponentName name, IBinder service)
             {
                 _log("service connected :)");
-                mService = IInAppBillingService.Stub.asInterface(service);
+                mBindPending = false;
+
+                // Each connection starts with a fresh limiter and a
+                // closed circuit.
+                mMainHandler.removeCallbacks(mProbeRunnable);
+                mCircuitOpen = false;
+                mSuspendedByCircuit = false;
+                mLimiter = new ratelimiter(mCircuitListener);
+                mService = new limitedbillingservice
+                    (IInAppBillingService.Stub.asInterface(service), mLimiter);
 
                 String packageName = mActivity.getPackageName();
                 _log("checking for billing.3 in " + packageName + "...");
@@ -132,16 +210,508 @@ public class googlepayment extends payment.BillingAgent
                     e.printStackTrace();
                 }
 
-                reportReady(mReady);
+                // Before failing held requests, so that no more are
+                // held (see deferRequest)
+                mConnecting = false;
+                if (mReady) {
+                    mReconnecting = false;
+                    mRebindAttempt = 0;
+                    mMainHandler.removeCallbacks(mRebindRunnable);
+                    replayDeferredRequests();
+                    warmUp();
+                } else {
+                    failDeferredRequests("billing not supported");
+                    reportReady(false);
+                }
+            }
+        };
+
+        switch (payment.sBindPolicy) {
+        case payment.BIND_DEFERRED:
+            // Let whatever the main thread is doing now (normally
+            // starting the activity and drawing the first frame)
+            // finish first.
+            _log("binding when the main thread is idle");
+            mMainHandler.post(new Runnable() {
+                    @Override public void run() {
+                        Looper.myQueue().addIdleHandler
+                            (new MessageQueue.IdleHandler() {
+                                @Override public boolean queueIdle() {
+                                    startBind();
+                                    return false;
+                                }
+                            });
+                    }
+                });
+            break;
+        case payment.BIND_LAZY:
+            _log("binding on the first request");
+            break;
+        default:
+            startBind();
+            break;
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Binding
+    // ------------------------------------------------------------------
+
+    // Set once binding has started (see payment.BIND_*).  Until then
+    // requests are deferred, and the first one starts it.
+    final AtomicBoolean  mBindStarted = new AtomicBoolean(false);
+    // From the start of the first bind until it connects or fails.
+    // Requests made meanwhile are deferred too.
+    volatile boolean     mConnecting = false;
+
+    final Runnable       mBindRunnable = new Runnable() {
+            @Override public void run() {
+                startBind();
             }
         };
 
+    // Start binding on the main thread, if not already started
+    void requestBind()
+    {
+        if (!mBindStarted.get()) {
+            mMainHandler.post(mBindRunnable);
+        }
+    }
+
+    // Runs on the main thread (or in the constructor)
+    void startBind()
+    {
+        if (null == mActivity || !mBindStarted.compareAndSet(false, true)) {
+            return;
+        }
+        mConnecting = true;
+        if (!bindBillingService()) {
+            _error("startBind: !! could not bind to the billing service");
+            mConnecting = false;
+            failDeferredRequests("billing service unavailable");
+        }
+    }
+
+    boolean bindBillingService()
+    {
+        if (null != mLocalService) {
+            _log("connecting to local service");
+            mServiceConnection.onServiceConnected(null, mLocalService);
+            return true;
+        }
+
         _log("binding service ...");
-        boolean bound = activity.bindService
+        boolean bound = mActivity.bindService
             (new Intent
              ("com.android.vending.billing.InAppBillingService.BIND"),
              mServiceConnection, Context.BIND_AUTO_CREATE);
         _log("back from bindService: bound: " + Boolean.toString(bound));
+        mBindPending = bound;
+        return bound;
+    }
+
+    // ------------------------------------------------------------------
+    // Reconnection
+    // ------------------------------------------------------------------
+
+    // Rebind delays grow exponentially from the base delay up to the
+    // max, each with up to 50% random jitter.
+    static final long    REBIND_BASE_DELAY_MS = 500;
+    static final long    REBIND_MAX_DELAY_MS = 60 * 1000;
+    static final int     REBIND_MAX_ATTEMPTS = 12;
+
+    // Requests made while reconnecting are held (up to this many) and
+    // replayed once billing is available again, unless they have
+    // waited longer than sDeferredRequestTimeoutMS.
+    static final int     MAX_DEFERRED_REQUESTS = 32;
+    static long          sDeferredRequestTimeoutMS = 30 * 1000;
+    static final long    DEFERRED_SWEEP_INTERVAL_MS = 1000;
+
+    final Handler        mMainHandler;
+    final Random         mRandom = new Random();
+    volatile boolean     mReconnecting = false;
+    int                  mRebindAttempt = 0;
+    // bindService() succeeded but onServiceConnected has not been
+    // called yet
+    volatile boolean     mBindPending = false;
+
+    final Runnable       mRebindRunnable = new Runnable() {
+            @Override public void run() {
+                rebind();
+            }
+        };
+
+    final Runnable       mDeferredSweepRunnable = new Runnable() {
+            @Override public void run() {
+                sweepDeferredRequests();
+            }
+        };
+
+    void startReconnecting()
+    {
+        if (null == mActivity) {
+            return;
+        }
+
+        _log("startReconnecting: service lost, will rebind");
+        mReconnecting = true;
+        mRebindAttempt = 0;
+        scheduleRebind();
+    }
+
+    void scheduleRebind()
+    {
+        if (mRebindAttempt >= REBIND_MAX_ATTEMPTS) {
+            _error("scheduleRebind: !! giving up after " + mRebindAttempt +
+                   " attempts");
+            mReconnecting = false;
+            failDeferredRequests("billing service unavailable");
+            return;
+        }
+
+        final long backoff = Math.min(REBIND_MAX_DELAY_MS,
+                                      REBIND_BASE_DELAY_MS << mRebindAttempt);
+        final long delay = backoff / 2 +
+            (long )(mRandom.nextDouble() * (backoff / 2));
+        ++mRebindAttempt;
+
+        _log("scheduleRebind: attempt " + mRebindAttempt + " in " + delay +
+             "ms");
+        mMainHandler.removeCallbacks(mRebindRunnable);
+        mMainHandler.postDelayed(mRebindRunnable, delay);
+    }
+
+    // Runs on the main thread.  Drop the old binding and bind again.
+    // onServiceConnected ends the cycle; until then keep retrying.  A
+    // bind made by an earlier attempt that is still waiting to connect
+    // is left alone, since unbinding would cancel it.
+    void rebind()
+    {
+        if (null == mActivity || mReady || !mReconnecting) {
+            return;
+        }
+
+        _log("rebind: attempt " + mRebindAttempt);
+        if (mBindPending) {
+            _log("rebind: still waiting for the last bind");
+            scheduleRebind();
+            return;
+        }
+        if (null == mLocalService) {
+            try {
+                mActivity.unbindService(mServiceConnection);
+            } catch (IllegalArgumentException e) {
+                _log("rebind: service was not bound");
+            }
+        }
+        bindBillingService();
+        scheduleRebind();
+    }
+
+    // A request held while the service is reconnecting
+    abstract class DeferredRequest
+    {
+        final long deadline =
+            SystemClock.elapsedRealtime() + sDeferredRequestTimeoutMS;
+
+        // Issue the request again.  Returns false if the agent
+        // refused it.
+        abstract boolean replay();
+
+        // Report failure through the request's callback
+        abstract void fail(String reason);
+    }
+
+    // Guarded by itself
+    final ArrayDeque<DeferredRequest> mDeferredRequests =
+        new ArrayDeque<DeferredRequest>();
+
+    // Whether the service may still become available: binding has
+    // not started or not finished, or the service is reconnecting or
+    // suspended by the circuit breaker.  Each of these is cleared
+    // before held requests are failed.
+    boolean canDefer()
+    {
+        return !mBindStarted.get() || mConnecting || mReconnecting ||
+            mCircuitOpen;
+    }
+
+    // Returns false (the request should fail as 'not ready') unless
+    // the request was queued to be replayed after reconnection.
+    boolean deferRequest(final String what, final DeferredRequest req)
+    {
+        final boolean unbound = !mBindStarted.get();
+        boolean deferred = false;
+
+        synchronized (mDeferredRequests) {
+            // mReady is set before the queue is taken (under this
+            // lock) to be replayed, so if it is still clear here, the
+            // request will be picked up.  Likewise canDefer(), for
+            // the queue being failed.
+            if (!mReady) {
+                if (!canDefer()) {
+                    _error(what + ": not ready.  leaving.");
+                    return false;
+                }
+                if (mDeferredRequests.size() >= MAX_DEFERRED_REQUESTS) {
+                    _error(what + ": !! too many requests waiting for " +
+                           "service");
+                    return false;
+                }
+                mDeferredRequests.add(req);
+                billingmetrics.sDeferredRequests.incrementAndGet();
+                if (1 == mDeferredRequests.size()) {
+                    mMainHandler.postDelayed(mDeferredSweepRunnable,
+                                             DEFERRED_SWEEP_INTERVAL_MS);
+                }
+                deferred = true;
+            }
+        }
+
+        if (!deferred) {
+            _log(what + ": became ready, issuing now");
+            return req.replay();
+        }
+
+        _log(what + ": service unavailable, request deferred");
+        if (unbound) {
+            requestBind();
+        }
+        return true;
+    }
+
+    ArrayList<DeferredRequest> takeDeferredRequests()
+    {
+        synchronized (mDeferredRequests) {
+            ArrayList<DeferredRequest> reqs =
+                new ArrayList<DeferredRequest>(mDeferredRequests);
+            mDeferredRequests.clear();
+            billingmetrics.sDeferredRequests.addAndGet(-reqs.size());
+            mMainHandler.removeCallbacks(mDeferredSweepRunnable);
+            return reqs;
+        }
+    }
+
+    void replayDeferredRequests()
+    {
+        final ArrayList<DeferredRequest> reqs = takeDeferredRequests();
+        if (reqs.isEmpty()) {
+            return;
+        }
+
+        _log("replayDeferredRequests: " + reqs.size() + " requests");
+        final long now = SystemClock.elapsedRealtime();
+        for (DeferredRequest req : reqs) {
+            if (now > req.deadline) {
+                req.fail("timed out waiting for billing service");
+            } else if (!req.replay()) {
+                req.fail("request failed after reconnecting");
+            }
+        }
+    }
+
+    void failDeferredRequests(final String reason)
+    {
+        for (DeferredRequest req : takeDeferredRequests()) {
+            req.fail(reason);
+        }
+    }
+
+    // Fail any held requests whose deadline has passed
+    void sweepDeferredRequests()
+    {
+        final long now = SystemClock.elapsedRealtime();
+        ArrayList<DeferredRequest> expired = new ArrayList<DeferredRequest>();
+        synchronized (mDeferredRequests) {
+            while (!mDeferredRequests.isEmpty() &&
+                   now > mDeferredRequests.peek().deadline) {
+                expired.add(mDeferredRequests.poll());
+            }
+            billingmetrics.sDeferredRequests.addAndGet(-expired.size());
+            if (!mDeferredRequests.isEmpty()) {
+                mMainHandler.postDelayed(mDeferredSweepRunnable,
+                                         DEFERRED_SWEEP_INTERVAL_MS);
+            }
+        }
+
+        for (DeferredRequest req : expired) {
+            req.fail("timed out waiting for billing service");
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Circuit breaker
+    // ------------------------------------------------------------------
+
+    // While the limiter's circuit is open, the agent reports itself
+    // not ready and defers requests as it does while reconnecting.
+    // A probe call is made once the cooldown has passed, and the
+    // agent becomes ready again when one succeeds.
+    static final long    PROBE_RETRY_MS = 250;
+
+    volatile ratelimiter mLimiter = null;
+    volatile boolean     mCircuitOpen = false;
+    // Main thread only.  True if the circuit opening is what made the
+    // agent not ready.
+    boolean              mSuspendedByCircuit = false;
+
+    final ratelimiter.Listener mCircuitListener = new ratelimiter.Listener() {
+            @Override
+            public void onCircuitChanged(final boolean open,
+                                         final long cooldownMS)
+            {
+                mMainHandler.post(new Runnable() {
+                        @Override public void run() {
+                            circuitChanged(open, cooldownMS);
+                        }
+                    });
+            }
+        };
+
+    final Runnable       mProbeRunnable = new Runnable() {
+            @Override public void run() {
+                probeService();
+            }
+        };
+
+    // Runs on the main thread
+    void circuitChanged(final boolean open, final long cooldownMS)
+    {
+        final ratelimiter limiter = mLimiter;
+        // Ignore reports from a previous connection's limiter, or that
+        // have been overtaken by another change.
+        if (null == mActivity || null == limiter || open != limiter.isOpen()) {
+            return;
+        }
+
+        mMainHandler.removeCallbacks(mProbeRunnable);
+        if (open) {
+            mCircuitOpen = true;
+            if (mReady) {
+                _error("circuitChanged: !! too many failures, suspending");
+                mReady = false;
+                mSuspendedByCircuit = true;
+                reportReady(false);
+            }
+            mMainHandler.postDelayed(mProbeRunnable, cooldownMS);
+            return;
+        }
+
+        mCircuitOpen = false;
+        if (mSuspendedByCircuit) {
+            mSuspendedByCircuit = false;
+            if (null != mService && !mReconnecting) {
+                _log("circuitChanged: service recovered");
+                mReady = true;
+                reportReady(true);
+                replayDeferredRequests();
+                return;
+            }
+        }
+        if (!mReconnecting) {
+            failDeferredRequests("billing service unavailable");
+        }
+    }
+
+    // Runs on the main thread.  The limiter lets this call through as
+    // its probe, and reports the result through circuitChanged.
+    void probeService()
+    {
+        final IInAppBillingService service = mService;
+        if (null == mActivity || null == service || !mCircuitOpen) {
+            return;
+        }
+
+        _log("probeService: checking billing service");
+        try {
+            service.isBillingSupported
+                (3, mActivity.getPackageName(), ITEM_TYPE_INAPP);
+        } catch (RemoteException e) {
+            // Reported to the limiter like any other failure
+        }
+
+        // If another call took the probe, try again shortly.  Any
+        // change of state removes this.
+        mMainHandler.postDelayed(mProbeRunnable, PROBE_RETRY_MS);
+    }
+
+    // ------------------------------------------------------------------
+    // Warm-up
+    // ------------------------------------------------------------------
+
+    // The stages still running in the latest warm-up.  Each warm-up
+    // counts its own stages, so that stages left over from an earlier
+    // connection cannot finish a later one.
+    volatile AtomicInteger  mWarmupStages = null;
+
+    void warmupStageDone(final AtomicInteger stages)
+    {
+        if (0 == stages.decrementAndGet()) {
+            if (stages != mWarmupStages) {
+                _log("warmUp: earlier warm-up done");
+                return;
+            }
+            _log("warmUp: done");
+            reportReady(mReady);
+        }
+    }
+
+    // Prefetch the configured catalog SKUs and owned purchases in
+    // parallel, then report ready.
+    void warmUp()
+    {
+        final String[] skus = sWarmupSKUs;
+        final boolean purchases = sWarmupPurchases;
+
+        if (null == skus && !purchases) {
+            mWarmupStages = null;
+            reportReady(mReady);
+            return;
+        }
+
+        _log("warmUp: " + ((null == skus)?(0):(skus.length)) + " SKUs, " +
+             "purchases: " + Boolean.toString(purchases));
+
+        // Hold an extra stage until everything has been started
+        final AtomicInteger stages = new AtomicInteger(1);
+        mWarmupStages = stages;
+
+        if (null != skus) {
+            stages.incrementAndGet();
+            runInBackground(new BackgroundTask() {
+                    @Override public void run() {
+                        threadQueryProducts(skus, 0);
+                        warmupStageDone(stages);
+                    }
+                    @Override public void reject(final String reason) {
+                        _error("warmUp: !! products: " + reason);
+                        warmupStageDone(stages);
+                    }
+                });
+        }
+
+        if (purchases) {
+            stages.incrementAndGet();
+            final ArrayList<String[][]> pages = new ArrayList<String[][]>();
+            final int generation = warmPurchasesGeneration();
+            queryPurchases(new PurchaseQuerySink() {
+                    @Override public void onPage(PurchasePage page) {
+                        pages.add(new String[][] {
+                                page.skus, page.data, page.tokens,
+                                page.devPayloads, page.signatures });
+                    }
+                    @Override public void onComplete() {
+                        storeWarmPurchases(pages, generation);
+                        warmupStageDone(stages);
+                    }
+                    @Override public void onError(String msg) {
+                        _error("warmUp: !! purchases: " + msg);
+                        warmupStageDone(stages);
+                    }
+                });
+        }
+
+        warmupStageDone(stages);
     }
 
     //
@@ -149,9 +719,52 @@ public class googlepayment extends payment.BillingAgent
     {
         _log("shutting down ...");
         mReady = false;
+        mReconnecting = false;
+        mConnecting = false;
+        mMainHandler.removeCallbacks(mRebindRunnable);
+        mMainHandler.removeCallbacks(mProbeRunnable);
+        mMainHandler.removeCallbacks(mBindRunnable);
+        mMainHandler.removeCallbacks(mConsumeRetryRunnable);
+        mCircuitOpen = false;
+        failDeferredRequests("billing shut down");
+        failConsumes("billing shut down");
+
+        // A purchase flow in progress will never finish now, so stop
+        // it holding back background work.
+        boolean flowActive;
+        ArrayList<PurchaseRequest> purchases =
+            new ArrayList<PurchaseRequest>();
+        Runnable watch;
+        synchronized (mPurchaseLock) {
+            flowActive = (null != mActivePurchase);
+            if (flowActive) {
+                purchases.add(mActivePurchase);
+            }
+            purchases.addAll(mPurchaseQueue);
+            mActivePurchase = null;
+            mPurchaseQueue.clear();
+            watch = mPurchaseWatch;
+            mPurchaseWatch = null;
+        }
+        if (null != watch) {
+            mMainHandler.removeCallbacks(watch);
+        }
+        if (flowActive) {
+            endInteractive();
+        }
+        for (PurchaseRequest req : purchases) {
+            super.sendPurchaseFailure(req.context, "billing shut down");
+        }
+
         if (null != mServiceConnection) {
             _log("unbinding service");
-            mActivity.unbindService(mServiceConnection);
+            if (null == mLocalService && mBindStarted.get()) {
+                try {
+                    mActivity.unbindService(mServiceConnection);
+                } catch (IllegalArgumentException e) {
+                    _log("shutdown: service was not bound");
+                }
+            }
             mServiceConnection = null;
             mService = null;
             _log("service unbound");
@@ -160,6 +773,18 @@ public class googlepayment extends payment.BillingAgent
         _log("done shutting down.");
     }
 
+    // Asking for ready status counts as a request, so under
+    // payment.BIND_LAZY it starts the bind.  Passing 0 only disables
+    // the callbacks.
+    @Override
+    public void onReadyStateChange(long context)
+    {
+        if (0 != context) {
+            requestBind();
+        }
+        super.onReadyStateChange(context);
+    }
+
     // Workaround to bug where sometimes response codes come as Long
     // instead of Integer
     static int getResponseCodeFromBundle(Bundle b)
@@ -211,11 +836,75 @@ public class googlepayment extends payment.BillingAgent
     // doPurchase
     // ------------------------------------------------------------------
 
-    void resetPurchaseContext()
+    PurchaseRequest activePurchase()
+    {
+        synchronized (mPurchaseLock) {
+            return mActivePurchase;
+        }
+    }
+
+    // Remove the request for 'ctx'.  If it was the active one, start
+    // the next queued purchase flow.
+    void finishPurchase(final long ctx)
     {
-        // Reset our purchase context
+        PurchaseRequest next = null;
+        boolean flowEnded = false;
+        Runnable watch = null;
+        synchronized (mPurchaseLock) {
+            if (null == mActivePurchase || ctx != mActivePurchase.context) {
+                final Iterator<PurchaseRequest> it = mPurchaseQueue.iterator();
+                while (it.hasNext()) {
+                    if (ctx == it.next().context) {
+                        it.remove();
+                        return;
+                    }
+                }
+                // e.g. a deferred request that failed before starting
+                _log("finishPurchase: no request for context: " + ctx);
+                return;
+            }
+
+            mActivePurchase = mPurchaseQueue.poll();
+            next = mActivePurchase;
+            flowEnded = (null == next);
+            watch = mPurchaseWatch;
+            mPurchaseWatch = null;
+        }
+
+        if (null != watch) {
+            mMainHandler.removeCallbacks(watch);
+        }
+        if (flowEnded) {
+            endInteractive();
+        }
+        if (null != next) {
+            _log("finishPurchase: starting queued purchase: " + next.sku);
+            startPurchaseFlow(next);
+        }
+    }
 
-        mPurchaseContext = 0;
+    // The request for 'ctx' has timed out or been cancelled.  If it is
+    // still queued it is dropped.  If it is active, the Play UI may be
+    // on screen, and its result cannot be told apart from that of a
+    // later flow for the same SKU, so the flow stays active until its
+    // result arrives (and is dropped) or the flow watchdog fires.
+    void abandonPurchase(final long ctx)
+    {
+        synchronized (mPurchaseLock) {
+            if (null != mActivePurchase && ctx == mActivePurchase.context) {
+                _log("abandonPurchase: waiting for the flow for " +
+                     mActivePurchase.sku + " to end");
+                mActivePurchase.abandoned = true;
+                return;
+            }
+            final Iterator<PurchaseRequest> it = mPurchaseQueue.iterator();
+            while (it.hasNext()) {
+                if (ctx == it.next().context) {
+                    it.remove();
+                    return;
+                }
+            }
+        }
     }
 
     @Override
@@ -223,7 +912,7 @@ public class googlepayment extends payment.BillingAgent
     {
         _log("googlepayment.sendPurchaseFailure: " + msg);
         super.sendPurchaseFailure(ctx, msg);
-        resetPurchaseContext();
+        finishPurchase(ctx);
     }
 
     @Override
@@ -234,48 +923,233 @@ public class googlepayment extends payment.BillingAgent
                                       final String signature)
     {
         super.sendPurchaseResult(ctx, sku, data, token, devPayload, signature);
-        resetPurchaseContext();
-    }
-
-    //
-    protected boolean verifyPurchase(String data, String sig)
-    {
-        // A VERY BIG TODO:
-        // _error("verifyPurchase: !! NO CLIENT SIDE PURCHASE VERIFICATION !!");
-        return true;
+        finishPurchase(ctx);
     }
 
-    // Return value indicates whether or not we handled the Intent,
-    // not whether the purchase succeeded.
-    public boolean handleActivityResult(int requestCode, int resultCode,
-                                        Intent data)
-    {
-        _log("handleActivityResult: requestCode: " + requestCode +
-             " resultCode: " + resultCode);
+    // ------------------------------------------------------------------
+    // Purchase verification
+    // ------------------------------------------------------------------
 
-        if (0 == mPurchaseContext) {
-            _error("handleActivityResult: no purchase context registered");
-            return true;
-        }
+    static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
 
-        if (Activity.RESULT_CANCELED == resultCode)  {
-            _log("handleActivityResult: cancelled");
-            sendPurchaseFailure(mPurchaseContext, null);
-            return true;
-        }
+    // Pages with at least this many items are verified in parallel
+    static final int    PARALLEL_VERIFY_MIN_ITEMS = 8;
 
-        if (Activity.RESULT_OK != resultCode) {
-            _log("onActivityResult: unknown result code");
-            sendPurchaseFailure(mPurchaseContext, "Unknown GooglePlay failure");
-            return true;
-        }
+    // The application's public key (decoded once).  null means no key
+    // has been configured and verification is skipped.
+    static volatile PublicKey sPublicKey = null;
+    static volatile boolean   sPublicKeyInvalid = false;
 
-        _log("handleActivityResult: resultCode was OK");
+    static final ThreadLocal<Signature> sSignature =
+        new ThreadLocal<Signature>() {
+            @Override protected Signature initialValue() {
+                try {
+                    return Signature.getInstance(SIGNATURE_ALGORITHM);
+                } catch (Exception e) {
+                    _error("verifyPurchase: !! no " + SIGNATURE_ALGORITHM +
+                           ": " + e);
+                    return null;
+                }
+            }
+        };
+
+    @Override
+    public void requestAbandoned(final int kind, final long context)
+    {
+        switch (kind) {
+        case requesttracker.KIND_PURCHASE:
+            abandonPurchase(context);
+            break;
+        case requesttracker.KIND_PURCHASES_DELTA:
+            // The delta may already have been taken as the baseline
+            resetPurchaseDelta();
+            break;
+        default:
+            break;
+        }
+    }
+
+    @Override
+    public void setPublicKey(final String base64Key)
+    {
+        setVerificationKey(base64Key);
+    }
+
+    // Set the base64-encoded RSA public key (from the Google Play
+    // developer console) used to verify purchase signatures.
+    static void setVerificationKey(final String base64Key)
+    {
+        if (null == base64Key) {
+            sPublicKey = null;
+            sPublicKeyInvalid = false;
+            return;
+        }
+
+        try {
+            byte[] keyBytes = Base64.decode(base64Key, Base64.DEFAULT);
+            sPublicKey = KeyFactory.getInstance("RSA").generatePublic
+                (new X509EncodedKeySpec(keyBytes));
+            sPublicKeyInvalid = false;
+        } catch (Exception e) {
+            _error("setPublicKey: !! invalid public key: " + e);
+            sPublicKey = null;
+            sPublicKeyInvalid = true;
+        }
+    }
+
+    static boolean isVerificationEnabled()
+    {
+        return null != sPublicKey || sPublicKeyInvalid;
+    }
+
+    //
+    protected boolean verifyPurchase(String data, String sig)
+    {
+        if (!isVerificationEnabled()) {
+            // _error("verifyPurchase: !! NO CLIENT SIDE PURCHASE VERIFICATION !!");
+            return true;
+        }
+
+        final PublicKey key = sPublicKey;
+        final Signature verifier = sSignature.get();
+        if (null == key || null == verifier || TextUtils.isEmpty(sig)) {
+            return false;
+        }
+
+        try {
+            verifier.initVerify(key);
+            verifier.update(data.getBytes("UTF-8"));
+            return verifier.verify(Base64.decode(sig, Base64.DEFAULT));
+        } catch (Exception e) {
+            _error("verifyPurchase: !! exception: " + e);
+        }
+        return false;
+    }
+
+    // Verify every purchase in a page, spreading large pages across
+    // the worker pool.  The calling thread takes part, and only waits
+    // for items that a helper has already started, so this cannot
+    // deadlock even if every worker is busy.
+    boolean[] verifyPurchasePage(final PurchasePage page)
+    {
+        final int numItems = page.size();
+        final boolean[] valid = new boolean[numItems];
+        final AtomicInteger nextItem = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(numItems);
+
+        final Runnable verifier = new Runnable() {
+            @Override public void run() {
+                int i;
+                while ((i = nextItem.getAndIncrement()) < numItems) {
+                    valid[i] = verifyPurchase(page.data[i],
+                                              page.signatures[i]);
+                    done.countDown();
+                }
+            }
+        };
+
+        if (numItems >= PARALLEL_VERIFY_MIN_ITEMS) {
+            final ThreadPoolExecutor executor = getWorkerExecutor();
+            final int numHelpers =
+                Math.min(executor.getMaximumPoolSize(),
+                         numItems / PARALLEL_VERIFY_MIN_ITEMS) - 1;
+            for (int h = 0 ; h < numHelpers ; ++h) {
+                try {
+                    executor.execute(verifier);
+                } catch (RejectedExecutionException e) {
+                    break;
+                }
+            }
+        }
+
+        verifier.run();
+
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        return valid;
+    }
+
+    // Return a page without the entries whose signatures are invalid
+    PurchasePage dropUnverifiedPurchases(final PurchasePage page)
+    {
+        final boolean[] valid = verifyPurchasePage(page);
+        int numValid = 0;
+        for (int i = 0 ; i < valid.length ; ++i) {
+            if (valid[i]) {
+                ++numValid;
+            } else {
+                _error("threadQueryPurchases: !! invalid signature for: " +
+                       page.skus[i]);
+            }
+        }
+        if (numValid == valid.length) {
+            return page;
+        }
+
+        PurchasePage verified = new PurchasePage(numValid);
+        int outIdx = 0;
+        for (int i = 0 ; i < valid.length ; ++i) {
+            if (valid[i]) {
+                verified.skus[outIdx] = page.skus[i];
+                verified.data[outIdx] = page.data[i];
+                verified.tokens[outIdx] = page.tokens[i];
+                verified.devPayloads[outIdx] = page.devPayloads[i];
+                verified.signatures[outIdx] = page.signatures[i];
+                ++outIdx;
+            }
+        }
+        return verified;
+    }
+
+    // Return value indicates whether or not we handled the Intent,
+    // not whether the purchase succeeded.
+    public boolean handleActivityResult(int requestCode, int resultCode,
+                                        Intent data)
+    {
+        _log("handleActivityResult: requestCode: " + requestCode +
+             " resultCode: " + resultCode);
+
+        if (mPurchaseRequestCode != requestCode) {
+            _error("handleActivityResult: !! unexpected requestCode");
+            return false;
+        }
+
+        final PurchaseRequest req = activePurchase();
+        if (null == req) {
+            _error("handleActivityResult: no purchase context registered");
+            return true;
+        }
+        final long purchaseContext = req.context;
+
+        if (Activity.RESULT_CANCELED == resultCode)  {
+            _log("handleActivityResult: cancelled");
+            sendPurchaseFailure(purchaseContext, null);
+            return true;
+        }
+
+        if (Activity.RESULT_OK != resultCode) {
+            _log("onActivityResult: unknown result code");
+            sendPurchaseFailure(purchaseContext, "Unknown GooglePlay failure");
+            return true;
+        }
+
+        _log("handleActivityResult: resultCode was OK");
 
         int purchaseResponse = getResponseCodeFromIntent(data);
         if (BILLING_RESPONSE_RESULT_OK != purchaseResponse) {
             _log("onActivityResult: bad purchaseResponse: " + purchaseResponse);
-            sendPurchaseFailure(mPurchaseContext, "Purchase did not complete");
+            sendPurchaseFailure(purchaseContext, "Purchase did not complete");
             return true;
         }
 
@@ -290,213 +1164,641 @@ public class googlepayment extends payment.BillingAgent
 
         if (null == purchaseData || null == purchaseSig) {
             _log("onActivityResult: bad purchase data");
-            sendPurchaseFailure(mPurchaseContext, "bad purchase data");
+            sendPurchaseFailure(purchaseContext, "bad purchase data");
             return true;
         }
 
         if (!verifyPurchase(purchaseData, purchaseSig)) {
             _log("onActivityResult: invalid signature");
-            sendPurchaseFailure(mPurchaseContext, "invalid signature");
+            sendPurchaseFailure(purchaseContext, "invalid signature");
             return true;
         }
 
         // Extract the sku name from the purchase data
 
-        String sku;
-        String googleToken;
-        String devPayload;
-        try {
-            JSONObject o = new JSONObject(purchaseData);
-            sku = o.optString("productId");
-            googleToken = o.optString("token", o.optString("purchaseToken"));
-            devPayload = o.optString("developerPayload");
-        } catch(JSONException e) {
-            sendPurchaseFailure(mPurchaseContext,
+        final String[] fields = new String[purchasejson.PURCHASE_NUM_FIELDS];
+        if (!purchasejson.parsePurchase(purchaseData, fields)) {
+            sendPurchaseFailure(purchaseContext,
                                 "no sku data in GooglePlaye response");
             return true;
         }
+        final String sku = fields[purchasejson.PURCHASE_SKU];
+        final String googleToken = fields[purchasejson.PURCHASE_TOKEN];
+        final String devPayload = fields[purchasejson.PURCHASE_DEV_PAYLOAD];
 
         if (TextUtils.isEmpty(sku)) {
-            sendPurchaseFailure(mPurchaseContext, "sku name was empty");
+            sendPurchaseFailure(purchaseContext, "sku name was empty");
+            return true;
+        }
+
+        // There is no way to tag the buy intent, so check the result
+        // is for this flow, and not one that has since timed out.
+        if (!sku.equals(req.sku) ||
+            (!TextUtils.isEmpty(req.devPayload) &&
+             !req.devPayload.equals(devPayload))) {
+            _error("onActivityResult: !! ignoring result for " + sku +
+                   " while purchasing " + req.sku);
             return true;
         }
 
         _log("onActivityResult: purchase succeeded");
-        sendPurchaseResult(mPurchaseContext, sku, purchaseData, googleToken,
+        sendPurchaseResult(purchaseContext, sku, purchaseData, googleToken,
                            devPayload, purchaseSig);
         return true;
     }
 
-    //
-    void uiThreadDoPurchase(String sku, String extraData)
+    // Get the buy intent on the interactive lane, then launch it on
+    // the UI thread.
+    void threadDoPurchase(final PurchaseRequest req)
     {
-        _log("uiThreadDoPurchase: sku: " + sku);
+        final String sku = req.sku;
+        final long purchaseContext = req.context;
+        _log("threadDoPurchase: sku: " + sku);
+
+        final Activity activity = mActivity;
+        final IInAppBillingService service = mService;
+        if (null == activity || null == service) {
+            sendPurchaseFailure(purchaseContext, "billing shut down");
+            return;
+        }
 
         try {
             Bundle buyIntentBundle =
-                mService.getBuyIntent(3, mActivity.getPackageName(),
-                                      sku, ITEM_TYPE_INAPP, extraData);
+                service.getBuyIntent(3, activity.getPackageName(),
+                                     sku, ITEM_TYPE_INAPP, req.devPayload);
             int response = getResponseCodeFromBundle(buyIntentBundle);
             if (response != BILLING_RESPONSE_RESULT_OK) {
-                _log("uiThreadDoPurchase: Failed to create intent bundle, " +
+                _log("threadDoPurchase: Failed to create intent bundle, " +
                      "response: " + response);
 
                 final String billingResponse = billingResponseString(response);
-                sendPurchaseFailure(mPurchaseContext,
+                sendPurchaseFailure(purchaseContext,
                                     "purchase error: " + billingResponse);
                 return;
             }
 
-            PendingIntent pendingIntent =
+            final PendingIntent pendingIntent =
                 buyIntentBundle.getParcelable(RESPONSE_BUY_INTENT);
-            _log("uiThreadDoPurchase: launching buy intent for sku: " + sku +
-                 ", with request code: " + mPurchaseRequestCode);
-
-            mActivity.startIntentSenderForResult
-                (pendingIntent.getIntentSender(),
-                 mPurchaseRequestCode, new Intent(),
-                 Integer.valueOf(0),  // flagsMask
-                 Integer.valueOf(0),  // flagsValues
-                 Integer.valueOf(0)); // extraFlags
+            activity.runOnUiThread(new Runnable() {
+                    @Override public void run() {
+                        uiThreadLaunchBuyIntent(req, pendingIntent);
+                    }
+                });
         }
-        catch (SendIntentException e) {
-            _error("uiThreadDoPurchase: SendIntentException");
+        catch (RemoteException e) {
+            _error("threadDoPurchase: RemoteException");
             e.printStackTrace();
 
-            sendPurchaseFailure(mPurchaseContext, "failed to send intent");
+            sendPurchaseFailure(purchaseContext, "RemoteException: " + e);
         }
-        catch (RemoteException e) {
-            _error("uiThreadDoPurchase: RemoteException");
+    }
+
+    void uiThreadLaunchBuyIntent(final PurchaseRequest req,
+                                 final PendingIntent pendingIntent)
+    {
+        // Already failed (timed out, cancelled or shut down)
+        if (req != activePurchase()) {
+            _log("uiThreadLaunchBuyIntent: purchase of " + req.sku +
+                 " no longer active");
+            return;
+        }
+        // Nothing is on screen yet, so the flow can end now
+        if (req.abandoned) {
+            _log("uiThreadLaunchBuyIntent: purchase of " + req.sku +
+                 " abandoned");
+            finishPurchase(req.context);
+            return;
+        }
+
+        _log("uiThreadLaunchBuyIntent: launching buy intent for sku: " +
+             req.sku + ", with request code: " + mPurchaseRequestCode);
+
+        try {
+            launchBuyIntent(req, pendingIntent);
+        }
+        catch (SendIntentException e) {
+            _error("uiThreadLaunchBuyIntent: SendIntentException");
             e.printStackTrace();
 
-            sendPurchaseFailure(mPurchaseContext, "RemoteException: " + e);
+            sendPurchaseFailure(req.context, "failed to send intent");
         }
     }
 
+    // Show the purchase UI.  The result arrives through
+    // handleActivityResult.
+    void launchBuyIntent(final PurchaseRequest req,
+                         final PendingIntent pendingIntent)
+        throws SendIntentException
+    {
+        mActivity.startIntentSenderForResult
+            (pendingIntent.getIntentSender(),
+             mPurchaseRequestCode, new Intent(),
+             Integer.valueOf(0),  // flagsMask
+             Integer.valueOf(0),  // flagsValues
+             Integer.valueOf(0)); // extraFlags
+    }
+
     //
     public boolean doPurchase(final String sku, final String devPayload,
-                              long context)
+                              final long context)
     {
         _print("doPurchase: " + sku);
         if (!mReady) {
-            _error("doPurchase: not ready.  leaving.");
-            return false;
+            return deferRequest("doPurchase", new DeferredRequest() {
+                    @Override boolean replay() {
+                        return doPurchase(sku, devPayload, context);
+                    }
+                    @Override void fail(String reason) {
+                        sendPurchaseFailure(context, reason);
+                    }
+                });
         }
 
-        if (0 != mPurchaseContext) {
-            _error("doPurchase: !! purchase in progress (internal err)");
-            return false;
+        final PurchaseRequest req;
+        synchronized (mPurchaseLock) {
+            if (null != mActivePurchase &&
+                mPurchaseQueue.size() + 1 >= MAX_PURCHASE_REQUESTS) {
+                _error("doPurchase: !! too many purchases queued");
+                return false;
+            }
+
+            req = new PurchaseRequest(sku, devPayload, context);
+            if (null != mActivePurchase) {
+                _log("doPurchase: purchase in progress, queueing " + sku +
+                     " (" + mPurchaseQueue.size() + " ahead)");
+                mPurchaseQueue.add(req);
+                return true;
+            }
+            mActivePurchase = req;
         }
 
-        mPurchaseContext = context;
-        mActivity.runOnUiThread(new Runnable() {
+        // Hold back background work until the purchase flow (and any
+        // queued behind it) has finished.
+        beginInteractive();
+        startPurchaseFlow(req);
+        return true;
+    }
+
+    void startPurchaseFlow(final PurchaseRequest req)
+    {
+        watchPurchaseFlow(req);
+        runInteractive(new BackgroundTask() {
                 @Override public void run() {
-                    uiThreadDoPurchase(sku, devPayload);
+                    threadDoPurchase(req);
+                }
+                @Override public void reject(final String reason) {
+                    sendPurchaseFailure(req.context, reason);
                 }
             });
-        return true;
+    }
+
+    // Fail 'req' if it is still the active purchase after
+    // sPurchaseFlowTimeoutMS.  Its result, if one ever arrives, is then
+    // ignored by handleActivityResult (or, for a request made through
+    // payment, dropped as completed).
+    void watchPurchaseFlow(final PurchaseRequest req)
+    {
+        final long timeoutMS = sPurchaseFlowTimeoutMS;
+        if (timeoutMS <= 0) {
+            return;
+        }
+
+        final Runnable watch = new Runnable() {
+                @Override public void run() {
+                    if (req != activePurchase()) {
+                        return;
+                    }
+                    _error("watchPurchaseFlow: !! no result for " + req.sku +
+                           " after " + timeoutMS + "ms");
+                    sendPurchaseFailure(req.context, "purchase timed out");
+                }
+            };
+        synchronized (mPurchaseLock) {
+            if (req != mActivePurchase) {
+                return;
+            }
+            mPurchaseWatch = watch;
+        }
+        mMainHandler.postDelayed(watch, timeoutMS);
     }
 
     // ------------------------------------------------------------------
     // doQueryPurchases
     // ------------------------------------------------------------------
 
-    void threadQueryPurchases(final long context)
+    // One page of getPurchases results, as parallel arrays
+    static class PurchasePage
     {
-        String continueToken = null;
-        do {
+        final String[] skus;
+        final String[] data;
+        final String[] tokens;
+        final String[] devPayloads;
+        final String[] signatures;
+
+        PurchasePage(int size)
+        {
+            skus = new String[size];
+            data = new String[size];
+            tokens = new String[size];
+            devPayloads = new String[size];
+            signatures = new String[size];
+        }
 
-            Bundle ownedItems;
-            try {
-                ownedItems = mService.getPurchases
-                    (3, mActivity.getPackageName(), ITEM_TYPE_INAPP,
-                     continueToken);
-            } catch (RemoteException e) {
-                _error("threadQueryPurchases: remote exception: " + e);
-                e.printStackTrace();
-                sendPurchaseInfoError(context, "failed to communicate "
-                                      + "with Google Play");
-                return;
+        int size()
+        {
+            return skus.length;
+        }
+    }
+
+    // Receives the results of a purchase query.  Exactly one of
+    // onComplete or onError is called, after zero or more pages.
+    interface PurchaseQuerySink
+    {
+        void onPage(PurchasePage page);
+        void onComplete();
+        void onError(String msg);
+    }
+
+    // Forwards results to native code for a given context
+    PurchaseQuerySink nativePurchaseQuerySink(final long context)
+    {
+        return new PurchaseQuerySink() {
+            @Override public void onPage(PurchasePage page) {
+                if (0 != page.size()) {
+                    sendPurchaseInfoPage(context, page.skus, page.data,
+                                         page.tokens, page.devPayloads,
+                                         page.signatures);
+                }
+            }
+            @Override public void onComplete() {
+                sendPurchaseInfoTerminator(context);
             }
+            @Override public void onError(String msg) {
+                sendPurchaseInfoError(context, msg);
+            }
+        };
+    }
+
+    // A getPurchases pagination in flight.  Requests that arrive while
+    // it is running attach to it (are sent the pages delivered so far)
+    // rather than starting another one.  Guarded by mPurchaseQueryLock.
+    static class PurchaseQuery
+    {
+        final ArrayList<PurchaseQuerySink> sinks =
+            new ArrayList<PurchaseQuerySink>();
+        final ArrayList<PurchasePage>      pages =
+            new ArrayList<PurchasePage>();
+    }
+
+    final Object         mPurchaseQueryLock = new Object();
+    PurchaseQuery        mPurchaseQuery = null;
 
-            int response = getResponseCodeFromBundle(ownedItems);
+    void publishPurchasePage(final PurchaseQuery query,
+                             final PurchasePage page)
+    {
+        synchronized (mPurchaseQueryLock) {
+            query.pages.add(page);
+            for (PurchaseQuerySink sink : query.sinks) {
+                sink.onPage(page);
+            }
+        }
+    }
 
-            if (BILLING_RESPONSE_RESULT_OK != response) {
-                _error("doQueryPurchases: !! error retrieving purchased SKUs");
-                // TODO: Should we grab something fom saved data here?
-                sendPurchaseInfoError(context, "error getting purchase data");
+    // Deliver the terminator (errorMsg == null) or error to every sink
+    // attached to 'query' and allow a new query to start.  Does
+    // nothing if 'query' has already finished.
+    void finishPurchaseQuery(final PurchaseQuery query, final String errorMsg)
+    {
+        synchronized (mPurchaseQueryLock) {
+            if (query != mPurchaseQuery) {
                 return;
             }
+            // Cleared first, so that a sink that throws cannot leave
+            // later queries attaching to this one.
+            mPurchaseQuery = null;
+
+            _log("finishPurchaseQuery: " + query.sinks.size() +
+                 " requests, error: " + errorMsg);
+            for (PurchaseQuerySink sink : query.sinks) {
+                if (null == errorMsg) {
+                    sink.onComplete();
+                } else {
+                    sink.onError(errorMsg);
+                }
+            }
+        }
+    }
 
-            if (!ownedItems.containsKey(RESPONSE_INAPP_ITEM_LIST) ||
-                !ownedItems.containsKey(RESPONSE_INAPP_PURCHASE_DATA_LIST) ||
-                !ownedItems.containsKey(RESPONSE_INAPP_SIGNATURE_LIST)) {
+    // Parse a getPurchases response into a page.  Returns null (after
+    // finishing 'query' with the error) on failure.
+    PurchasePage parsePurchasePage(final PurchaseQuery query,
+                                   final Bundle ownedItems)
+    {
+        int response = getResponseCodeFromBundle(ownedItems);
 
-                _error("doQueryPurchases: !! missign fields in response");
-                sendPurchaseInfoError(context, "response missing some fields");
-                return;
+        if (BILLING_RESPONSE_RESULT_OK != response) {
+            _error("doQueryPurchases: !! error retrieving purchased SKUs");
+            // TODO: Should we grab something fom saved data here?
+            finishPurchaseQuery(query, "error getting purchase data");
+            return null;
+        }
+
+        if (!ownedItems.containsKey(RESPONSE_INAPP_ITEM_LIST) ||
+            !ownedItems.containsKey(RESPONSE_INAPP_PURCHASE_DATA_LIST) ||
+            !ownedItems.containsKey(RESPONSE_INAPP_SIGNATURE_LIST)) {
+
+            _error("doQueryPurchases: !! missign fields in response");
+            finishPurchaseQuery(query, "response missing some fields");
+            return null;
+        }
+
+        ArrayList<String> ownedSkus =
+            ownedItems.getStringArrayList(RESPONSE_INAPP_ITEM_LIST);
+        ArrayList<String> purchaseData =
+            ownedItems.getStringArrayList(RESPONSE_INAPP_PURCHASE_DATA_LIST);
+        ArrayList<String> signatureData =
+            ownedItems.getStringArrayList(RESPONSE_INAPP_SIGNATURE_LIST);
+
+        final int numSKUs = purchaseData.size();
+        _print("doQueryPurchases: " + numSKUs + " SKUs:");
+
+        PurchasePage page = new PurchasePage(numSKUs);
+        final String[] fields = new String[purchasejson.PURCHASE_NUM_FIELDS];
+        for (int itemIdx = 0 ; itemIdx < numSKUs ; ++itemIdx) {
+
+            final String sku = ownedSkus.get(itemIdx);
+            final String data = purchaseData.get(itemIdx);
+            final String sig = signatureData.get(itemIdx);
+
+            if (!purchasejson.parsePurchase(data, fields)) {
+                _error("threadQueryPurchases: bad JSON: " + data);
+                finishPurchaseQuery(query, "error in purchase data");
+                return null;
             }
 
-            ArrayList<String> ownedSkus =
-                ownedItems.getStringArrayList(RESPONSE_INAPP_ITEM_LIST);
-            ArrayList<String> purchaseData =
-                ownedItems.getStringArrayList(RESPONSE_INAPP_PURCHASE_DATA_LIST);
-            ArrayList<String> signatureData =
-                ownedItems.getStringArrayList(RESPONSE_INAPP_SIGNATURE_LIST);
+            page.skus[itemIdx] = sku;
+            page.data[itemIdx] = data;
+            page.tokens[itemIdx] = fields[purchasejson.PURCHASE_TOKEN];
+            page.devPayloads[itemIdx] =
+                fields[purchasejson.PURCHASE_DEV_PAYLOAD];
+            page.signatures[itemIdx] = sig;
 
-            final int numSKUs = purchaseData.size();
-            _print("doQueryPurchases: " + numSKUs + " SKUs:");
-            for (int itemIdx = 0 ; itemIdx < numSKUs ; ++itemIdx) {
+            _print(" - " + sku);
+            _log("   - (data:" + data + ", sig: " + sig + ")");
+        }
 
-                final String sku = ownedSkus.get(itemIdx);
-                final String data = purchaseData.get(itemIdx);
-                final String sig = signatureData.get(itemIdx);
+        if (isVerificationEnabled()) {
+            page = dropUnverifiedPurchases(page);
+        }
+        return page;
+    }
 
-                try {
-                    JSONObject o = new JSONObject(data);
-                    //o.optString("productId");
-                    final String googleToken =
-                        o.optString("token", o.optString("purchaseToken"));
-                    final String devPayload = o.optString("developerPayload");
+    // Run 'query' to completion.  Whatever happens, its sinks are
+    // finished exactly once.
+    void threadQueryPurchases(final PurchaseQuery query)
+    {
+        String errorMsg = "error querying purchases";
+        try {
+            String continueToken = null;
+            do {
 
-                    _print(" - " + sku);
-                    _log("   - (data:" + data + ", sig: " + sig + ")");
+                final Activity activity = mActivity;
+                final IInAppBillingService service = mService;
+                if (null == activity || null == service) {
+                    errorMsg = "billing shut down";
+                    return;
+                }
 
-                    sendPurchaseInfo(context, sku, data, googleToken,
-                                     devPayload, sig);
+                Bundle ownedItems;
+                try {
+                    ownedItems = service.getPurchases
+                        (3, activity.getPackageName(), ITEM_TYPE_INAPP,
+                         continueToken);
+                } catch (RemoteException e) {
+                    _error("threadQueryPurchases: remote exception: " + e);
+                    e.printStackTrace();
+                    errorMsg = "failed to communicate with Google Play";
+                    return;
+                }
 
-                } catch(JSONException e) {
-                    _error("threadQueryPurchases: bad JSON: " + data);
-                    sendPurchaseInfoError(context, "error in purchase data");
+                PurchasePage page = parsePurchasePage(query, ownedItems);
+                if (null == page) {
                     return;
                 }
+                publishPurchasePage(query, page);
+
+                continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
+                _log("doQueryPurchases: got continue token: " +
+                     continueToken);
+
+                if (!TextUtils.isEmpty(continueToken)) {
+                    yieldToInteractive();
+                }
+
+            } while(!TextUtils.isEmpty(continueToken));
+
+            errorMsg = null;
+        } catch (RuntimeException e) {
+            _error("threadQueryPurchases: !! " + e);
+            e.printStackTrace();
+        } finally {
+            finishPurchaseQuery(query, errorMsg);
+        }
+    }
+
+    // Attach 'sink' to the query in flight, or start a new one.
+    void queryPurchases(final PurchaseQuerySink sink)
+    {
+        final PurchaseQuery query;
+        synchronized (mPurchaseQueryLock) {
+            if (null != mPurchaseQuery) {
+                _log("queryPurchases: attaching to query in flight (" +
+                     mPurchaseQuery.pages.size() + " pages so far)");
+                for (PurchasePage page : mPurchaseQuery.pages) {
+                    sink.onPage(page);
+                }
+                mPurchaseQuery.sinks.add(sink);
+                return;
             }
 
-            continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
-            _log("doQueryPurchases: got continue token: " + continueToken);
+            query = new PurchaseQuery();
+            query.sinks.add(sink);
+            mPurchaseQuery = query;
+        }
 
-        } while(!TextUtils.isEmpty(continueToken));
+        runInBackground(new BackgroundTask() {
+                @Override public void run() {
+                    threadQueryPurchases(query);
+                }
+                @Override public void reject(final String reason) {
+                    finishPurchaseQuery(query, reason);
+                }
+            });
 
-        sendPurchaseInfoTerminator(context);
+        _log("queryPurchases: queued");
     }
 
     // Call back to native code with the details of each purchase,
     public boolean doQueryPurchases(final long context)
     {
         if (!mReady) {
-            _error("doQueryPurchases: not ready.  leaving.");
-            return false;
+            return deferRequest("doQueryPurchases", new DeferredRequest() {
+                    @Override boolean replay() {
+                        return doQueryPurchases(context);
+                    }
+                    @Override void fail(String reason) {
+                        sendPurchaseInfoError(context, reason);
+                    }
+                });
         }
 
         _log("doQueryPurchases: ");
 
-        (new Thread(new Runnable() {
-                public void run() {
-                    threadQueryPurchases(context);
+        queryPurchases(nativePurchaseQuerySink(context));
+        return true;
+    }
+
+    // ------------------------------------------------------------------
+    // doQueryPurchasesDelta
+    // ------------------------------------------------------------------
+
+    // Purchase tokens (mapped to SKUs) delivered by the last delta
+    // query, or null if there has not been one.  Never modified once
+    // set, so sinks can hold on to it.  Guarded by mPurchaseQueryLock.
+    HashMap<String, String> mPurchaseBaseline = null;
+
+    // Diffs a query against the baseline at the time it was created.
+    // Pages are only kept by reference; if every token is already in
+    // the baseline, and as many tokens are seen as the baseline holds,
+    // nothing else is allocated.
+    class PurchaseDeltaSink implements PurchaseQuerySink
+    {
+        final long                     mContext;
+        final HashMap<String, String>  mBaseline;
+        final ArrayList<PurchasePage>  mPages = new ArrayList<PurchasePage>();
+        int                            mNumMatched = 0;
+        int                            mNumAdded = 0;
+
+        PurchaseDeltaSink(final long context,
+                          final HashMap<String, String> baseline)
+        {
+            mContext = context;
+            mBaseline = baseline;
+        }
+
+        @Override public void onPage(PurchasePage page)
+        {
+            mPages.add(page);
+            final int size = page.size();
+            for (int i = 0 ; i < size ; ++i) {
+                if (null != mBaseline &&
+                    mBaseline.containsKey(page.tokens[i])) {
+                    ++mNumMatched;
+                } else {
+                    ++mNumAdded;
                 }
-            })).start();
+            }
+        }
 
-        _log("doQueryPurchases: launched thread");
+        @Override public void onComplete()
+        {
+            final int baselineSize =
+                (null == mBaseline)?(0):(mBaseline.size());
+            if (null != mBaseline && 0 == mNumAdded &&
+                baselineSize == mNumMatched) {
+                _log("doQueryPurchasesDelta: unchanged (" + baselineSize +
+                     " purchases)");
+                sendPurchaseDeltaUnchanged(mContext);
+                return;
+            }
+
+            final HashMap<String, String> current =
+                new HashMap<String, String>(2 * (mNumMatched + mNumAdded));
+            final PurchasePage added = new PurchasePage(mNumAdded);
+            int addedIdx = 0;
+            for (PurchasePage page : mPages) {
+                final int size = page.size();
+                for (int i = 0 ; i < size ; ++i) {
+                    final String token = page.tokens[i];
+                    current.put(token, page.skus[i]);
+                    if (null == mBaseline || !mBaseline.containsKey(token)) {
+                        added.skus[addedIdx] = page.skus[i];
+                        added.data[addedIdx] = page.data[i];
+                        added.tokens[addedIdx] = token;
+                        added.devPayloads[addedIdx] = page.devPayloads[i];
+                        added.signatures[addedIdx] = page.signatures[i];
+                        ++addedIdx;
+                    }
+                }
+            }
+
+            final ArrayList<String> removedSkus = new ArrayList<String>();
+            final ArrayList<String> removedTokens = new ArrayList<String>();
+            if (null != mBaseline) {
+                for (String token : mBaseline.keySet()) {
+                    if (!current.containsKey(token)) {
+                        removedSkus.add(mBaseline.get(token));
+                        removedTokens.add(token);
+                    }
+                }
+            }
+
+            // A request that has timed out or been cancelled never
+            // sees this delta, so it must not move the baseline.  If
+            // that happens after this check, requestAbandoned resets
+            // the baseline.
+            synchronized (mPurchaseQueryLock) {
+                if (!requesttracker.isId(mContext) ||
+                    0 != requesttracker.peek(mContext)) {
+                    mPurchaseBaseline = current;
+                }
+            }
+
+            _log("doQueryPurchasesDelta: " + addedIdx + " added, " +
+                 removedTokens.size() + " removed");
+            final int numRemoved = removedTokens.size();
+            sendPurchaseDelta(mContext, added.skus, added.data, added.tokens,
+                              added.devPayloads, added.signatures,
+                              removedSkus.toArray(new String[numRemoved]),
+                              removedTokens.toArray(new String[numRemoved]));
+        }
+
+        @Override public void onError(String msg)
+        {
+            sendPurchaseDeltaError(mContext, msg);
+        }
+    }
+
+    // Forget the baseline, so the next delta query reports every
+    // purchase as added.
+    public void resetPurchaseDelta()
+    {
+        synchronized (mPurchaseQueryLock) {
+            mPurchaseBaseline = null;
+        }
+    }
+
+    public boolean doQueryPurchasesDelta(final long context)
+    {
+        if (!mReady) {
+            return deferRequest
+                ("doQueryPurchasesDelta", new DeferredRequest() {
+                    @Override boolean replay() {
+                        return doQueryPurchasesDelta(context);
+                    }
+                    @Override void fail(String reason) {
+                        sendPurchaseDeltaError(context, reason);
+                    }
+                });
+        }
+
+        _log("doQueryPurchasesDelta: ");
+
+        HashMap<String, String> baseline;
+        synchronized (mPurchaseQueryLock) {
+            baseline = mPurchaseBaseline;
+        }
+        queryPurchases(new PurchaseDeltaSink(context, baseline));
         return true;
     }
 
@@ -511,10 +1813,17 @@ public class googlepayment extends payment.BillingAgent
         Bundle productQueryBundle = new Bundle();
         productQueryBundle.putStringArrayList("ITEM_ID_LIST", skuList);
 
+        final Activity activity = mActivity;
+        final IInAppBillingService service = mService;
+        if (null == activity || null == service) {
+            sendProductInfoError(context, sku);
+            return;
+        }
+
         Bundle skuDetails;
         try {
-            skuDetails = mService.getSkuDetails
-                (3, mActivity.getPackageName(), ITEM_TYPE_INAPP,
+            skuDetails = service.getSkuDetails
+                (3, activity.getPackageName(), ITEM_TYPE_INAPP,
                  productQueryBundle);
         } catch (RemoteException e) {
             _error("threadQueryProduct: remote exception: " + e);
@@ -548,40 +1857,190 @@ public class googlepayment extends payment.BillingAgent
         }
 
         String responseString = responseList.get(0);
-        try {
-            JSONObject o = new JSONObject(responseString);
-            final String _sku = o.getString("productId");
-            final String title = o.getString("title");
-            final String description = o.getString("description");
-
-            // TODO: something with price
-            final String price = o.getString("price");
-
-            // TOOD: check _sku == sku
-
-            sendProductInfo(context, sku, title, description, price);
-        } catch(JSONException e) {
+        final String[] fields = new String[purchasejson.DETAILS_NUM_FIELDS];
+        if (!purchasejson.parseSkuDetails(responseString, fields)) {
             _error("threadQueryProduct: failed parsing JSON");
             sendProductInfoError(context, sku);
+            return;
         }
+
+        // TODO: something with price
+        // TOOD: check fields[DETAILS_SKU] == sku
+
+        sendProductInfo(context, sku, fields[purchasejson.DETAILS_TITLE],
+                        fields[purchasejson.DETAILS_DESCRIPTION],
+                        fields[purchasejson.DETAILS_PRICE]);
     }
 
     public boolean doQueryProduct(final String sku, final long context)
     {
         if (!mReady) {
-            _log("doQueryProduct: no ready");
-            return false;
+            return deferRequest("doQueryProduct", new DeferredRequest() {
+                    @Override boolean replay() {
+                        return doQueryProduct(sku, context);
+                    }
+                    @Override void fail(String reason) {
+                        sendProductInfoError(context, sku);
+                    }
+                });
         }
 
         _log("doQueryProduct: " + sku);
 
-        (new Thread(new Runnable() {
-                public void run() {
+        runInBackground(new BackgroundTask() {
+                @Override public void run() {
                     threadQueryProduct(sku, context);
                 }
-            })).start();
+                @Override public void reject(final String reason) {
+                    sendProductInfoError(context, sku);
+                }
+            });
+
+        _log("doQueryProduct: queued");
+        return true;
+    }
+
+    // ------------------------------------------------------------------
+    // doQueryProducts
+    // ------------------------------------------------------------------
+
+    // Query skus[start .. end) in a single getSkuDetails call and
+    // fill in the corresponding entries of the output arrays.  A SKU
+    // given more than once is only requested once, and every entry for
+    // it is filled in.  Entries for unknown products are left as null.
+    // Returns false if the request itself failed.
+    boolean querySkuDetailsRange(final String[] skus, int start, int end,
+                                 String[] titles, String[] descriptions,
+                                 String[] prices)
+    {
+        ArrayList<String> skuList = new ArrayList<String>(end - start);
+        // The first index of each SKU.  Later indices of the same SKU
+        // are chained through nextIndex (-1 ends the chain).
+        HashMap<String, Integer> skuIndices =
+            new HashMap<String, Integer>(2 * (end - start));
+        final int[] nextIndex = new int[end - start];
+        final int[] lastIndex = new int[end - start];
+        for (int i = start ; i < end ; ++i) {
+            nextIndex[i - start] = -1;
+            final Integer first = skuIndices.get(skus[i]);
+            if (null == first) {
+                skuList.add(skus[i]);
+                skuIndices.put(skus[i], Integer.valueOf(i));
+                lastIndex[i - start] = i;
+            } else {
+                final int f = first.intValue() - start;
+                nextIndex[lastIndex[f] - start] = i;
+                lastIndex[f] = i;
+            }
+        }
+        Bundle productQueryBundle = new Bundle();
+        productQueryBundle.putStringArrayList("ITEM_ID_LIST", skuList);
+
+        final Activity activity = mActivity;
+        final IInAppBillingService service = mService;
+        if (null == activity || null == service) {
+            return false;
+        }
+
+        Bundle skuDetails;
+        try {
+            skuDetails = service.getSkuDetails
+                (3, activity.getPackageName(), ITEM_TYPE_INAPP,
+                 productQueryBundle);
+        } catch (RemoteException e) {
+            _error("querySkuDetailsRange: remote exception: " + e);
+            e.printStackTrace();
+            return false;
+        }
+
+        int response = getResponseCodeFromBundle(skuDetails);
+        if (BILLING_RESPONSE_RESULT_OK != response) {
+            _log("querySkuDetailsRange: bad response from getSkuDetails: " +
+                 response);
+            return false;
+        }
+
+        if (!skuDetails.containsKey(RESPONSE_GET_SKU_DETAILS_LIST)) {
+            _log("querySkuDetailsRange: bundle doesn't contain list");
+            return false;
+        }
+
+        ArrayList<String> responseList =
+            skuDetails.getStringArrayList(RESPONSE_GET_SKU_DETAILS_LIST);
+        final String[] fields = new String[purchasejson.DETAILS_NUM_FIELDS];
+        for (String responseString : responseList) {
+            if (!purchasejson.parseSkuDetails(responseString, fields)) {
+                _error("querySkuDetailsRange: failed parsing JSON: " +
+                       responseString);
+                continue;
+            }
+
+            final Integer idx = skuIndices.get(fields[purchasejson.DETAILS_SKU]);
+            if (null == idx) {
+                _error("querySkuDetailsRange: unrequested product: " +
+                       responseString);
+                continue;
+            }
+
+            for (int i = idx.intValue() ; -1 != i ; i = nextIndex[i - start]) {
+                titles[i] = fields[purchasejson.DETAILS_TITLE];
+                descriptions[i] = fields[purchasejson.DETAILS_DESCRIPTION];
+                prices[i] = fields[purchasejson.DETAILS_PRICE];
+            }
+        }
+
+        return true;
+    }
+
+    void threadQueryProducts(final String[] skus, final long context)
+    {
+        final int numSKUs = skus.length;
+        final String[] titles = new String[numSKUs];
+        final String[] descriptions = new String[numSKUs];
+        final String[] prices = new String[numSKUs];
+
+        for (int start = 0 ; start < numSKUs ; start += MAX_SKUS_PER_QUERY) {
+            if (0 != start) {
+                yieldToInteractive();
+            }
+            final int end = Math.min(start + MAX_SKUS_PER_QUERY, numSKUs);
+            if (!querySkuDetailsRange(skus, start, end,
+                                      titles, descriptions, prices)) {
+                // Leave this range as "not found" and carry on with
+                // the rest of the batch.
+                _error("threadQueryProducts: failed to query SKUs " +
+                       start + " to " + end);
+            }
+        }
+
+        sendProductsInfo(context, skus, titles, descriptions, prices);
+    }
+
+    public boolean doQueryProducts(final String[] skus, final long context)
+    {
+        if (!mReady) {
+            return deferRequest("doQueryProducts", new DeferredRequest() {
+                    @Override boolean replay() {
+                        return doQueryProducts(skus, context);
+                    }
+                    @Override void fail(String reason) {
+                        sendProductsInfoError(context, skus);
+                    }
+                });
+        }
+
+        _log("doQueryProducts: " + skus.length + " SKUs");
+
+        runInBackground(new BackgroundTask() {
+                @Override public void run() {
+                    threadQueryProducts(skus, context);
+                }
+                @Override public void reject(final String reason) {
+                    sendProductsInfoError(context, skus);
+                }
+            });
 
-        _log("doQueryProduct: launched thread");
+        _log("doQueryProducts: queued");
         return true;
     }
 
@@ -589,13 +2048,31 @@ public class googlepayment extends payment.BillingAgent
     // doConsume
     // ------------------------------------------------------------------
 
-    // TODO: Make this async?
+    // Returns a billing response code.  A RemoteException is treated
+    // as BILLING_RESPONSE_RESULT_ERROR, since it is usually transient.
+    int consumeToken(final String token)
+    {
+        final Activity activity = mActivity;
+        final IInAppBillingService service = mService;
+        if (null == activity || null == service) {
+            return BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE;
+        }
+
+        try {
+            return service.consumePurchase(3, activity.getPackageName(),
+                                           token);
+        } catch (RemoteException e) {
+            _error("consumeToken: !! exception " + e.toString());
+        }
+        return BILLING_RESPONSE_RESULT_ERROR;
+    }
 
     // Consume a sku
     public boolean doConsume(final String token)
     {
         if (!mReady) {
             _error("doConsume: !! not ready.  leaving.");
+            requestBind();
             return false;
         }
 
@@ -605,20 +2082,216 @@ public class googlepayment extends payment.BillingAgent
         }
 
         _print("doConsume: token: " + token);
+        beginInteractive();
+        final int response;
         try {
-            int response =
-                mService.consumePurchase(3, mActivity.getPackageName(), token);
+            response = consumeToken(token);
+        } finally {
+            endInteractive();
+        }
+        if (BILLING_RESPONSE_RESULT_OK == response) {
+            _log("doConsume: successfully consumed");
+            return true;
+        }
+
+        _error("doConsume: !! failed to consume.  response: " + response);
+        return false;
+    }
+
+    // ------------------------------------------------------------------
+    // doConsumeAsync
+    // ------------------------------------------------------------------
+
+    static final int     MAX_PENDING_CONSUMES = 64;
+    static final int     CONSUME_MAX_ATTEMPTS = 3;
+    static final long    CONSUME_RETRY_DELAY_MS = 250;
+
+    static class ConsumeRequest
+    {
+        final String token;
+        final long   context;
+        int          attempts = 0;
+        // When a retry is due (uptime)
+        long         retryTime = 0;
+
+        ConsumeRequest(String token, long context)
+        {
+            this.token = token;
+            this.context = context;
+        }
+    }
+
+    // Tokens waiting to be consumed, and tokens waiting to be retried
+    // after a transient error.  Guarded by mConsumeLock.
+    final Object              mConsumeLock = new Object();
+    ArrayList<ConsumeRequest> mConsumeQueue = new ArrayList<ConsumeRequest>();
+    ArrayList<ConsumeRequest> mConsumeRetries =
+        new ArrayList<ConsumeRequest>();
+    // A drain of mConsumeQueue is queued or running
+    boolean                   mConsumeDrainScheduled = false;
+
+    // Posted (delayed) to the main thread to retry consumes, so that
+    // neither the interactive lane nor fresh tokens wait for them.
+    final Runnable            mConsumeRetryRunnable = new Runnable() {
+            @Override public void run() {
+                consumeRetriesDue();
+            }
+        };
+
+    // Consume every queued token.  Tokens that fail with a transient
+    // error wait in mConsumeRetries, and are put back on the front of
+    // the queue once their delay has passed.
+    void threadDrainConsumes()
+    {
+        for (;;) {
+            ArrayList<ConsumeRequest> batch;
+            synchronized (mConsumeLock) {
+                if (mConsumeQueue.isEmpty()) {
+                    mConsumeDrainScheduled = false;
+                    return;
+                }
+                batch = mConsumeQueue;
+                mConsumeQueue = new ArrayList<ConsumeRequest>();
+            }
+
+            _log("threadDrainConsumes: " + batch.size() + " tokens");
+            ArrayList<ConsumeRequest> retry = null;
+            for (ConsumeRequest req : batch) {
+                ++req.attempts;
+                final int response = (mReady)?(consumeToken(req.token)):
+                    (BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE);
+                if (BILLING_RESPONSE_RESULT_OK == response) {
+                    sendConsumeResult(req.context, req.token, true, null);
+                } else if (BILLING_RESPONSE_RESULT_ERROR == response &&
+                           req.attempts < CONSUME_MAX_ATTEMPTS) {
+                    req.retryTime = SystemClock.uptimeMillis() +
+                        (CONSUME_RETRY_DELAY_MS << (req.attempts - 1));
+                    if (null == retry) {
+                        retry = new ArrayList<ConsumeRequest>();
+                    }
+                    retry.add(req);
+                } else {
+                    _error("threadDrainConsumes: !! failed to consume " +
+                           req.token + ", response: " + response);
+                    sendConsumeResult(req.context, req.token, false,
+                                      "consume failed: " +
+                                      billingResponseString(response));
+                }
+            }
+
+            if (null != retry) {
+                _log("threadDrainConsumes: retrying " + retry.size() +
+                     " tokens later");
+                long first = Long.MAX_VALUE;
+                for (ConsumeRequest req : retry) {
+                    first = Math.min(first, req.retryTime);
+                }
+                synchronized (mConsumeLock) {
+                    mConsumeRetries.addAll(retry);
+                }
+                mMainHandler.postDelayed
+                    (mConsumeRetryRunnable,
+                     Math.max(0, first - SystemClock.uptimeMillis()));
+            }
+        }
+    }
 
-            if (BILLING_RESPONSE_RESULT_OK == response) {
-                _log("doConsume: successfully consumed");
+    // Runs on the main thread.  Queue the retries that are due, ahead
+    // of any fresh tokens, and wait for the next one.
+    void consumeRetriesDue()
+    {
+        final long now = SystemClock.uptimeMillis();
+        ArrayList<ConsumeRequest> due = new ArrayList<ConsumeRequest>();
+        long next = Long.MAX_VALUE;
+        boolean drain = false;
+        synchronized (mConsumeLock) {
+            final Iterator<ConsumeRequest> it = mConsumeRetries.iterator();
+            while (it.hasNext()) {
+                final ConsumeRequest req = it.next();
+                if (req.retryTime <= now) {
+                    it.remove();
+                    due.add(req);
+                } else {
+                    next = Math.min(next, req.retryTime);
+                }
+            }
+            if (!due.isEmpty()) {
+                mConsumeQueue.addAll(0, due);
+                drain = !mConsumeDrainScheduled;
+                mConsumeDrainScheduled = true;
+            }
+        }
+
+        if (Long.MAX_VALUE != next) {
+            mMainHandler.postDelayed(mConsumeRetryRunnable, next - now);
+        }
+        if (drain) {
+            runConsumeDrain();
+        }
+    }
+
+    void runConsumeDrain()
+    {
+        runInteractive(new BackgroundTask() {
+                @Override public void run() {
+                    threadDrainConsumes();
+                }
+                @Override public void reject(final String reason) {
+                    failConsumes(reason);
+                }
+            });
+    }
+
+    // Fail queued tokens, and those waiting to be retried
+    void failConsumes(final String reason)
+    {
+        ArrayList<ConsumeRequest> failed;
+        synchronized (mConsumeLock) {
+            failed = mConsumeQueue;
+            failed.addAll(mConsumeRetries);
+            mConsumeQueue = new ArrayList<ConsumeRequest>();
+            mConsumeRetries = new ArrayList<ConsumeRequest>();
+            mConsumeDrainScheduled = false;
+        }
+        for (ConsumeRequest req : failed) {
+            sendConsumeResult(req.context, req.token, false, reason);
+        }
+    }
+
+    @Override
+    public boolean doConsumeAsync(final String token, final long context)
+    {
+        if (!mReady) {
+            return deferRequest("doConsumeAsync", new DeferredRequest() {
+                    @Override boolean replay() {
+                        return doConsumeAsync(token, context);
+                    }
+                    @Override void fail(String reason) {
+                        sendConsumeResult(context, token, false, reason);
+                    }
+                });
+        }
+
+        if (null == token || token.equals("")) {
+            _error("doConsumeAsync: !! null or empty token");
+            return false;
+        }
+
+        synchronized (mConsumeLock) {
+            if (mConsumeQueue.size() + mConsumeRetries.size() >=
+                MAX_PENDING_CONSUMES) {
+                _error("doConsumeAsync: !! too many pending consumes");
+                return false;
+            }
+
+            mConsumeQueue.add(new ConsumeRequest(token, context));
+            if (mConsumeDrainScheduled) {
                 return true;
-            } else {
-                _error("doConsume: !! failed to consume.  response: " + response);
             }
-        } catch (RemoteException e) {
-            _error("doConsume: !! exception " + e.toString());
+            mConsumeDrainScheduled = true;
         }
 
-        return false;
+        runConsumeDrain();
+        return true;
     }
 }
@@ -0,0 +1,166 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import com.android.vending.billing.IInAppBillingService;
+
+// Passes each call through a ratelimiter before making it on the real
+// service, and reports the result back.  Refused calls are not made,
+// and return SERVICE_UNAVAILABLE, which callers already handle like
+// any other failed response.  A call that throws anything is reported
+// as RESPONSE_EXCEPTION, so that a probe call always completes.
+//
+// The latency and response of each call that is made are recorded in
+// billingmetrics here, so that time spent waiting for the limiter is
+// not counted as service latency.  Refused calls are only counted in
+// billingmetrics.sRateLimitedCalls.
+class limitedbillingservice implements IInAppBillingService
+{
+    final IInAppBillingService mService;
+    final ratelimiter          mLimiter;
+
+    limitedbillingservice(final IInAppBillingService service,
+                          final ratelimiter limiter)
+    {
+        mService = service;
+        mLimiter = limiter;
+    }
+
+    static Bundle refused()
+    {
+        Bundle b = new Bundle();
+        b.putInt(googlepayment.RESPONSE_CODE,
+                 googlepayment.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE);
+        return b;
+    }
+
+    int responseOf(final Bundle b)
+    {
+        final Object o =
+            (null == b)?(null):(b.get(googlepayment.RESPONSE_CODE));
+        return (o instanceof Number)?(((Number )o).intValue()):
+            (googlepayment.BILLING_RESPONSE_RESULT_OK);
+    }
+
+    @Override public IBinder asBinder()
+    {
+        return mService.asBinder();
+    }
+
+    @Override
+    public int isBillingSupported(int apiVersion, String packageName,
+                                  String type)
+        throws RemoteException
+    {
+        final int op = billingmetrics.OP_IS_BILLING_SUPPORTED;
+        if (!mLimiter.acquire(op)) {
+            return googlepayment.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE;
+        }
+        int response = billingmetrics.RESPONSE_EXCEPTION;
+        final long t0 = billingmetrics.begin();
+        try {
+            response =
+                mService.isBillingSupported(apiVersion, packageName, type);
+            return response;
+        } finally {
+            billingmetrics.end(op, t0, response);
+            mLimiter.onResult(op, response);
+        }
+    }
+
+    @Override
+    public Bundle getSkuDetails(int apiVersion, String packageName,
+                                String type, Bundle skusBundle)
+        throws RemoteException
+    {
+        final int op = billingmetrics.OP_GET_SKU_DETAILS;
+        if (!mLimiter.acquire(op)) {
+            return refused();
+        }
+        int response = billingmetrics.RESPONSE_EXCEPTION;
+        final long t0 = billingmetrics.begin();
+        try {
+            final Bundle result =
+                mService.getSkuDetails(apiVersion, packageName, type,
+                                       skusBundle);
+            response = responseOf(result);
+            return result;
+        } finally {
+            billingmetrics.end(op, t0, response);
+            mLimiter.onResult(op, response);
+        }
+    }
+
+    @Override
+    public Bundle getBuyIntent(int apiVersion, String packageName, String sku,
+                               String type, String developerPayload)
+        throws RemoteException
+    {
+        final int op = billingmetrics.OP_GET_BUY_INTENT;
+        if (!mLimiter.acquire(op)) {
+            return refused();
+        }
+        int response = billingmetrics.RESPONSE_EXCEPTION;
+        final long t0 = billingmetrics.begin();
+        try {
+            final Bundle result =
+                mService.getBuyIntent(apiVersion, packageName, sku, type,
+                                      developerPayload);
+            response = responseOf(result);
+            return result;
+        } finally {
+            billingmetrics.end(op, t0, response);
+            mLimiter.onResult(op, response);
+        }
+    }
+
+    @Override
+    public Bundle getPurchases(int apiVersion, String packageName,
+                               String type, String continuationToken)
+        throws RemoteException
+    {
+        final int op = billingmetrics.OP_GET_PURCHASES_PAGE;
+        if (!mLimiter.acquire(op)) {
+            return refused();
+        }
+        int response = billingmetrics.RESPONSE_EXCEPTION;
+        final long t0 = billingmetrics.begin();
+        try {
+            final Bundle result =
+                mService.getPurchases(apiVersion, packageName, type,
+                                      continuationToken);
+            response = responseOf(result);
+            return result;
+        } finally {
+            billingmetrics.end(op, t0, response);
+            mLimiter.onResult(op, response);
+        }
+    }
+
+    @Override
+    public int consumePurchase(int apiVersion, String packageName,
+                               String purchaseToken)
+        throws RemoteException
+    {
+        final int op = billingmetrics.OP_CONSUME_PURCHASE;
+        if (!mLimiter.acquire(op)) {
+            return googlepayment.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE;
+        }
+        int response = billingmetrics.RESPONSE_EXCEPTION;
+        final long t0 = billingmetrics.begin();
+        try {
+            response =
+                mService.consumePurchase(apiVersion, packageName,
+                                         purchaseToken);
+            return response;
+        } finally {
+            billingmetrics.end(op, t0, response);
+            mLimiter.onResult(op, response);
+        }
+    }
+}
@@ -3,9 +3,22 @@
 
 package com.turbulenz.turbulenz;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.util.Log;
 import android.app.Activity;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.content.Intent;
 
 public class payment
@@ -30,6 +43,18 @@ public class payment
     {
         s_logging = enable;
     }
+    static boolean isLogging()
+    {
+        return s_logging;
+    }
+
+    // Deliver callbacks through a preallocated event pool and a single
+    // drain Runnable per batch, instead of one new Runnable per
+    // callback.
+    static public void enablePooledDispatch(final boolean enable)
+    {
+        BillingAgent.sPooledDispatch = enable;
+    }
 
     //
     //
@@ -44,6 +69,15 @@ public class payment
     //
     static public abstract class BillingAgent
     {
+        /// Work for the shared worker pool.  If the pool refuses the
+        /// task (queue full, or shutting down), reject() is called
+        /// instead of run() and must report the failure through the
+        /// appropriate send*Failure / send*Error callback.
+        public static abstract class BackgroundTask implements Runnable
+        {
+            abstract public void reject(final String reason);
+        }
+
         static void _log(final String msg)   { payment._log(msg);   }
         static void _print(final String msg) { payment._print(msg); }
         static void _error(final String msg) { payment._error(msg); }
@@ -63,20 +97,64 @@ public class payment
                                            final long context);
 
         /// If this returns true, it must call sendPurchaseInfo() for
-        /// each existing purchase, followed by
+        /// each existing purchase (or sendPurchaseInfoPage() for
+        /// several at once), followed by
         /// sendPurchaseInfoTerminator().  If an error occurs, call
         /// sendPurchaseInfoError(), and ensure no further calls are
         /// made.
         abstract public boolean doQueryPurchases(final long context);
 
+        /// As doQueryPurchases, but reports only the purchases added
+        /// and removed since the last delta query.  If this returns
+        /// true, it must call exactly one of sendPurchaseDelta(),
+        /// sendPurchaseDeltaUnchanged() or sendPurchaseDeltaError().
+        /// Agents that cannot track purchases may leave this
+        /// unimplemented.
+        public boolean doQueryPurchasesDelta(final long context)
+        {
+            _error("doQueryPurchasesDelta: not supported by this agent");
+            return false;
+        }
+
         /// If this returns true, it must call either
         /// sendProductInfoError() or sendProductInfo().
         abstract public boolean doQueryProduct(final String sku,
                                                final long context);
 
+        /// If this returns true, it must call either
+        /// sendProductsInfoError() or sendProductsInfo() exactly once,
+        /// with entries in the same order as 'skus'.  Agents that
+        /// cannot batch queries may leave this unimplemented.
+        public boolean doQueryProducts(final String[] skus,
+                                       final long context)
+        {
+            _error("doQueryProducts: not supported by this agent");
+            return false;
+        }
+
         /// Consume the purchase corresponding to the agent-token.
         abstract public boolean doConsume(final String token);
 
+        /// As doConsume, but without blocking the caller.  If this
+        /// returns true, it must call sendConsumeResult() exactly
+        /// once.  The default implementation runs doConsume() in the
+        /// interactive lane.
+        public boolean doConsumeAsync(final String token, final long context)
+        {
+            runInteractive(new BackgroundTask() {
+                    @Override public void run() {
+                        final boolean consumed = doConsume(token);
+                        sendConsumeResult(context, token, consumed,
+                                          (consumed)?(null):
+                                          ("failed to consume"));
+                    }
+                    @Override public void reject(final String reason) {
+                        sendConsumeResult(context, token, false, reason);
+                    }
+                });
+            return true;
+        }
+
         boolean    mIsReady = false;
         long       mReadyContext = 0;
 
@@ -113,10 +191,611 @@ public class payment
         {
         }
 
+        /// Verify purchase signatures with 'base64Key' (null to stop
+        /// verifying).  Agents that cannot verify purchases may leave
+        /// this unimplemented.
+        public void setPublicKey(final String base64Key)
+        {
+            _log("setPublicKey: not supported by this agent");
+        }
+
+        /// Called when the request with id 'context' (see
+        /// requesttracker) has timed out or been cancelled, after its
+        /// error callback has been sent.  Anything the agent sends for
+        /// it later is dropped, so the agent may stop any work still
+        /// queued for it.  'kind' is a requesttracker.KIND_* value.
+        public void requestAbandoned(final int kind, final long context)
+        {
+        }
+
+        // ------------------------------------------------------------
+        // Product cache
+        // ------------------------------------------------------------
+
+        static long         sProductCacheTTLMS = 5 * 60 * 1000;
+        static long         sProductCacheStaleMS = 60 * 60 * 1000;
+        static int          sProductCacheMaxEntries = 256;
+
+        final productcache  mProductCache =
+            new productcache(sProductCacheTTLMS, sProductCacheStaleMS,
+                             sProductCacheMaxEntries);
+
+        /// Serve a product query from the cache if possible.  Stale
+        /// entries are returned immediately and refreshed in the
+        /// background.  On a miss, the query goes to the agent.
+        public boolean queryProductCached(final String sku,
+                                          final long context)
+        {
+            final productcache.Entry e = mProductCache.lookup(sku);
+            if (null == e) {
+                if (waitForSnapshot(new Runnable() {
+                        @Override public void run() {
+                            if (!queryProductCached(sku, context)) {
+                                sendProductInfoError(context, sku);
+                            }
+                        }
+                    })) {
+                    _log("queryProductCached: waiting for snapshot: " + sku);
+                    return true;
+                }
+                return doQueryProduct(sku, context);
+            }
+
+            _log("queryProductCached: hit: " + sku);
+            postProductInfo(context, e.sku, e.title, e.description, e.price);
+
+            if (!mProductCache.isFresh(e) && mProductCache.beginRefresh(e)) {
+                _log("queryProductCached: refreshing stale entry: " + sku);
+                if (!doQueryProduct(sku, 0)) {
+                    mProductCache.endRefresh(sku);
+                }
+            }
+            return true;
+        }
+
+        /// As queryProductCached, for a batch.  The batch is only
+        /// served from the cache if every SKU is present.
+        public boolean queryProductsCached(final String[] skus,
+                                           final long context)
+        {
+            final int numSKUs = skus.length;
+            final productcache.Entry[] entries =
+                new productcache.Entry[numSKUs];
+            for (int i = 0 ; i < numSKUs ; ++i) {
+                entries[i] = mProductCache.lookup(skus[i]);
+                if (null == entries[i]) {
+                    if (waitForSnapshot(new Runnable() {
+                            @Override public void run() {
+                                if (!queryProductsCached(skus, context)) {
+                                    sendProductsInfoError(context, skus);
+                                }
+                            }
+                        })) {
+                        _log("queryProductsCached: waiting for snapshot");
+                        return true;
+                    }
+                    return doQueryProducts(skus, context);
+                }
+            }
+
+            _log("queryProductsCached: hit: " + numSKUs + " SKUs");
+            final String[] titles = new String[numSKUs];
+            final String[] descriptions = new String[numSKUs];
+            final String[] prices = new String[numSKUs];
+            final boolean[] refresh = new boolean[numSKUs];
+            int numStale = 0;
+            for (int i = 0 ; i < numSKUs ; ++i) {
+                titles[i] = entries[i].title;
+                descriptions[i] = entries[i].description;
+                prices[i] = entries[i].price;
+                if (!mProductCache.isFresh(entries[i]) &&
+                    mProductCache.beginRefresh(entries[i])) {
+                    refresh[i] = true;
+                    ++numStale;
+                }
+            }
+            postProductsInfo(context, skus, titles, descriptions, prices);
+
+            if (0 != numStale) {
+                final String[] staleSKUs = new String[numStale];
+                int staleIdx = 0;
+                for (int i = 0 ; i < numSKUs ; ++i) {
+                    if (refresh[i]) {
+                        staleSKUs[staleIdx++] = skus[i];
+                    }
+                }
+                _log("queryProductsCached: refreshing " + numStale +
+                     " stale entries");
+                if (!doQueryProducts(staleSKUs, 0)) {
+                    for (String sku : staleSKUs) {
+                        mProductCache.endRefresh(sku);
+                    }
+                }
+            }
+            return true;
+        }
+
+        // ------------------------------------------------------------
+        // Catalog snapshot
+        // ------------------------------------------------------------
+
+        static long         sCatalogSnapshotMaxAgeMS =
+            7L * 24 * 60 * 60 * 1000;
+
+        // Set once the snapshot has been loaded
+        volatile catalogsnapshot mCatalogSnapshot = null;
+        final AtomicBoolean mSnapshotOpened = new AtomicBoolean(false);
+        final AtomicBoolean mSnapshotWritePending = new AtomicBoolean(false);
+
+        // Product queries that missed the cache while the snapshot was
+        // loading, retried once it has loaded.  Only non-null while
+        // loading.  Guarded by mSnapshotLock.
+        final Object        mSnapshotLock = new Object();
+        ArrayList<Runnable> mSnapshotWaiters = null;
+
+        /// Map the catalog snapshot at 'file' (if there is one) so
+        /// that product queries can be answered, flagged as stale,
+        /// before the agent is ready.  The file is mapped and indexed
+        /// in the background, and product queries that miss the cache
+        /// in the meantime wait for it.  The snapshot is rewritten in
+        /// the background whenever live product details arrive.
+        public void openCatalogSnapshot(final File file)
+        {
+            if (!mSnapshotOpened.compareAndSet(false, true)) {
+                return;
+            }
+
+            synchronized (mSnapshotLock) {
+                mSnapshotWaiters = new ArrayList<Runnable>();
+            }
+            runInBackground(new BackgroundTask() {
+                    @Override public void run() {
+                        try {
+                            final catalogsnapshot snapshot =
+                                new catalogsnapshot
+                                (file, sCatalogSnapshotMaxAgeMS);
+                            snapshot.load();
+                            mProductCache.attachSnapshot(snapshot);
+                            mCatalogSnapshot = snapshot;
+                        } finally {
+                            snapshotLoaded();
+                        }
+                    }
+                    @Override public void reject(final String reason) {
+                        _error("openCatalogSnapshot: !! not loaded: " +
+                               reason);
+                        snapshotLoaded();
+                    }
+                });
+        }
+
+        // Returns false if the snapshot is not loading.  Otherwise,
+        // 'retry' is run once it has loaded.
+        boolean waitForSnapshot(final Runnable retry)
+        {
+            synchronized (mSnapshotLock) {
+                if (null == mSnapshotWaiters) {
+                    return false;
+                }
+                mSnapshotWaiters.add(retry);
+                return true;
+            }
+        }
+
+        void snapshotLoaded()
+        {
+            final ArrayList<Runnable> waiters;
+            synchronized (mSnapshotLock) {
+                waiters = mSnapshotWaiters;
+                mSnapshotWaiters = null;
+            }
+            if (null != waiters) {
+                for (Runnable retry : waiters) {
+                    retry.run();
+                }
+            }
+        }
+
+        void scheduleSnapshotWrite()
+        {
+            final catalogsnapshot snapshot = mCatalogSnapshot;
+            if (null == snapshot ||
+                !mSnapshotWritePending.compareAndSet(false, true)) {
+                return;
+            }
+
+            runInBackground(new BackgroundTask() {
+                    @Override public void run() {
+                        mSnapshotWritePending.set(false);
+                        snapshot.write
+                            (mProductCache.collectEntries().values());
+                    }
+                    @Override public void reject(final String reason) {
+                        mSnapshotWritePending.set(false);
+                    }
+                });
+        }
+
+        // Replace stale (e.g. snapshot) entries with live details
+        void refreshStaleProducts()
+        {
+            final ArrayList<String> skus = mProductCache.beginStaleRefresh();
+            if (skus.isEmpty()) {
+                return;
+            }
+
+            _log("refreshStaleProducts: " + skus.size() + " SKUs");
+            final String[] skuArray = skus.toArray(new String[skus.size()]);
+            if (!doQueryProducts(skuArray, 0)) {
+                for (String sku : skuArray) {
+                    mProductCache.endRefresh(sku);
+                }
+            }
+        }
+
+        // ------------------------------------------------------------
+        // Warm-up
+        // ------------------------------------------------------------
+
+        // Catalog SKUs and purchases to prefetch when the agent
+        // connects, before it reports ready.
+        static String[]     sWarmupSKUs = null;
+        static boolean      sWarmupPurchases = false;
+        // Prefetched purchases older than this are not served
+        static long         sWarmPurchasesTTLMS = 60 * 1000;
+
+        // Purchases prefetched during warm-up, as pages of parallel
+        // arrays { skus, data, tokens, devPayloads, sigs }.  Served
+        // once, to the first purchase query, and dropped as soon as
+        // anything may have changed the set of purchases.
+        ArrayList<String[][]> mWarmPurchasePages = null;
+        // elapsedRealtime() when the pages were stored
+        long                  mWarmPurchasesTime = 0;
+
+        // Bumped on every invalidation, so that a prefetch which
+        // overlaps a purchase or consume is discarded.
+        int                   mWarmPurchasesGeneration = 0;
+
+        synchronized int warmPurchasesGeneration()
+        {
+            return mWarmPurchasesGeneration;
+        }
+
+        synchronized void storeWarmPurchases(ArrayList<String[][]> pages,
+                                             int generation)
+        {
+            if (generation == mWarmPurchasesGeneration) {
+                mWarmPurchasePages = pages;
+                mWarmPurchasesTime = SystemClock.elapsedRealtime();
+            }
+        }
+
+        // The prefetched pages, or null if there are none or they
+        // have expired
+        synchronized ArrayList<String[][]> takeWarmPurchases()
+        {
+            ArrayList<String[][]> pages = mWarmPurchasePages;
+            mWarmPurchasePages = null;
+            if (null != pages && SystemClock.elapsedRealtime() -
+                mWarmPurchasesTime >= sWarmPurchasesTTLMS) {
+                _log("takeWarmPurchases: prefetched purchases expired");
+                return null;
+            }
+            return pages;
+        }
+
+        synchronized void invalidateWarmPurchases()
+        {
+            ++mWarmPurchasesGeneration;
+            mWarmPurchasePages = null;
+        }
+
+        /// Serve a purchase query from the warm-up prefetch if there
+        /// is one, otherwise pass it to the agent.
+        public boolean queryPurchasesCached(final long context)
+        {
+            final ArrayList<String[][]> pages = takeWarmPurchases();
+            if (null == pages) {
+                return doQueryPurchases(context);
+            }
+
+            _log("queryPurchasesCached: serving " + pages.size() +
+                 " prefetched pages");
+            for (String[][] page : pages) {
+                sendPurchaseInfoPage(context, page[0], page[1], page[2],
+                                     page[3], page[4]);
+            }
+            sendPurchaseInfoTerminator(context);
+            return true;
+        }
+
+        public long getProductCacheHits()
+        {
+            return mProductCache.mHits.get();
+        }
+
+        public long getProductCacheStaleHits()
+        {
+            return mProductCache.mStaleHits.get();
+        }
+
+        public long getProductCacheMisses()
+        {
+            return mProductCache.mMisses.get();
+        }
+
+        // ------------------------------------------------------------
+        // Worker pool
+        // ------------------------------------------------------------
+
+        // Work runs in one of two lanes.  User-facing work (starting a
+        // purchase flow, consuming) goes to the interactive executor.
+        // Catalog and inventory queries go to the background pool,
+        // whose tasks hold back before starting, and at each
+        // yieldToInteractive() (e.g. between pages), while any
+        // interactive work or purchase flow is in progress.  A
+        // background task is held for at most sBackgroundMaxDeferMS at
+        // a time, so a long purchase flow cannot starve it.
+
+        static int                sWorkerThreads = 2;
+        static int                sWorkerQueueDepth = 32;
+        static long               sWorkerDrainTimeoutMS = 2000;
+        static ThreadPoolExecutor sWorkerExecutor = null;
+
+        static int                sInteractiveThreads = 1;
+        static ThreadPoolExecutor sInteractiveExecutor = null;
+
+        static long               sBackgroundMaxDeferMS = 5000;
+        static final Object       sLaneLock = new Object();
+        // Interactive tasks queued or running, plus purchase flows in
+        // progress.  Guarded by sLaneLock.
+        static int                sInteractiveActive = 0;
+
+        static ThreadPoolExecutor newExecutor(final String name,
+                                              final int threads,
+                                              final boolean background)
+        {
+            final AtomicInteger threadCount = new AtomicInteger(0);
+            final ThreadFactory factory = new ThreadFactory() {
+                    @Override public Thread newThread(Runnable r) {
+                        Thread t = new Thread
+                            (r, name + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        if (background) {
+                            t.setPriority(Thread.MIN_PRIORITY);
+                        }
+                        return t;
+                    }
+                };
+
+            ThreadPoolExecutor executor;
+            if (background) {
+                executor = new ThreadPoolExecutor
+                    (threads, threads, 30, TimeUnit.SECONDS,
+                     new ArrayBlockingQueue<Runnable>(sWorkerQueueDepth),
+                     factory, new ThreadPoolExecutor.AbortPolicy()) {
+                        @Override protected void beforeExecute(Thread t,
+                                                               Runnable r) {
+                            yieldToInteractive();
+                        }
+                    };
+            } else {
+                executor = new ThreadPoolExecutor
+                    (threads, threads, 30, TimeUnit.SECONDS,
+                     new ArrayBlockingQueue<Runnable>(sWorkerQueueDepth),
+                     factory, new ThreadPoolExecutor.AbortPolicy());
+            }
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+
+        static synchronized ThreadPoolExecutor getWorkerExecutor()
+        {
+            if (null == sWorkerExecutor) {
+                sWorkerExecutor =
+                    newExecutor("tzbilling-worker-", sWorkerThreads, true);
+            }
+            return sWorkerExecutor;
+        }
+
+        static synchronized ThreadPoolExecutor getInteractiveExecutor()
+        {
+            if (null == sInteractiveExecutor) {
+                sInteractiveExecutor =
+                    newExecutor("tzbilling-interactive-",
+                                sInteractiveThreads, false);
+            }
+            return sInteractiveExecutor;
+        }
+
+        /// Number of tasks waiting for a worker thread, in either lane
+        static int queuedTaskCount()
+        {
+            final ThreadPoolExecutor executor;
+            final ThreadPoolExecutor interactive;
+            synchronized (BillingAgent.class) {
+                executor = sWorkerExecutor;
+                interactive = sInteractiveExecutor;
+            }
+            return ((null == executor)?(0):(executor.getQueue().size())) +
+                ((null == interactive)?(0):(interactive.getQueue().size()));
+        }
+
+        /// Run 'task' on the shared (background) worker pool.  If the
+        /// pool refuses it, task.reject() is called on this thread.
+        protected void runInBackground(final BackgroundTask task)
+        {
+            try {
+                getWorkerExecutor().execute(task);
+            } catch (RejectedExecutionException e) {
+                _error("runInBackground: !! task rejected: " + e);
+                task.reject("billing worker queue full");
+            }
+        }
+
+        /// As runInBackground, but in the interactive lane.
+        /// Background work is held back until 'task' has finished.
+        protected void runInteractive(final BackgroundTask task)
+        {
+            beginInteractive();
+            try {
+                getInteractiveExecutor().execute(new BackgroundTask() {
+                        @Override public void run() {
+                            try {
+                                task.run();
+                            } finally {
+                                endInteractive();
+                            }
+                        }
+                        @Override public void reject(final String reason) {
+                            endInteractive();
+                            task.reject(reason);
+                        }
+                    });
+            } catch (RejectedExecutionException e) {
+                endInteractive();
+                _error("runInteractive: !! task rejected: " + e);
+                task.reject("billing worker queue full");
+            }
+        }
+
+        /// Mark the start and end of interactive work that does not
+        /// go through runInteractive (a purchase flow, or a call made
+        /// on the caller's thread).
+        static void beginInteractive()
+        {
+            synchronized (sLaneLock) {
+                ++sInteractiveActive;
+            }
+        }
+
+        static void endInteractive()
+        {
+            synchronized (sLaneLock) {
+                if (0 == --sInteractiveActive) {
+                    sLaneLock.notifyAll();
+                }
+            }
+        }
+
+        /// Called by background work at convenient points.  Waits
+        /// while interactive work is in progress, up to
+        /// sBackgroundMaxDeferMS.
+        static void yieldToInteractive()
+        {
+            synchronized (sLaneLock) {
+                if (0 == sInteractiveActive) {
+                    return;
+                }
+
+                _log("yieldToInteractive: waiting for " + sInteractiveActive +
+                     " interactive tasks");
+                final long until =
+                    SystemClock.uptimeMillis() + sBackgroundMaxDeferMS;
+                long now;
+                while (0 != sInteractiveActive &&
+                       (now = SystemClock.uptimeMillis()) < until) {
+                    try {
+                        sLaneLock.wait(until - now);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        /// Stop accepting work, and let queued tasks finish (up to the
+        /// drain timeout) on a separate thread, so that the caller
+        /// (normally the UI thread) does not block.  Anything still
+        /// queued after that is rejected, so that every request gets
+        /// its callback.  'then' (may be null) runs on that thread
+        /// once the workers have stopped.
+        ///
+        /// The executors stay in place until then, so work queued by
+        /// the tasks being drained is rejected rather than starting
+        /// new pools that would never be drained.
+        static void shutdownWorkers(final Runnable then)
+        {
+            final ThreadPoolExecutor executor;
+            final ThreadPoolExecutor interactive;
+            synchronized (BillingAgent.class) {
+                executor = sWorkerExecutor;
+                interactive = sInteractiveExecutor;
+            }
+
+            if (null != interactive) {
+                interactive.shutdown();
+            }
+            if (null != executor) {
+                executor.shutdown();
+            }
+
+            final Thread drain = new Thread(new Runnable() {
+                    @Override public void run() {
+                        final long deadline =
+                            SystemClock.uptimeMillis() + sWorkerDrainTimeoutMS;
+                        // Interactive work first, since background
+                        // work may be waiting for it.
+                        drainExecutor(interactive, deadline);
+                        drainExecutor(executor, deadline);
+                        // New pools are made on demand from now on
+                        synchronized (BillingAgent.class) {
+                            if (executor == sWorkerExecutor) {
+                                sWorkerExecutor = null;
+                            }
+                            if (interactive == sInteractiveExecutor) {
+                                sInteractiveExecutor = null;
+                            }
+                        }
+                        if (null != then) {
+                            then.run();
+                        }
+                    }
+                }, "tzbilling-drain");
+            drain.setDaemon(true);
+            drain.start();
+        }
+
+        static void drainExecutor(final ThreadPoolExecutor executor,
+                                  final long deadline)
+        {
+            if (null == executor) {
+                return;
+            }
+
+            _log("shutdownWorkers: draining ...");
+            try {
+                final long timeout =
+                    Math.max(0, deadline - SystemClock.uptimeMillis());
+                if (executor.awaitTermination(timeout,
+                                              TimeUnit.MILLISECONDS)) {
+                    _log("shutdownWorkers: drained");
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            final List<Runnable> dropped = executor.shutdownNow();
+            _error("shutdownWorkers: !! timed out, rejecting " +
+                   dropped.size() + " queued tasks");
+            for (Runnable r : dropped) {
+                if (r instanceof BackgroundTask) {
+                    ((BackgroundTask )r).reject("billing shut down");
+                }
+            }
+        }
+
         // ------------------------------------------------------------
         // Internal methods
         // ------------------------------------------------------------
 
+        static final int           CALLBACK_POOL_SIZE = 256;
+        static volatile boolean    sPooledDispatch = false;
+        static final callbackqueue sCallbackQueue =
+            new callbackqueue(CALLBACK_POOL_SIZE);
+
         // Either returns a known handler for the native thread, or
         // creates one.
         CallbackHandler getCallbackHandler()
@@ -133,34 +812,68 @@ public class payment
             return sCallbackHandler;
         }
 
+        // Get an Event to fill in and pass to dispatch()
+        callbackqueue.Event newEvent(final int type, final long context)
+        {
+            final boolean pooled = sPooledDispatch;
+            callbackqueue.Event e = (pooled)?
+                (sCallbackQueue.acquire(type)):
+                (new callbackqueue.Event(-1, type));
+            e.queued = pooled;
+            e.type = type;
+            e.context = context;
+            e.postTimeNS = System.nanoTime();
+            return e;
+        }
+
+        // The Event goes the way newEvent() decided, even if pooled
+        // dispatch has been switched in between.
+        void dispatch(final callbackqueue.Event e)
+        {
+            if (e.queued) {
+                sCallbackQueue.post(e, getCallbackHandler());
+            } else {
+                getCallbackHandler().post(e);
+            }
+        }
+
         protected void reportReady(final boolean ready)
         {
             _log("reportReady: ready report: " + Boolean.toString(ready));
             mIsReady = ready;
 
+            // While several agents are being probed, the selector
+            // decides what is reported.
+            final agentselector selector = sAgentSelector;
+            if (null != selector && selector.onReadyReport(this, ready)) {
+                return;
+            }
+
+            if (ready) {
+                billingmetrics.markReady();
+                refreshStaleProducts();
+            }
+
             if (0 == mReadyContext) {
                 _log("reportReady: no callback context");
                 return;
             }
 
-            getCallbackHandler().post(new Runnable() {
-                @Override public void run() {
-                    _log("reportReady (h): " + Boolean.toString(ready));
-                    nativeOnReadyStatus(mReadyContext, ready);
-                }
-            });
+            // The context is read at delivery time, in case callbacks
+            // are disabled in the meantime.
+            callbackqueue.Event e = newEvent(callbackqueue.READY, 0);
+            e.agent = this;
+            e.flag = ready;
+            e.str[0] = sAgentInfo;
+            dispatch(e);
         }
 
         protected void sendPurchaseFailure(final long ctx, final String msg)
         {
-            getCallbackHandler().post(new Runnable() {
-                @Override public void run() {
-                    _error("sendPurchaseFailure (runnable): context: " + ctx +
-                         ", msg: " + msg);
-                    nativeOnPurchaseFailed(ctx, msg);
-                    _log("sendPurchaseFailure (runnable): back from native");
-                }
-            });
+            callbackqueue.Event e =
+                newEvent(callbackqueue.PURCHASE_FAILURE, ctx);
+            e.str[0] = msg;
+            dispatch(e);
         }
 
         protected void sendPurchaseResult(final long ctx,
@@ -169,23 +882,16 @@ public class payment
                                           final String devPayload,
                                           final String signature)
         {
-            getCallbackHandler().post(new Runnable() {
-                @Override public void run() {
-                    _log("sendPurchaseResult (runnable): context: " + ctx);
-
-                    _log("sendPurchaseResult (h): " +
-                         "sku: " + ((null == sku)?("null"):(sku)) +
-                         ", data: " + ((null == data)?("null"):(data)) +
-                         ", token: " + ((null == token)?("null"):(token)) +
-                         ", devPayload: " + ((null == devPayload)?("null"):
-                                             (devPayload)) +
-                         ", sig: " + ((null == signature)?("null"):(signature)));
-
-                    nativeOnPurchaseComplete(ctx, sku, data, token,
-                                             devPayload, signature);
-                    _log("sendPurchaseResult (runnable): back from native");
-                }
-            });
+            invalidateWarmPurchases();
+
+            callbackqueue.Event e =
+                newEvent(callbackqueue.PURCHASE_RESULT, ctx);
+            e.str[0] = sku;
+            e.str[1] = data;
+            e.str[2] = token;
+            e.str[3] = devPayload;
+            e.str[4] = signature;
+            dispatch(e);
         }
 
         protected void sendPurchaseInfo(final long context,
@@ -194,33 +900,104 @@ public class payment
                                         final String devPayload,
                                         final String sig)
         {
-            getCallbackHandler().post(new Runnable() {
-                @Override public void run() {
-                    nativePurchaseQueryResponse(context, sku, data, token,
-                                                devPayload, sig);
-                }
-            });
+            callbackqueue.Event e =
+                newEvent(callbackqueue.PURCHASE_INFO, context);
+            e.str[0] = sku;
+            e.str[1] = data;
+            e.str[2] = token;
+            e.str[3] = devPayload;
+            e.str[4] = sig;
+            dispatch(e);
+        }
+
+        /// Deliver a page of purchases in a single callback.  The
+        /// arrays are parallel and must not be modified afterwards.
+        protected void sendPurchaseInfoPage(final long context,
+                                            final String[] skus,
+                                            final String[] data,
+                                            final String[] tokens,
+                                            final String[] devPayloads,
+                                            final String[] sigs)
+        {
+            callbackqueue.Event e =
+                newEvent(callbackqueue.PURCHASE_INFO_PAGE, context);
+            e.arr[0] = skus;
+            e.arr[1] = data;
+            e.arr[2] = tokens;
+            e.arr[3] = devPayloads;
+            e.arr[4] = sigs;
+            dispatch(e);
         }
 
         protected void sendPurchaseInfoTerminator(final long context)
         {
-            getCallbackHandler().post(new Runnable() {
-                @Override public void run() {
-                    nativePurchaseQueryResponse(context, "",
-                                                null, null, null, null);
-                }
-            });
+            dispatch(newEvent(callbackqueue.PURCHASE_INFO_TERMINATOR,
+                              context));
         }
 
         protected void sendPurchaseInfoError(final long context,
                                              final String msg)
         {
-            getCallbackHandler().post(new Runnable() {
-                @Override public void run() {
-                    nativePurchaseQueryResponse(context, null, msg,
-                                                null, null, null);
-                }
-            });
+            callbackqueue.Event e =
+                newEvent(callbackqueue.PURCHASE_INFO_ERROR, context);
+            e.str[0] = msg;
+            dispatch(e);
+        }
+
+        /// 'added*' are parallel arrays of purchases that were not
+        /// present at the last delta query.  'removedSkus' and
+        /// 'removedTokens' are parallel arrays of purchases that have
+        /// since gone.  None of the arrays may be modified afterwards.
+        protected void sendPurchaseDelta(final long context,
+                                         final String[] addedSkus,
+                                         final String[] addedData,
+                                         final String[] addedTokens,
+                                         final String[] addedDevPayloads,
+                                         final String[] addedSigs,
+                                         final String[] removedSkus,
+                                         final String[] removedTokens)
+        {
+            callbackqueue.Event e =
+                newEvent(callbackqueue.PURCHASE_DELTA, context);
+            e.arr[0] = addedSkus;
+            e.arr[1] = addedData;
+            e.arr[2] = addedTokens;
+            e.arr[3] = addedDevPayloads;
+            e.arr[4] = addedSigs;
+            e.arr[5] = removedSkus;
+            e.arr[6] = removedTokens;
+            dispatch(e);
+        }
+
+        protected void sendPurchaseDeltaUnchanged(final long context)
+        {
+            dispatch(newEvent(callbackqueue.PURCHASE_DELTA, context));
+        }
+
+        protected void sendPurchaseDeltaError(final long context,
+                                              final String msg)
+        {
+            callbackqueue.Event e =
+                newEvent(callbackqueue.PURCHASE_DELTA, context);
+            e.str[0] = msg;
+            dispatch(e);
+        }
+
+        protected void sendConsumeResult(final long context,
+                                         final String token,
+                                         final boolean success,
+                                         final String msg)
+        {
+            if (success) {
+                invalidateWarmPurchases();
+            }
+
+            callbackqueue.Event e =
+                newEvent(callbackqueue.CONSUME_RESULT, context);
+            e.str[0] = token;
+            e.str[1] = msg;
+            e.flag = success;
+            dispatch(e);
         }
 
         protected void sendProductInfoError(final long context,
@@ -234,12 +1011,82 @@ public class payment
                                        final String description,
                                        final String price)
         {
-            getCallbackHandler().post(new Runnable() {
-                @Override public void run() {
-                    nativeProductQueryResponse(context, sku, title,
-                                               description, price);
+            if (null != title) {
+                mProductCache.put(sku, title, description, price);
+                scheduleSnapshotWrite();
+            } else {
+                mProductCache.endRefresh(sku);
+            }
+
+            // A zero context is a background cache refresh
+            if (0 == context) {
+                return;
+            }
+
+            postProductInfo(context, sku, title, description, price);
+        }
+
+        void postProductInfo(final long context, final String sku,
+                             final String title, final String description,
+                             final String price)
+        {
+            callbackqueue.Event e =
+                newEvent(callbackqueue.PRODUCT_INFO, context);
+            e.str[0] = sku;
+            e.str[1] = title;
+            e.str[2] = description;
+            e.str[3] = price;
+            dispatch(e);
+        }
+
+        protected void sendProductsInfoError(final long context,
+                                             final String[] skus)
+        {
+            sendProductsInfo(context, skus, null, null, null);
+        }
+
+        /// A null entry in 'titles' (or a null 'titles' array) means
+        /// the corresponding product does not exist or could not be
+        /// retrieved.
+        protected void sendProductsInfo(final long context,
+                                        final String[] skus,
+                                        final String[] titles,
+                                        final String[] descriptions,
+                                        final String[] prices)
+        {
+            boolean updated = false;
+            for (int i = 0 ; i < skus.length ; ++i) {
+                if (null != titles && null != titles[i]) {
+                    mProductCache.put(skus[i], titles[i], descriptions[i],
+                                      prices[i]);
+                    updated = true;
+                } else {
+                    mProductCache.endRefresh(skus[i]);
                 }
-            });
+            }
+            if (updated) {
+                scheduleSnapshotWrite();
+            }
+
+            if (0 == context) {
+                return;
+            }
+
+            postProductsInfo(context, skus, titles, descriptions, prices);
+        }
+
+        void postProductsInfo(final long context, final String[] skus,
+                              final String[] titles,
+                              final String[] descriptions,
+                              final String[] prices)
+        {
+            callbackqueue.Event e =
+                newEvent(callbackqueue.PRODUCTS_INFO, context);
+            e.arr[0] = skus;
+            e.arr[1] = titles;
+            e.arr[2] = descriptions;
+            e.arr[3] = prices;
+            dispatch(e);
         }
     }
 
@@ -250,20 +1097,97 @@ public class payment
     static CallbackHandler      sCallbackHandler = null;
     static BillingAgent         sBillingAgent = null;
 
+    // When agents created by initialize() bind to their service.
+    // Requests made before then are held, and start the bind.
+    //   BIND_EAGER     during initialize()
+    //   BIND_DEFERRED  once the main thread is idle after initialize()
+    //   BIND_LAZY      on the first request
+    public static final int     BIND_EAGER = 0;
+    public static final int     BIND_DEFERRED = 1;
+    public static final int     BIND_LAZY = 2;
+    static int                  sBindPolicy = BIND_EAGER;
+
+    static final String         CATALOG_SNAPSHOT_FILE = "tzbilling_catalog.bin";
+
+    // See setPublicKey
+    static volatile String      sPublicKey = null;
+
     // ------------------------------------------------------------------
 
     public static boolean initialize(Activity activity, int purchaseRequestCode)
     {
         sActivity = activity;
         sPurchaseRequestCode = purchaseRequestCode;
+        billingmetrics.markInitialize();
 
-        // TODO: Detect the best billing agent to use
+        if (null != sBillingAgent) {
+            sAgentInfo = "{\"agent\":\"" +
+                sBillingAgent.getClass().getSimpleName() + "\",\"probes\":[]}";
+            agentChosen(sBillingAgent, 0);
+            return true;
+        }
 
-        if (null == sBillingAgent) {
-            sBillingAgent = new googlepayment(sActivity, sPurchaseRequestCode);
+        ArrayList<agentselector.Probe> probes =
+            new ArrayList<agentselector.Probe>();
+        synchronized (sAgentFactories) {
+            for (agentselector.Probe f : sAgentFactories) {
+                probes.add(new agentselector.Probe(f.name, f.factory));
+            }
+        }
+        if (probes.isEmpty()) {
+            _error("initialize: !! no billing agents registered");
+            return false;
         }
 
-        return (null != sBillingAgent);
+        // With only one candidate there is nothing to choose, so
+        // create it here as before.
+        if (1 == probes.size()) {
+            final agentselector.Probe p = probes.get(0);
+            sAgentInfo = "{\"agent\":\"" + p.name + "\",\"probes\":[]}";
+            final BillingAgent agent =
+                p.factory.create(sActivity, sPurchaseRequestCode);
+            if (null == agent) {
+                _error("initialize: !! agent " + p.name + " unavailable");
+                return false;
+            }
+            sBillingAgent = agent;
+            agentChosen(agent, 0);
+            return true;
+        }
+
+        // Agents can only be compared once they have bound
+        if (BIND_EAGER != sBindPolicy) {
+            _log("initialize: binding now to choose between agents");
+            sBindPolicy = BIND_EAGER;
+        }
+        sAgentSelector = new agentselector(probes, sAgentProbeTimeoutMS);
+        sAgentSelector.start(sActivity, sPurchaseRequestCode);
+        return true;
+    }
+
+    // The agent to use has been decided.  Ready reports made before
+    // this went to the selector, so report the agent's state now, to
+    // 'readyContext' if it is non-zero.
+    static void agentChosen(final BillingAgent agent, final long readyContext)
+    {
+        // Shut down in the meantime
+        if (agent != sBillingAgent) {
+            return;
+        }
+
+        applyPublicKey(agent);
+
+        if (null != sActivity) {
+            agent.openCatalogSnapshot
+                (new File(sActivity.getFilesDir(), CATALOG_SNAPSHOT_FILE));
+        }
+
+        if (null != sAgentSelector) {
+            if (0 != readyContext) {
+                agent.mReadyContext = readyContext;
+            }
+            agent.reportReady(agent.isReady());
+        }
     }
 
     public static boolean initialize(Activity activity, int purchaseRequestCode,
@@ -274,6 +1198,18 @@ public class payment
         return ret;
     }
 
+    public static boolean initialize(Activity activity, int purchaseRequestCode,
+                                     CallbackHandler handler, int bindPolicy)
+    {
+        if (BIND_EAGER > bindPolicy || BIND_LAZY < bindPolicy) {
+            _error("initialize: !! bad bind policy: " + bindPolicy);
+            bindPolicy = BIND_EAGER;
+        }
+        sBindPolicy = bindPolicy;
+        boolean ret = initialize(activity, purchaseRequestCode, handler);
+        return ret;
+    }
+
     public static boolean initialize(Activity activity, int purchaseRequestCode,
                                      CallbackHandler handler, BillingAgent agent)
     {
@@ -282,6 +1218,208 @@ public class payment
         return ret;
     }
 
+    // ------------------------------------------------------------------
+    // Agent registry
+    // ------------------------------------------------------------------
+
+    public interface AgentFactory
+    {
+        // Return null if the agent cannot be used on this device
+        BillingAgent create(Activity activity, int purchaseRequestCode);
+    }
+
+    static final AgentFactory GOOGLE_AGENT_FACTORY = new AgentFactory() {
+            @Override
+            public BillingAgent create(Activity activity,
+                                       int purchaseRequestCode)
+            {
+                return new googlepayment(activity, purchaseRequestCode);
+            }
+        };
+
+    // Candidate agents, in order of preference, each copied into a new
+    // Probe by initialize().  Guarded by itself.
+    static final ArrayList<agentselector.Probe> sAgentFactories =
+        new ArrayList<agentselector.Probe>();
+    static {
+        sAgentFactories.add(new agentselector.Probe("google",
+                                                    GOOGLE_AGENT_FACTORY));
+    }
+
+    static long                 sAgentProbeTimeoutMS = 5000;
+    static volatile agentselector sAgentSelector = null;
+    // JSON description of the chosen agent (see agentselector), passed
+    // with each ready report.
+    static volatile String      sAgentInfo = null;
+
+    // Add a billing agent to be considered by initialize(), or replace
+    // the one registered under 'name'.  If several are registered they
+    // are all created, and the first to become ready is used.  Only
+    // "google" is registered by default.  Must be called before
+    // initialize() to take effect.
+    public static void registerAgent(final String name,
+                                     final AgentFactory factory)
+    {
+        synchronized (sAgentFactories) {
+            unregisterAgent(name);
+            sAgentFactories.add(new agentselector.Probe(name, factory));
+        }
+    }
+
+    public static void unregisterAgent(final String name)
+    {
+        synchronized (sAgentFactories) {
+            for (int i = 0 ; i < sAgentFactories.size() ; ++i) {
+                if (sAgentFactories.get(i).name.equals(name)) {
+                    sAgentFactories.remove(i);
+                    return;
+                }
+            }
+        }
+    }
+
+    // How long initialize() waits for one of several agents to become
+    // ready before settling for the first that has not failed.
+    public static void setAgentProbeTimeout(final long timeoutMS)
+    {
+        sAgentProbeTimeoutMS = Math.max(0, timeoutMS);
+    }
+
+    // Configure the worker pool shared by all billing agents.  Must
+    // be called before initialize() to take effect.  Requests that
+    // arrive while 'queueDepth' requests are already waiting are
+    // failed through the usual callbacks.
+    public static void setWorkerLimits(int threads, int queueDepth,
+                                       long drainTimeoutMS)
+    {
+        if (threads < 1 || queueDepth < 1) {
+            _error("setWorkerLimits: !! bad limits: " + threads + ", " +
+                   queueDepth);
+            return;
+        }
+
+        BillingAgent.sWorkerThreads = threads;
+        BillingAgent.sWorkerQueueDepth = queueDepth;
+        BillingAgent.sWorkerDrainTimeoutMS = drainTimeoutMS;
+    }
+
+    // Limit how long catalog and inventory queries are held back (at
+    // each point where they check) while a purchase or consume is in
+    // progress.  0 means never hold them back.
+    public static void setBackgroundDeferLimit(long maxDeferMS)
+    {
+        BillingAgent.sBackgroundMaxDeferMS = Math.max(0, maxDeferMS);
+    }
+
+    // Fail a purchase whose UI has not returned a result after
+    // 'timeoutMS', so that purchases queued behind it can start.  0
+    // means wait forever.
+    public static void setPurchaseFlowTimeout(long timeoutMS)
+    {
+        googlepayment.sPurchaseFlowTimeoutMS = Math.max(0, timeoutMS);
+    }
+
+    // Limit calls of one billing service method (billingmetrics.OP_*)
+    // to 'perSecond' on average, with bursts of up to 'burst'.  A call
+    // that would wait more than 'maxWaitMS' for its turn fails as
+    // SERVICE_UNAVAILABLE instead.  'perSecond' <= 0 removes the
+    // limit.  Must be called before initialize() to take effect.
+    public static void setServiceCallRate(int op, double perSecond,
+                                          double burst, long maxWaitMS)
+    {
+        if (op < 0 || op >= ratelimiter.NUM_OPS) {
+            _error("setServiceCallRate: !! bad op: " + op);
+            return;
+        }
+
+        ratelimiter.sRatePerSec[op] = perSecond;
+        ratelimiter.sBurst[op] = Math.max(1, burst);
+        ratelimiter.sMaxWaitMS = Math.max(0, maxWaitMS);
+    }
+
+    // After 'failures' consecutive failed calls into the billing
+    // service, stop making calls and report billing as not ready for
+    // 'baseCooldownMS', then try one call.  Each further failure
+    // doubles the cooldown, up to 'maxCooldownMS'.  Must be called
+    // before initialize() to take effect.
+    public static void configureCircuitBreaker(int failures,
+                                               long baseCooldownMS,
+                                               long maxCooldownMS)
+    {
+        if (failures < 1 || baseCooldownMS < 0 ||
+            maxCooldownMS < baseCooldownMS) {
+            _error("configureCircuitBreaker: !! bad settings");
+            return;
+        }
+
+        ratelimiter.sOpenAfterFailures = failures;
+        ratelimiter.sBaseCooldownMS = baseCooldownMS;
+        ratelimiter.sMaxCooldownMS = maxCooldownMS;
+    }
+
+    // Configure the product details cache.  Must be called before
+    // initialize() to take effect.  Details are served from memory
+    // for 'ttlMS', and for a further 'staleMS' while being refreshed
+    // in the background.
+    public static void configureProductCache(long ttlMS, long staleMS,
+                                             int maxEntries)
+    {
+        BillingAgent.sProductCacheTTLMS = ttlMS;
+        BillingAgent.sProductCacheStaleMS = staleMS;
+        BillingAgent.sProductCacheMaxEntries = maxEntries;
+    }
+
+    // Products in the catalog snapshot that have not been seen from
+    // the billing service for 'maxAgeMS' are no longer served from it,
+    // and are dropped when it is next written.  Must be called before
+    // initialize() to take effect.
+    public static void setCatalogSnapshotMaxAge(long maxAgeMS)
+    {
+        BillingAgent.sCatalogSnapshotMaxAgeMS = Math.max(0, maxAgeMS);
+    }
+
+    // Configure work to do when the billing service connects, before
+    // the agent reports itself ready: prefetch product details for
+    // 'catalogSKUs' (may be null) into the product cache and, if
+    // 'purchases' is true, the list of owned purchases.  Must be
+    // called before initialize() to take effect.
+    public static void setWarmup(final String[] catalogSKUs,
+                                 final boolean purchases)
+    {
+        BillingAgent.sWarmupSKUs =
+            (null == catalogSKUs || 0 == catalogSKUs.length)?
+            (null):(catalogSKUs.clone());
+        BillingAgent.sWarmupPurchases = purchases;
+    }
+
+    // Serve prefetched purchases (see setWarmup) only to a purchase
+    // query made within 'ttlMS' of the prefetch.
+    public static void setWarmPurchasesTTL(long ttlMS)
+    {
+        BillingAgent.sWarmPurchasesTTLMS = Math.max(0, ttlMS);
+    }
+
+    // Set the base64-encoded public key from the Google Play developer
+    // console.  Once set, purchases with invalid signatures are
+    // rejected on the device.  The key is kept, and given to whichever
+    // agent is in use.
+    public static void setPublicKey(final String base64Key)
+    {
+        sPublicKey = base64Key;
+        final BillingAgent agent = sBillingAgent;
+        if (null != agent) {
+            agent.setPublicKey(base64Key);
+        }
+    }
+
+    static void applyPublicKey(final BillingAgent agent)
+    {
+        final String key = sPublicKey;
+        if (null != key) {
+            agent.setPublicKey(key);
+        }
+    }
+
     // ------------------------------------------------------------------
     // shutdown
     // ------------------------------------------------------------------
@@ -290,14 +1428,46 @@ public class payment
     {
         _log("shutting down ...");
 
-        if (null != sBillingAgent) {
-            sBillingAgent.shutdown();
-            sBillingAgent = null;
+        // After this, no agent can be chosen
+        final agentselector selector = sAgentSelector;
+        if (null != selector) {
+            selector.cancel();
+        }
+
+        final BillingAgent agent = sBillingAgent;
+        final CallbackHandler handler = sCallbackHandler;
+        sBillingAgent = null;
+        sAgentSelector = null;
+        sAgentInfo = null;
+        sBindPolicy = BIND_EAGER;
+
+        // Unbind now, while the activity is still alive, and fail the
+        // requests still outstanding.  Work already queued then finds
+        // the agent shut down and fails through its callbacks while
+        // the workers drain.  The caller does not wait for that.
+        if (null != agent) {
+            agent.shutdown();
+            requesttracker.cancelAll("billing shut down", agent);
         }
 
-        sCallbackHandler = null;
+        final Handler main = new Handler(Looper.getMainLooper());
+        final Runnable finish = new Runnable() {
+                @Override public void run() {
+                    // Callbacks made while draining still need it,
+                    // unless billing has been initialized again.
+                    if (handler == sCallbackHandler) {
+                        sCallbackHandler = null;
+                    }
+                    _print("shut down complete");
+                }
+            };
+        BillingAgent.shutdownWorkers(new Runnable() {
+                @Override public void run() {
+                    main.post(finish);
+                }
+            });
+
         sActivity = null;
-        _print("shut down complete");
     }
 
     // ------------------------------------------------------------------
@@ -331,7 +1501,7 @@ public class payment
         }
 
         if (null != sBillingAgent) {
-            return sBillingAgent.handleActivityResult(resultCode, resultCode,
+            return sBillingAgent.handleActivityResult(requestCode, resultCode,
                                                       data);
         } else {
             _error("handleActivityResult: no billing agent");
@@ -347,22 +1517,41 @@ public class payment
     //
     public static boolean doPurchase(final String sku, final String devPayload,
                                      long context)
+    {
+        return 0 != doPurchase(sku, devPayload, context, 0, false);
+    }
+
+    // Returns 0 on failure.  Otherwise, if 'cancellable', returns a
+    // handle for doCancel (and any non-zero value if not).  If the
+    // purchase is not complete within 'timeoutMS' (0 for no limit), it
+    // is failed.  Note that the user may still complete it in the Play
+    // UI, in which case it will show up in later purchase queries.
+    public static long doPurchase(final String sku, final String devPayload,
+                                  final long context, final int timeoutMS,
+                                  final boolean cancellable)
     {
         _print("doPurchase: " + sku);
 
         if (0 == context) {
             _error("context must be non-zero");
-            return false;
+            return 0;
         }
 
         // Should this class handle moving everything to a thread?
 
         if (null != sBillingAgent) {
-            return sBillingAgent.doPurchase(sku, devPayload, context);
+            final long id = requesttracker.track
+                (requesttracker.KIND_PURCHASE, context, null, timeoutMS,
+                 cancellable, sBillingAgent);
+            if (sBillingAgent.doPurchase(sku, devPayload, id)) {
+                return requesttracker.handle(id);
+            }
+            requesttracker.unregister(id);
+            return 0;
         }
 
         _error("doPurchase: no billing agent");
-        return false;
+        return 0;
     }
 
     // ------------------------------------------------------------------
@@ -371,15 +1560,63 @@ public class payment
 
     // Call back to native code with the details of each purchase,
     public static boolean doQueryPurchases(final long context)
+    {
+        return 0 != doQueryPurchases(context, 0, false);
+    }
+
+    // See doPurchase() for the return value
+    public static long doQueryPurchases(final long context,
+                                        final int timeoutMS,
+                                        final boolean cancellable)
     {
         _log("doQueryPurchases: ");
 
         if (null != sBillingAgent) {
-            return sBillingAgent.doQueryPurchases(context);
+            final long id = requesttracker.track
+                (requesttracker.KIND_PURCHASES, context, null, timeoutMS,
+                 cancellable, sBillingAgent);
+            if (sBillingAgent.queryPurchasesCached(id)) {
+                return requesttracker.handle(id);
+            }
+            requesttracker.unregister(id);
+            return 0;
         }
 
         _error("doQueryPurchases: no billing agent");
-        return false;
+        return 0;
+    }
+
+    // ------------------------------------------------------------------
+    // doQueryPurchasesDelta
+    // ------------------------------------------------------------------
+
+    // Call back to native code once with the purchases added and
+    // removed since the last delta query.
+    public static boolean doQueryPurchasesDelta(final long context)
+    {
+        return 0 != doQueryPurchasesDelta(context, 0, false);
+    }
+
+    // See doPurchase() for the return value
+    public static long doQueryPurchasesDelta(final long context,
+                                             final int timeoutMS,
+                                             final boolean cancellable)
+    {
+        _log("doQueryPurchasesDelta: ");
+
+        if (null != sBillingAgent) {
+            final long id = requesttracker.track
+                (requesttracker.KIND_PURCHASES_DELTA, context, null,
+                 timeoutMS, cancellable, sBillingAgent);
+            if (sBillingAgent.doQueryPurchasesDelta(id)) {
+                return requesttracker.handle(id);
+            }
+            requesttracker.unregister(id);
+            return 0;
+        }
+
+        _error("doQueryPurchasesDelta: no billing agent");
+        return 0;
     }
 
     // ------------------------------------------------------------------
@@ -387,15 +1624,72 @@ public class payment
     // ------------------------------------------------------------------
 
     public static boolean doQueryProduct(final String sku, final long context)
+    {
+        return 0 != doQueryProduct(sku, context, 0, false);
+    }
+
+    // See doPurchase() for the return value.  A product query
+    // that times out is reported as not found.
+    public static long doQueryProduct(final String sku, final long context,
+                                      final int timeoutMS,
+                                      final boolean cancellable)
     {
         _log("doQueryProduct: " + sku);
 
         if (null != sBillingAgent) {
-            return sBillingAgent.doQueryProduct(sku, context);
+            final long id = requesttracker.track
+                (requesttracker.KIND_PRODUCT, context, sku, timeoutMS,
+                 cancellable, sBillingAgent);
+            if (sBillingAgent.queryProductCached(sku, id)) {
+                return requesttracker.handle(id);
+            }
+            requesttracker.unregister(id);
+            return 0;
         }
 
         _error("doQueryProduct: no billing agent");
-        return false;
+        return 0;
+    }
+
+    // ------------------------------------------------------------------
+    // doQueryProducts
+    // ------------------------------------------------------------------
+
+    // Query several products at once.  The agent makes a single
+    // native callback with all results.
+    public static boolean doQueryProducts(final String[] skus,
+                                          final long context)
+    {
+        return 0 != doQueryProducts(skus, context, 0, false);
+    }
+
+    // See doPurchase() for the return value
+    public static long doQueryProducts(final String[] skus,
+                                       final long context,
+                                       final int timeoutMS,
+                                       final boolean cancellable)
+    {
+        _log("doQueryProducts: " + ((null == skus)?(0):(skus.length)) +
+             " SKUs");
+
+        if (null == skus || 0 == skus.length) {
+            _error("doQueryProducts: no SKUs given");
+            return 0;
+        }
+
+        if (null != sBillingAgent) {
+            final long id = requesttracker.track
+                (requesttracker.KIND_PRODUCTS, context, skus, timeoutMS,
+                 cancellable, sBillingAgent);
+            if (sBillingAgent.queryProductsCached(skus, id)) {
+                return requesttracker.handle(id);
+            }
+            requesttracker.unregister(id);
+            return 0;
+        }
+
+        _error("doQueryProducts: no billing agent");
+        return 0;
     }
 
     // ------------------------------------------------------------------
@@ -410,6 +1704,26 @@ public class payment
         return initialized;
     }
 
+    // ------------------------------------------------------------------
+    // Metrics
+    // ------------------------------------------------------------------
+
+    public static billingmetrics.Snapshot getMetricsSnapshot()
+    {
+        return billingmetrics.snapshot();
+    }
+
+    // Called from native code.  See billingmetrics.Snapshot.toJSON()
+    // for the format.
+    public static String doGetMetricsSnapshot()
+    {
+        return billingmetrics.snapshot().toJSON();
+    }
+
+    // ------------------------------------------------------------------
+    // doCheckReady
+    // ------------------------------------------------------------------
+
     // Returns whether the service is ready.  If context is non-zero,
     // then native callbacks will be made whenever the ready status
     // changes.
@@ -417,6 +1731,13 @@ public class payment
     {
         _log("doCheckReady: ctx: " + context);
 
+        // Passed on once an agent has been chosen
+        final agentselector selector = sAgentSelector;
+        if (null != selector && selector.holdReadyContext(context)) {
+            _log("doCheckReady: still choosing an agent");
+            return false;
+        }
+
         if (null != sBillingAgent) {
 
             final boolean ready = sBillingAgent.isReady();
@@ -441,6 +1762,9 @@ public class payment
         if (null != sBillingAgent) {
             final boolean result = sBillingAgent.doConsume(token);
             _log("doConsume: agent returned: " + Boolean.toString(result));
+            if (result) {
+                sBillingAgent.invalidateWarmPurchases();
+            }
             return result;
         }
 
@@ -448,9 +1772,150 @@ public class payment
         return false;
     }
 
+    // Consume a sku without blocking.  The agent calls back to native
+    // code with the result.
+    public static boolean doConsumeAsync(final String token,
+                                         final long context)
+    {
+        return 0 != doConsumeAsync(token, context, 0, false);
+    }
+
+    // See doPurchase() for the return value.  A consume that
+    // times out may still complete, so the purchase should be checked
+    // with a later query.
+    public static long doConsumeAsync(final String token, final long context,
+                                      final int timeoutMS,
+                                      final boolean cancellable)
+    {
+        _log("doConsumeAsync: token: " + token);
+
+        if (0 == context) {
+            _error("doConsumeAsync: context must be non-zero");
+            return 0;
+        }
+
+        if (null != sBillingAgent) {
+            final long id = requesttracker.track
+                (requesttracker.KIND_CONSUME, context, token, timeoutMS,
+                 cancellable, sBillingAgent);
+            if (sBillingAgent.doConsumeAsync(token, id)) {
+                return requesttracker.handle(id);
+            }
+            requesttracker.unregister(id);
+            return 0;
+        }
+
+        _error("doConsumeAsync: no billing agent");
+        return 0;
+    }
+
+    // ------------------------------------------------------------------
+    // doCancel
+    // ------------------------------------------------------------------
+
+    // Fail a request made by one of the methods above through its
+    // usual error callback (unless it has already completed, in which
+    // case this returns false).  Any later result from the agent is
+    // dropped.
+    public static boolean doCancel(final long handle)
+    {
+        _log("doCancel: " + handle);
+        return requesttracker.cancel(handle, "request cancelled");
+    }
+
     //------------------------------------------------------------------
 
-    static native void nativeOnReadyStatus(long context, boolean ready);
+    // Receiver of agent callbacks.  Normally these go straight to the
+    // native methods below.  Code running on a plain JVM (benchmarks,
+    // simulators) installs its own with setNativeCallbacks.
+    interface NativeCallbacks
+    {
+        void onReadyStatus(long context, boolean ready, String agentInfo);
+        void onPurchaseComplete(long context, String sku, String details,
+                                String token, String devPayload, String sig);
+        void onPurchaseFailed(long context, String msg);
+        void productQueryResponse(long context, String sku, String title,
+                                  String description, String price);
+        void productsQueryResponse(long context, String[] skus,
+                                   String[] titles, String[] descriptions,
+                                   String[] prices);
+        void consumeResponse(long context, String token, boolean success,
+                             String msg);
+        void purchaseQueryResponse(long context, String sku, String details,
+                                   String token, String devPayload,
+                                   String sig);
+        void purchaseQueryPage(long context, String[] skus, String[] details,
+                               String[] tokens, String[] devPayloads,
+                               String[] sigs);
+        void purchaseDelta(long context, String error, String[] addedSkus,
+                           String[] addedDetails, String[] addedTokens,
+                           String[] addedDevPayloads, String[] addedSigs,
+                           String[] removedSkus, String[] removedTokens);
+    }
+
+    static final NativeCallbacks JNI_CALLBACKS = new NativeCallbacks() {
+            @Override public void onReadyStatus(long context, boolean ready,
+                                                String agentInfo) {
+                nativeOnReadyStatus(context, ready, agentInfo);
+            }
+            @Override public void onPurchaseComplete
+                (long context, String sku, String details, String token,
+                 String devPayload, String sig) {
+                nativeOnPurchaseComplete(context, sku, details, token,
+                                         devPayload, sig);
+            }
+            @Override public void onPurchaseFailed(long context, String msg) {
+                nativeOnPurchaseFailed(context, msg);
+            }
+            @Override public void productQueryResponse
+                (long context, String sku, String title, String description,
+                 String price) {
+                nativeProductQueryResponse(context, sku, title, description,
+                                           price);
+            }
+            @Override public void productsQueryResponse
+                (long context, String[] skus, String[] titles,
+                 String[] descriptions, String[] prices) {
+                nativeProductsQueryResponse(context, skus, titles,
+                                            descriptions, prices);
+            }
+            @Override public void consumeResponse
+                (long context, String token, boolean success, String msg) {
+                nativeConsumeResponse(context, token, success, msg);
+            }
+            @Override public void purchaseQueryResponse
+                (long context, String sku, String details, String token,
+                 String devPayload, String sig) {
+                nativePurchaseQueryResponse(context, sku, details, token,
+                                            devPayload, sig);
+            }
+            @Override public void purchaseQueryPage
+                (long context, String[] skus, String[] details,
+                 String[] tokens, String[] devPayloads, String[] sigs) {
+                nativePurchaseQueryPage(context, skus, details, tokens,
+                                        devPayloads, sigs);
+            }
+            @Override public void purchaseDelta
+                (long context, String error, String[] addedSkus,
+                 String[] addedDetails, String[] addedTokens,
+                 String[] addedDevPayloads, String[] addedSigs,
+                 String[] removedSkus, String[] removedTokens) {
+                nativePurchaseDelta(context, error, addedSkus, addedDetails,
+                                    addedTokens, addedDevPayloads, addedSigs,
+                                    removedSkus, removedTokens);
+            }
+        };
+
+    static volatile NativeCallbacks sNativeCallbacks = JNI_CALLBACKS;
+
+    // null restores the native methods
+    static void setNativeCallbacks(final NativeCallbacks callbacks)
+    {
+        sNativeCallbacks = (null == callbacks)?(JNI_CALLBACKS):(callbacks);
+    }
+
+    static native void nativeOnReadyStatus(long context, boolean ready,
+                                           String agentInfo);
 
     static native void nativeOnPurchaseComplete
         (long context, String sku, String details, String token,
@@ -463,10 +1928,35 @@ public class payment
         (long context, String sku, String title, String description,
          String price);
 
+    // Arrays are parallel.  titles == null, or titles[i] == null,
+    // means the product could not be found.
+    static native void nativeProductsQueryResponse
+        (long context, String[] skus, String[] titles, String[] descriptions,
+         String[] prices);
+
+    // msg may be non-null on failure
+    static native void nativeConsumeResponse
+        (long context, String token, boolean success, String msg);
+
     // sku == "", details == null, signature == null means end of purchases
     // sku == null, details != null means error (msg in 'details')
     static native void nativePurchaseQueryResponse
         (long context, String sku, String details, String token,
          String devPayload, String sig);
 
+    // A page of purchases, as parallel arrays.  Equivalent to calling
+    // nativePurchaseQueryResponse for each entry.
+    static native void nativePurchaseQueryPage
+        (long context, String[] skus, String[] details, String[] tokens,
+         String[] devPayloads, String[] sigs);
+
+    // error != null means the query failed.  Otherwise, null
+    // addedSkus and removedSkus mean nothing has changed since the
+    // last delta query.
+    static native void nativePurchaseDelta
+        (long context, String error, String[] addedSkus,
+         String[] addedDetails, String[] addedTokens,
+         String[] addedDevPayloads, String[] addedSigs,
+         String[] removedSkus, String[] removedTokens);
+
 }
@@ -0,0 +1,184 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+
+// LRU cache of product details keyed by SKU.  Entries younger than
+// the TTL are fresh.  Older entries are still returned for up to
+// 'staleMS' beyond the TTL (flagged as stale) so that callers can
+// respond immediately and refresh in the background.
+class productcache
+{
+    static class Entry
+    {
+        final String  sku;
+        final String  title;
+        final String  description;
+        final String  price;
+
+        // elapsedRealtime() when the details were fetched.
+        final long    fetchTime;
+
+        // For details read from a catalog snapshot, the wall-clock
+        // time (currentTimeMillis()) they were last fetched from the
+        // billing service.  0 for live details.
+        long          seenTime = 0;
+
+        // Set while a background refresh of this entry is in flight
+        boolean       refreshing = false;
+
+        Entry(String sku, String title, String description, String price,
+              long fetchTime)
+        {
+            this.sku = sku;
+            this.title = title;
+            this.description = description;
+            this.price = price;
+            this.fetchTime = fetchTime;
+        }
+    }
+
+    final long                        mTTLMS;
+    final long                        mStaleMS;
+    final LinkedHashMap<String,Entry> mEntries;
+
+    final AtomicLong                  mHits = new AtomicLong(0);
+    final AtomicLong                  mStaleHits = new AtomicLong(0);
+    final AtomicLong                  mMisses = new AtomicLong(0);
+
+    // Optional on-disk catalog consulted on a miss
+    catalogsnapshot                   mSnapshot = null;
+
+    productcache(long ttlMS, long staleMS, final int maxEntries)
+    {
+        mTTLMS = ttlMS;
+        mStaleMS = staleMS;
+
+        // Access-ordered, so the eldest entry is the least recently
+        // used.
+        mEntries = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry
+                (Map.Entry<String,productcache.Entry> e)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    static long now()
+    {
+        return SystemClock.elapsedRealtime();
+    }
+
+    boolean isFresh(Entry e)
+    {
+        return (now() - e.fetchTime) < mTTLMS;
+    }
+
+    // Returns null on a miss.  Entries past the stale window are
+    // dropped and count as misses.
+    synchronized Entry lookup(final String sku)
+    {
+        Entry e = mEntries.get(sku);
+        if (null != e) {
+            final long age = now() - e.fetchTime;
+            if (age < mTTLMS) {
+                mHits.incrementAndGet();
+                return e;
+            }
+            if (age < mTTLMS + mStaleMS) {
+                mStaleHits.incrementAndGet();
+                return e;
+            }
+            mEntries.remove(sku);
+        }
+
+        // Entries from the snapshot start out stale, so they are
+        // served immediately but replaced by a live refresh.
+        if (null != mSnapshot) {
+            e = mSnapshot.lookup(sku, now() - mTTLMS);
+            if (null != e) {
+                mEntries.put(sku, e);
+                mStaleHits.incrementAndGet();
+                return e;
+            }
+        }
+
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    synchronized void attachSnapshot(catalogsnapshot snapshot)
+    {
+        mSnapshot = snapshot;
+    }
+
+    // Mark every stale entry as refreshing and return their SKUs
+    synchronized ArrayList<String> beginStaleRefresh()
+    {
+        ArrayList<String> skus = new ArrayList<String>();
+        for (Entry e : mEntries.values()) {
+            if (!isFresh(e) && !e.refreshing) {
+                e.refreshing = true;
+                skus.add(e.sku);
+            }
+        }
+        return skus;
+    }
+
+    // All entries in memory, plus any in the snapshot that are not
+    synchronized HashMap<String, Entry> collectEntries()
+    {
+        HashMap<String, Entry> entries =
+            new HashMap<String, Entry>(2 * mEntries.size());
+        entries.putAll(mEntries);
+        if (null != mSnapshot) {
+            mSnapshot.collect(entries, now() - mTTLMS);
+        }
+        return entries;
+    }
+
+    // Returns true if the caller should start a refresh of 'e'.  At
+    // most one refresh per entry is in flight at a time.
+    synchronized boolean beginRefresh(Entry e)
+    {
+        if (e.refreshing) {
+            return false;
+        }
+        e.refreshing = true;
+        return true;
+    }
+
+    synchronized void endRefresh(final String sku)
+    {
+        Entry e = mEntries.get(sku);
+        if (null != e) {
+            e.refreshing = false;
+        }
+    }
+
+    void put(final String sku, final String title, final String description,
+             final String price)
+    {
+        put(new Entry(sku, title, description, price, now()));
+    }
+
+    synchronized void put(Entry e)
+    {
+        mEntries.put(e.sku, e);
+    }
+
+    synchronized void clear()
+    {
+        mEntries.clear();
+    }
+}
@@ -0,0 +1,349 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Single-pass extraction of the few fields we need from the JSON
+// returned by Google Play for purchases and SKU details, without
+// building a JSONObject tree.  Only top-level string values are
+// extracted.  Anything unexpected (malformed input, a wanted field
+// with a non-string value) falls back to JSONObject so behaviour
+// matches the old parsing exactly.
+class purchasejson
+{
+    // Output indices for parsePurchase
+    static final int PURCHASE_SKU = 0;
+    static final int PURCHASE_TOKEN = 1;
+    static final int PURCHASE_DEV_PAYLOAD = 2;
+    static final int PURCHASE_NUM_FIELDS = 3;
+
+    // Output indices for parseSkuDetails
+    static final int DETAILS_SKU = 0;
+    static final int DETAILS_TITLE = 1;
+    static final int DETAILS_DESCRIPTION = 2;
+    static final int DETAILS_PRICE = 3;
+    static final int DETAILS_NUM_FIELDS = 4;
+
+    static final String[] PURCHASE_KEYS =
+        { "productId", "token", "purchaseToken", "developerPayload" };
+    static final String[] DETAILS_KEYS =
+        { "productId", "title", "description", "price" };
+
+    // Per-thread scratch space for the raw purchase fields
+    static final ThreadLocal<String[]> sPurchaseScratch =
+        new ThreadLocal<String[]>() {
+            @Override protected String[] initialValue() {
+                return new String[PURCHASE_KEYS.length];
+            }
+        };
+
+    // Extract productId, token (or purchaseToken) and developerPayload
+    // from purchase data into 'out'.  Missing fields are returned as
+    // "" (as JSONObject.optString).  Returns false if 'json' is not a
+    // valid object.
+    static boolean parsePurchase(final String json, final String[] out)
+    {
+        final String[] raw = sPurchaseScratch.get();
+        if (extract(json, PURCHASE_KEYS, raw)) {
+            out[PURCHASE_SKU] = orEmpty(raw[0]);
+            out[PURCHASE_TOKEN] = (null != raw[1])?(raw[1]):(orEmpty(raw[2]));
+            out[PURCHASE_DEV_PAYLOAD] = orEmpty(raw[3]);
+            raw[0] = raw[1] = raw[2] = raw[3] = null;
+            return true;
+        }
+
+        try {
+            JSONObject o = new JSONObject(json);
+            out[PURCHASE_SKU] = o.optString("productId");
+            out[PURCHASE_TOKEN] =
+                o.optString("token", o.optString("purchaseToken"));
+            out[PURCHASE_DEV_PAYLOAD] = o.optString("developerPayload");
+            return true;
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    // Extract productId, title, description and price from SKU
+    // details into 'out'.  Returns false if 'json' is not a valid
+    // object or any field is missing (as JSONObject.getString).
+    static boolean parseSkuDetails(final String json, final String[] out)
+    {
+        if (extract(json, DETAILS_KEYS, out)) {
+            return (null != out[DETAILS_SKU] &&
+                    null != out[DETAILS_TITLE] &&
+                    null != out[DETAILS_DESCRIPTION] &&
+                    null != out[DETAILS_PRICE]);
+        }
+
+        try {
+            JSONObject o = new JSONObject(json);
+            out[DETAILS_SKU] = o.getString("productId");
+            out[DETAILS_TITLE] = o.getString("title");
+            out[DETAILS_DESCRIPTION] = o.getString("description");
+            out[DETAILS_PRICE] = o.getString("price");
+            return true;
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    static String orEmpty(final String s)
+    {
+        return (null == s)?(""):(s);
+    }
+
+    // ------------------------------------------------------------------
+    // Extractor
+    // ------------------------------------------------------------------
+
+    // Scan the top-level object in 'json' and set out[i] to the value
+    // of keys[i] (or null if absent).  Returns false if the input is
+    // malformed or a wanted key has a non-string value.
+    static boolean extract(final String json, final String[] keys,
+                           final String[] out)
+    {
+        for (int k = 0 ; k < keys.length ; ++k) {
+            out[k] = null;
+        }
+        if (null == json) {
+            return false;
+        }
+
+        final int end = json.length();
+        int i = skipWhitespace(json, 0, end);
+        if (i >= end || '{' != json.charAt(i)) {
+            return false;
+        }
+        i = skipWhitespace(json, i + 1, end);
+        if (i < end && '}' == json.charAt(i)) {
+            return skipWhitespace(json, i + 1, end) == end;
+        }
+
+        for (;;) {
+            // Key
+            if (i >= end || '"' != json.charAt(i)) {
+                return false;
+            }
+            final int keyStart = i + 1;
+            final int keyEnd = findStringEnd(json, keyStart, end);
+            if (keyEnd < 0) {
+                return false;
+            }
+            final int keyIdx = matchKey(json, keyStart, keyEnd, keys);
+
+            i = skipWhitespace(json, keyEnd + 1, end);
+            if (i >= end || ':' != json.charAt(i)) {
+                return false;
+            }
+            i = skipWhitespace(json, i + 1, end);
+            if (i >= end) {
+                return false;
+            }
+
+            // Value
+            if (keyIdx >= 0) {
+                if ('"' != json.charAt(i)) {
+                    return false;
+                }
+                final int valueEnd = findStringEnd(json, i + 1, end);
+                if (valueEnd < 0) {
+                    return false;
+                }
+                out[keyIdx] = decodeString(json, i + 1, valueEnd);
+                if (null == out[keyIdx]) {
+                    return false;
+                }
+                i = valueEnd + 1;
+            } else {
+                i = skipValue(json, i, end);
+                if (i < 0) {
+                    return false;
+                }
+            }
+
+            // Separator
+            i = skipWhitespace(json, i, end);
+            if (i >= end) {
+                return false;
+            }
+            final char c = json.charAt(i);
+            if ('}' == c) {
+                return skipWhitespace(json, i + 1, end) == end;
+            }
+            if (',' != c) {
+                return false;
+            }
+            i = skipWhitespace(json, i + 1, end);
+        }
+    }
+
+    static int skipWhitespace(final String json, int i, final int end)
+    {
+        while (i < end) {
+            final char c = json.charAt(i);
+            if (' ' != c && '\t' != c && '\n' != c && '\r' != c) {
+                break;
+            }
+            ++i;
+        }
+        return i;
+    }
+
+    // Index of the closing quote of a string whose contents start at
+    // 'i', or -1.
+    static int findStringEnd(final String json, int i, final int end)
+    {
+        while (i < end) {
+            final char c = json.charAt(i);
+            if ('"' == c) {
+                return i;
+            }
+            if ('\\' == c) {
+                ++i;
+            } else if (c < 0x20) {
+                return -1;
+            }
+            ++i;
+        }
+        return -1;
+    }
+
+    static int matchKey(final String json, final int start, final int end,
+                        final String[] keys)
+    {
+        final int length = end - start;
+        for (int k = 0 ; k < keys.length ; ++k) {
+            if (keys[k].length() == length &&
+                json.regionMatches(start, keys[k], 0, length)) {
+                return k;
+            }
+        }
+
+        // Keys containing escapes are rare enough to decode
+        if (indexOfEscape(json, start, end) >= 0) {
+            final String key = decodeString(json, start, end);
+            for (int k = 0 ; k < keys.length ; ++k) {
+                if (keys[k].equals(key)) {
+                    return k;
+                }
+            }
+        }
+        return -1;
+    }
+
+    static int indexOfEscape(final String json, final int start,
+                             final int end)
+    {
+        for (int i = start ; i < end ; ++i) {
+            if ('\\' == json.charAt(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Decode string contents [start, end).  Only allocates the result
+    // (plus a builder if there are escapes).  Returns null on a bad
+    // escape.
+    static String decodeString(final String json, final int start,
+                               final int end)
+    {
+        final int escape = indexOfEscape(json, start, end);
+        if (escape < 0) {
+            return json.substring(start, end);
+        }
+
+        StringBuilder sb = new StringBuilder(end - start);
+        sb.append(json, start, escape);
+        int i = escape;
+        while (i < end) {
+            char c = json.charAt(i++);
+            if ('\\' != c) {
+                sb.append(c);
+                continue;
+            }
+            if (i >= end) {
+                return null;
+            }
+            c = json.charAt(i++);
+            switch (c) {
+            case '"':  sb.append('"');  break;
+            case '\\': sb.append('\\'); break;
+            case '/':  sb.append('/');  break;
+            case 'b':  sb.append('\b'); break;
+            case 'f':  sb.append('\f'); break;
+            case 'n':  sb.append('\n'); break;
+            case 'r':  sb.append('\r'); break;
+            case 't':  sb.append('\t'); break;
+            case 'u':
+                if (i + 4 > end) {
+                    return null;
+                }
+                int code = 0;
+                for (int h = 0 ; h < 4 ; ++h) {
+                    final int digit = Character.digit(json.charAt(i++), 16);
+                    if (digit < 0) {
+                        return null;
+                    }
+                    code = (code << 4) | digit;
+                }
+                sb.append((char )code);
+                break;
+            default:
+                return null;
+            }
+        }
+        return sb.toString();
+    }
+
+    // Skip any JSON value starting at 'i'.  Returns the index after
+    // it, or -1.
+    static int skipValue(final String json, int i, final int end)
+    {
+        final char first = json.charAt(i);
+        if ('"' == first) {
+            final int stringEnd = findStringEnd(json, i + 1, end);
+            return (stringEnd < 0)?(-1):(stringEnd + 1);
+        }
+
+        if ('{' == first || '[' == first) {
+            int depth = 0;
+            while (i < end) {
+                final char c = json.charAt(i);
+                if ('"' == c) {
+                    final int stringEnd = findStringEnd(json, i + 1, end);
+                    if (stringEnd < 0) {
+                        return -1;
+                    }
+                    i = stringEnd + 1;
+                    continue;
+                }
+                if ('{' == c || '[' == c) {
+                    ++depth;
+                } else if ('}' == c || ']' == c) {
+                    if (0 == --depth) {
+                        return i + 1;
+                    }
+                }
+                ++i;
+            }
+            return -1;
+        }
+
+        // Number, true, false or null
+        final int start = i;
+        while (i < end) {
+            final char c = json.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') ||
+                  '-' == c || '+' == c || '.' == c || 'E' == c)) {
+                break;
+            }
+            ++i;
+        }
+        return (i == start)?(-1):(i);
+    }
+}
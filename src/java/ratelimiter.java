@@ -0,0 +1,214 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.concurrent.TimeUnit;
+
+// Limits the rate of calls into the billing service.  Each method
+// (indexed by billingmetrics.OP_*) has a token bucket.  A call that
+// finds its bucket empty waits for a token, or is refused if that
+// would take longer than sMaxWaitMS.
+//
+// Failures (RemoteExceptions, ERROR, SERVICE_UNAVAILABLE and
+// BILLING_UNAVAILABLE) feed a moving average per method.  While it
+// is above FAILURE_THRESHOLD, each failure halves the method's rate
+// (down to MIN_RATE_SCALE), and successes slowly restore it.
+//
+// After sOpenAfterFailures consecutive failures of any method the
+// circuit opens: every call is refused until the cooldown has passed.
+// Then a single probe call is let through.  If it succeeds the circuit
+// closes, otherwise it opens again with twice the cooldown.  The
+// Listener is told of every change, outside the lock.
+class ratelimiter
+{
+    interface Listener
+    {
+        // 'cooldownMS' is the time until a probe is allowed, if 'open'
+        void onCircuitChanged(boolean open, long cooldownMS);
+    }
+
+    // Configuration (see payment.setServiceCallRate and
+    // payment.configureCircuitBreaker).  A rate <= 0 means no limit.
+    static final int      NUM_OPS = billingmetrics.OP_CONSUME_PURCHASE + 1;
+    static final double[] sRatePerSec = { 2, 10, 10, 5, 10 };
+    static final double[] sBurst = { 4, 20, 20, 5, 20 };
+    static long           sMaxWaitMS = 1000;
+    static int            sOpenAfterFailures = 8;
+    static long           sBaseCooldownMS = 5000;
+    static long           sMaxCooldownMS = 5 * 60 * 1000;
+
+    static final double   FAILURE_EWMA_ALPHA = 0.2;
+    static final double   FAILURE_THRESHOLD = 0.5;
+    static final double   MIN_RATE_SCALE = 1.0 / 16;
+    static final double   RATE_SCALE_RECOVERY = 1.0 / 16;
+
+    static final int      CLOSED = 0;
+    static final int      OPEN = 1;
+    static final int      HALF_OPEN = 2;
+
+    final Listener        mListener;
+
+    // Guarded by this
+    final double[]        mTokens = new double[NUM_OPS];
+    final long[]          mLastRefillNS = new long[NUM_OPS];
+    final double[]        mFailureRate = new double[NUM_OPS];
+    final double[]        mRateScale = new double[NUM_OPS];
+    int                   mState = CLOSED;
+    int                   mConsecutiveFailures = 0;
+    long                  mCooldownMS = sBaseCooldownMS;
+    long                  mOpenUntilNS = 0;
+    boolean               mProbeInFlight = false;
+
+    ratelimiter(final Listener listener)
+    {
+        mListener = listener;
+        final long now = System.nanoTime();
+        for (int op = 0 ; op < NUM_OPS ; ++op) {
+            mTokens[op] = sBurst[op];
+            mLastRefillNS[op] = now;
+            mRateScale[op] = 1.0;
+        }
+    }
+
+    static boolean isFailure(final int response)
+    {
+        switch (response) {
+        case billingmetrics.RESPONSE_EXCEPTION:
+        case googlepayment.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE:
+        case googlepayment.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE:
+        case googlepayment.BILLING_RESPONSE_RESULT_ERROR:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    // Returns false if the call should not be made.  May block for up
+    // to sMaxWaitMS.
+    boolean acquire(final int op)
+    {
+        long waitNS;
+        synchronized (this) {
+            final long now = System.nanoTime();
+
+            if (OPEN == mState) {
+                if (now - mOpenUntilNS < 0) {
+                    billingmetrics.sRateLimitedCalls.incrementAndGet();
+                    return false;
+                }
+                mState = HALF_OPEN;
+                mProbeInFlight = false;
+            }
+            if (HALF_OPEN == mState) {
+                if (mProbeInFlight) {
+                    billingmetrics.sRateLimitedCalls.incrementAndGet();
+                    return false;
+                }
+                mProbeInFlight = true;
+                return true;
+            }
+
+            // No limit configured for this method
+            if (sRatePerSec[op] <= 0) {
+                return true;
+            }
+
+            final double rate = sRatePerSec[op] * mRateScale[op];
+            mTokens[op] = Math.min(sBurst[op], mTokens[op] +
+                                   (now - mLastRefillNS[op]) * rate / 1e9);
+            mLastRefillNS[op] = now;
+
+            if (mTokens[op] >= 1) {
+                mTokens[op] -= 1;
+                return true;
+            }
+
+            waitNS = (long )((1 - mTokens[op]) * 1e9 / rate);
+            if (waitNS > TimeUnit.MILLISECONDS.toNanos(sMaxWaitMS)) {
+                billingmetrics.sRateLimitedCalls.incrementAndGet();
+                return false;
+            }
+
+            // Take the token now, so later callers queue behind us
+            mTokens[op] -= 1;
+        }
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    // Report the result of a call allowed by acquire()
+    void onResult(final int op, final int response)
+    {
+        final boolean failed = isFailure(response);
+        boolean notify = false;
+        boolean open = false;
+        long cooldown = 0;
+
+        synchronized (this) {
+            mFailureRate[op] = mFailureRate[op] * (1 - FAILURE_EWMA_ALPHA) +
+                ((failed)?(FAILURE_EWMA_ALPHA):(0));
+
+            if (failed) {
+                if (mFailureRate[op] > FAILURE_THRESHOLD) {
+                    mRateScale[op] = Math.max(MIN_RATE_SCALE,
+                                              mRateScale[op] / 2);
+                }
+                ++mConsecutiveFailures;
+
+                if (HALF_OPEN == mState) {
+                    mCooldownMS = Math.min(sMaxCooldownMS, 2 * mCooldownMS);
+                    notify = open = true;
+                } else if (CLOSED == mState &&
+                           mConsecutiveFailures >= sOpenAfterFailures) {
+                    mCooldownMS = sBaseCooldownMS;
+                    notify = open = true;
+                }
+                if (open) {
+                    mState = OPEN;
+                    mOpenUntilNS = System.nanoTime() +
+                        TimeUnit.MILLISECONDS.toNanos(mCooldownMS);
+                    cooldown = mCooldownMS;
+                }
+            } else {
+                mConsecutiveFailures = 0;
+                if (mFailureRate[op] < FAILURE_THRESHOLD / 2) {
+                    mRateScale[op] = Math.min(1.0, mRateScale[op] +
+                                              RATE_SCALE_RECOVERY);
+                }
+                if (HALF_OPEN == mState) {
+                    mState = CLOSED;
+                    mCooldownMS = sBaseCooldownMS;
+                    notify = true;
+                }
+            }
+
+            if (HALF_OPEN != mState) {
+                mProbeInFlight = false;
+            }
+        }
+
+        if (!notify) {
+            return;
+        }
+        if (open) {
+            payment.BillingAgent._error("ratelimiter: circuit opened, " +
+                                        "probing in " + cooldown + "ms");
+        } else {
+            payment.BillingAgent._log("ratelimiter: circuit closed");
+        }
+        if (null != mListener) {
+            mListener.onCircuitChanged(open, cooldown);
+        }
+    }
+
+    synchronized boolean isOpen()
+    {
+        return CLOSED != mState;
+    }
+}
@@ -0,0 +1,385 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+// Requests made through the static entry points in payment (that is,
+// from native code) that have a deadline, or whose caller wants a
+// handle to cancel them with.  Each is given an id, which the agent
+// sees in place of the native context.  callbackqueue.deliver()
+// swaps the id back, and the first terminal callback claims the
+// request.  A request that times out or is cancelled is claimed at
+// that point and failed through its usual error callback, so
+// anything the agent sends for it afterwards is dropped, and native
+// code sees exactly one terminal callback per context.  Other
+// requests are not registered, and the agent is given the native
+// context itself.
+//
+// Ids are handed out in sequence, down from -1, so a context is an id
+// exactly when it lies between sLastId and -1 (see isId()).  Native
+// contexts are pointers, which are never that close to zero, even
+// when tagged.  Contexts handed to an agent directly (by benchmarks,
+// for example) must not be small negative numbers.
+//
+// Deadlines are kept in a hashed timer wheel.  The main thread is only
+// woken at the earliest pending deadline, not on every tick.
+class requesttracker
+{
+    static final int KIND_PRODUCT = 0;
+    static final int KIND_PRODUCTS = 1;
+    static final int KIND_PURCHASES = 2;
+    static final int KIND_PURCHASES_DELTA = 3;
+    static final int KIND_PURCHASE = 4;
+    static final int KIND_CONSUME = 5;
+
+    // The callback used to fail each kind of request
+    static final int[] ERROR_EVENTS = {
+        callbackqueue.PRODUCT_INFO,
+        callbackqueue.PRODUCTS_INFO,
+        callbackqueue.PURCHASE_INFO_ERROR,
+        callbackqueue.PURCHASE_DELTA,
+        callbackqueue.PURCHASE_FAILURE,
+        callbackqueue.CONSUME_RESULT,
+    };
+
+    // Returned by the entry points in payment for accepted requests
+    // that are not tracked.  Never an id, so doCancel() ignores it.
+    static final long UNTRACKED = 1;
+
+    static final long TICK_MS = 20;
+    // Must be a power of 2
+    static final int  NUM_SLOTS = 256;
+
+    static class Request
+    {
+        final long                  id;
+        final int                   kind;
+        final long                  context;
+        final payment.BillingAgent  agent;
+        // SKU, SKU array or purchase token, for the error callback
+        final Object                arg;
+
+        // Timer wheel.  Requests stay linked after being claimed,
+        // until their slot is next visited.
+        long                        deadlineTick;
+        Request                     nextInSlot;
+
+        Request(long id, int kind, long context, payment.BillingAgent agent,
+                Object arg)
+        {
+            this.id = id;
+            this.kind = kind;
+            this.context = context;
+            this.agent = agent;
+            this.arg = arg;
+        }
+    }
+
+    // Everything below is guarded by sLock
+    static final Object                  sLock = new Object();
+    static final HashMap<Long, Request>  sPending =
+        new HashMap<Long, Request>();
+    // Written under sLock, but read without it by isId()
+    static volatile long                 sLastId = 0;
+
+    static final Request[]               sSlots = new Request[NUM_SLOTS];
+    // Pending (unclaimed) requests with a deadline
+    static int                           sNumTimed = 0;
+    static long                          sLastTick = 0;
+    static boolean                       sTicking = false;
+    // The tick sTick is scheduled for, while sTicking
+    static long                          sNextTick = 0;
+    static Handler                       sTickHandler = null;
+
+    static final Runnable sTick = new Runnable() {
+            @Override public void run() {
+                tick();
+            }
+        };
+
+    // ------------------------------------------------------------------
+    // Registration
+    // ------------------------------------------------------------------
+
+    // Returns the context to pass to the agent: a new id if the
+    // request has a deadline ('timeoutMS' > 0) or 'cancellable' is
+    // set, and otherwise 'context' itself.
+    static long track(final int kind, final long context, final Object arg,
+                      final int timeoutMS, final boolean cancellable,
+                      final payment.BillingAgent agent)
+    {
+        if (timeoutMS <= 0 && !cancellable) {
+            return context;
+        }
+        return register(kind, context, arg, timeoutMS, agent);
+    }
+
+    // What the entry points in payment return once the agent has
+    // accepted the request it was given 'agentContext' for: the id,
+    // for doCancel, or just non-zero if the request is not tracked.
+    static long handle(final long agentContext)
+    {
+        return (isId(agentContext))?(agentContext):(UNTRACKED);
+    }
+
+    // Returns the id to pass to the agent.  'timeoutMS' <= 0 means no
+    // deadline.
+    static long register(final int kind, final long context, final Object arg,
+                         final int timeoutMS, final payment.BillingAgent agent)
+    {
+        synchronized (sLock) {
+            final long id = sLastId - 1;
+            sLastId = id;
+            final Request r = new Request(id, kind, context, agent, arg);
+            sPending.put(id, r);
+
+            if (timeoutMS > 0) {
+                final long now = SystemClock.uptimeMillis() / TICK_MS;
+                if (0 == sNumTimed) {
+                    sLastTick = now;
+                }
+                r.deadlineTick = now + 1 + (timeoutMS + TICK_MS - 1) / TICK_MS;
+                final int slot = (int )(r.deadlineTick & (NUM_SLOTS - 1));
+                r.nextInSlot = sSlots[slot];
+                sSlots[slot] = r;
+                ++sNumTimed;
+                scheduleTick(r.deadlineTick);
+            }
+            return id;
+        }
+    }
+
+    // The agent refused the request, so no callbacks will be made.
+    // 'agentContext' is as returned by track().
+    static void unregister(final long agentContext)
+    {
+        if (!isId(agentContext)) {
+            return;
+        }
+        synchronized (sLock) {
+            remove(agentContext);
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Delivery (callback thread)
+    // ------------------------------------------------------------------
+
+    // Whether a context given to an agent is a requesttracker id,
+    // rather than a native context.  Needs no lock.
+    static boolean isId(final long context)
+    {
+        return context < 0 && context >= sLastId;
+    }
+
+    // Claim the request for a terminal callback.  Returns the native
+    // context, or 0 if the request has already completed.
+    static long claim(final long id)
+    {
+        synchronized (sLock) {
+            final Request r = remove(id);
+            return (null == r)?(0):(r.context);
+        }
+    }
+
+    // The native context for a non-terminal callback, or 0 if the
+    // request has already completed.
+    static long peek(final long id)
+    {
+        synchronized (sLock) {
+            final Request r = sPending.get(id);
+            return (null == r)?(0):(r.context);
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Cancellation
+    // ------------------------------------------------------------------
+
+    // Returns false if the request has already completed
+    static boolean cancel(final long id, final String reason)
+    {
+        Request r;
+        synchronized (sLock) {
+            r = remove(id);
+        }
+        if (null == r) {
+            return false;
+        }
+        fail(r, reason);
+        return true;
+    }
+
+    // Cancel every request made to 'agent'
+    static void cancelAll(final String reason,
+                          final payment.BillingAgent agent)
+    {
+        ArrayList<Request> all = new ArrayList<Request>();
+        synchronized (sLock) {
+            for (Request r : sPending.values()) {
+                if (agent == r.agent) {
+                    all.add(r);
+                }
+            }
+            for (Request r : all) {
+                remove(r.id);
+            }
+        }
+        for (Request r : all) {
+            fail(r, reason);
+        }
+    }
+
+    static int pendingCount()
+    {
+        synchronized (sLock) {
+            return sPending.size();
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Internal
+    // ------------------------------------------------------------------
+
+    static Request remove(final long id)
+    {
+        final Request r = sPending.remove(id);
+        if (null != r && 0 != r.deadlineTick && 0 == --sNumTimed) {
+            clearWheel();
+        }
+        return r;
+    }
+
+    static void clearWheel()
+    {
+        Arrays.fill(sSlots, null);
+        sNumTimed = 0;
+        if (sTicking) {
+            sTickHandler.removeCallbacks(sTick);
+            sTicking = false;
+        }
+    }
+
+    // Make sure sTick runs by 'deadlineTick'
+    static void scheduleTick(final long deadlineTick)
+    {
+        if (sTicking) {
+            if (sNextTick <= deadlineTick) {
+                return;
+            }
+            sTickHandler.removeCallbacks(sTick);
+        }
+        if (null == sTickHandler) {
+            sTickHandler = new Handler(Looper.getMainLooper());
+        }
+        sTicking = true;
+        sNextTick = deadlineTick;
+        final long delayMS =
+            deadlineTick * TICK_MS - SystemClock.uptimeMillis();
+        sTickHandler.postDelayed(sTick, Math.max(0, delayMS));
+    }
+
+    // The earliest deadline of any pending request in the wheel
+    static long earliestDeadline()
+    {
+        long earliest = Long.MAX_VALUE;
+        for (Request head : sSlots) {
+            for (Request r = head ; null != r ; r = r.nextInSlot) {
+                if (r.deadlineTick < earliest && r == sPending.get(r.id)) {
+                    earliest = r.deadlineTick;
+                }
+            }
+        }
+        return earliest;
+    }
+
+    static void tick()
+    {
+        ArrayList<Request> expired = null;
+
+        synchronized (sLock) {
+            final long now = SystemClock.uptimeMillis() / TICK_MS;
+
+            // If we are more than a full turn behind, one pass over
+            // every slot covers it.
+            long t = Math.max(sLastTick + 1, now - NUM_SLOTS + 1);
+            for ( ; t <= now && 0 != sNumTimed ; ++t) {
+                final int slot = (int )(t & (NUM_SLOTS - 1));
+                Request prev = null;
+                Request r = sSlots[slot];
+                while (null != r) {
+                    final Request next = r.nextInSlot;
+                    final boolean pending = (r == sPending.get(r.id));
+                    if (!pending || r.deadlineTick <= now) {
+                        if (null == prev) {
+                            sSlots[slot] = next;
+                        } else {
+                            prev.nextInSlot = next;
+                        }
+                        r.nextInSlot = null;
+                        if (pending) {
+                            remove(r.id);
+                            if (null == expired) {
+                                expired = new ArrayList<Request>();
+                            }
+                            expired.add(r);
+                        }
+                    } else {
+                        prev = r;
+                    }
+                    r = next;
+                }
+            }
+            sLastTick = now;
+
+            sTicking = false;
+            if (0 != sNumTimed) {
+                scheduleTick(earliestDeadline());
+            }
+        }
+
+        if (null != expired) {
+            for (Request r : expired) {
+                fail(r, "request timed out");
+            }
+        }
+    }
+
+    // Make the request's error callback, straight to its native
+    // context.
+    static void fail(final Request r, final String reason)
+    {
+        payment.BillingAgent._error("request " + r.id + " failed: " + reason);
+
+        callbackqueue.Event e =
+            r.agent.newEvent(ERROR_EVENTS[r.kind], r.context);
+        e.resolved = true;
+        switch (r.kind) {
+        // Product queries fail by returning no details
+        case KIND_PRODUCT:
+            e.str[0] = (String )r.arg;
+            break;
+        case KIND_PRODUCTS:
+            e.arr[0] = (String[] )r.arg;
+            break;
+        case KIND_CONSUME:
+            e.str[0] = (String )r.arg;
+            e.str[1] = reason;
+            e.flag = false;
+            break;
+        default:
+            e.str[0] = reason;
+            break;
+        }
+        r.agent.dispatch(e);
+        r.agent.requestAbandoned(r.kind, r.id);
+    }
+}
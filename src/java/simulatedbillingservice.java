@@ -0,0 +1,427 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.RemoteException;
+import com.android.vending.billing.IInAppBillingService;
+
+// In-process stand-in for the Play Store billing service, with
+// configurable latency, catalog, owned items, paging and injected
+// failures.  Used by simulatorpayment for load and fault testing
+// (including on a plain JVM).  Thread safe.
+public class simulatedbillingservice extends IInAppBillingService.Stub
+{
+    // ------------------------------------------------------------------
+    // Latency
+    // ------------------------------------------------------------------
+
+    public static abstract class Latency
+    {
+        abstract long sampleNanos(Random random);
+
+        public static Latency none()
+        {
+            return constant(0);
+        }
+
+        public static Latency constant(final double ms)
+        {
+            return new Latency() {
+                @Override long sampleNanos(Random random) {
+                    return (long )(ms * 1000000);
+                }
+            };
+        }
+
+        public static Latency uniform(final double minMS, final double maxMS)
+        {
+            return new Latency() {
+                @Override long sampleNanos(Random random) {
+                    return (long )((minMS + random.nextDouble() *
+                                    (maxMS - minMS)) * 1000000);
+                }
+            };
+        }
+
+        // Long-tailed, as binder calls into the Play Store tend to be.
+        // Samples are capped at 'maxMS'.
+        public static Latency logNormal(final double medianMS,
+                                        final double sigma,
+                                        final double maxMS)
+        {
+            return new Latency() {
+                @Override long sampleNanos(Random random) {
+                    final double ms =
+                        medianMS * Math.exp(sigma * random.nextGaussian());
+                    return (long )(Math.min(ms, maxMS) * 1000000);
+                }
+            };
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Configuration
+    // ------------------------------------------------------------------
+
+    public static class Config
+    {
+        public int     catalogSize = 100;
+        public int     ownedCount = 10;
+        // Items per getPurchases page, before a continuation token
+        public int     pageSize = 100;
+
+        public Latency isBillingSupportedLatency = Latency.constant(5);
+        public Latency getSkuDetailsLatency = Latency.logNormal(60, 0.5, 2000);
+        public Latency getPurchasesLatency = Latency.logNormal(30, 0.5, 2000);
+        public Latency getBuyIntentLatency = Latency.logNormal(20, 0.5, 1000);
+        public Latency consumePurchaseLatency =
+            Latency.logNormal(150, 0.5, 3000);
+        // Time the user spends in the purchase UI
+        public Latency purchaseFlowLatency = Latency.uniform(500, 3000);
+
+        // failureRates[code] is the probability (0..1) that a call
+        // fails with BILLING_RESPONSE_RESULT_<code> (index 0 is
+        // ignored).  Applies to every method.
+        public final double[] failureRates =
+            new double[billingmetrics.NUM_RESPONSE_CODES];
+        // Probability that a call throws RemoteException
+        public double  remoteExceptionRate = 0;
+        // Probability that the user cancels the purchase UI
+        public double  userCancelRate = 0;
+
+        public long    seed = 1;
+
+        public Config setFailureRate(int responseCode, double rate)
+        {
+            failureRates[responseCode] = rate;
+            return this;
+        }
+    }
+
+    // ------------------------------------------------------------------
+
+    final Config                          mConfig;
+    final String[]                        mSkus;
+    final HashMap<String, String>         mDetails;
+
+    // Owned items by purchase token.  Guarded by itself.
+    final LinkedHashMap<String, String[]> mOwned =
+        new LinkedHashMap<String, String[]>();
+    final AtomicLong                      mNextOrder = new AtomicLong(0);
+
+    // Counts by outcome
+    final AtomicLong                      mCalls = new AtomicLong(0);
+    final AtomicLong                      mInjectedFailures = new AtomicLong(0);
+
+    final AtomicInteger                   mThreadSeed = new AtomicInteger(0);
+    final ThreadLocal<Random>             mRandom = new ThreadLocal<Random>() {
+            @Override protected Random initialValue() {
+                return new Random(mConfig.seed * 31 +
+                                  mThreadSeed.getAndIncrement());
+            }
+        };
+
+    public simulatedbillingservice(Config config)
+    {
+        mConfig = config;
+
+        mSkus = new String[config.catalogSize];
+        mDetails = new HashMap<String, String>(2 * config.catalogSize);
+        for (int i = 0 ; i < config.catalogSize ; ++i) {
+            mSkus[i] = skuName(i);
+            mDetails.put(mSkus[i], skuDetailsJSON(mSkus[i], i));
+        }
+
+        final int owned = Math.min(config.ownedCount, config.catalogSize);
+        for (int i = 0 ; i < owned ; ++i) {
+            addOwned(mSkus[i], "");
+        }
+    }
+
+    public String[] getSkus()
+    {
+        return mSkus;
+    }
+
+    public int getOwnedCount()
+    {
+        synchronized (mOwned) {
+            return mOwned.size();
+        }
+    }
+
+    public long getCallCount()
+    {
+        return mCalls.get();
+    }
+
+    public long getInjectedFailureCount()
+    {
+        return mInjectedFailures.get();
+    }
+
+    static String skuName(int i)
+    {
+        return "com.turbulenz.sim.sku_" + i;
+    }
+
+    static String skuDetailsJSON(String sku, int i)
+    {
+        return "{\"productId\":\"" + sku + "\",\"type\":\"inapp\"," +
+            "\"price\":\"$" + (i % 100) + ".99\"," +
+            "\"price_amount_micros\":" + ((i % 100) * 1000000L + 990000) +
+            ",\"price_currency_code\":\"USD\"," +
+            "\"title\":\"Simulated item " + i + "\"," +
+            "\"description\":\"Simulated item " + i + "\"}";
+    }
+
+    // Returns { sku, data, signature } for a new owned item
+    String[] addOwned(final String sku, final String devPayload)
+    {
+        final long order = mNextOrder.getAndIncrement();
+        final String token = "sim-token-" + order;
+        final String data = "{\"orderId\":\"sim." + order + "\"," +
+            "\"packageName\":\"com.turbulenz.sim\"," +
+            "\"productId\":\"" + sku + "\"," +
+            "\"purchaseTime\":" + System.currentTimeMillis() + "," +
+            "\"purchaseState\":0," +
+            "\"developerPayload\":\"" + devPayload + "\"," +
+            "\"purchaseToken\":\"" + token + "\"}";
+        final String[] item = new String[] { sku, data, "sim-signature" };
+        synchronized (mOwned) {
+            mOwned.put(token, item);
+        }
+        return item;
+    }
+
+    boolean isOwned(final String sku)
+    {
+        synchronized (mOwned) {
+            for (String[] item : mOwned.values()) {
+                if (item[0].equals(sku)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Sleep for the configured latency, then return an injected
+    // failure code (or OK).
+    int simulateCall(final Latency latency) throws RemoteException
+    {
+        mCalls.incrementAndGet();
+        final Random random = mRandom.get();
+
+        final long nanos = latency.sampleNanos(random);
+        if (nanos > 0) {
+            try {
+                Thread.sleep(nanos / 1000000, (int )(nanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("interrupted");
+            }
+        }
+
+        double r = random.nextDouble();
+        if (r < mConfig.remoteExceptionRate) {
+            mInjectedFailures.incrementAndGet();
+            throw new RemoteException("simulated failure");
+        }
+        r -= mConfig.remoteExceptionRate;
+
+        final double[] rates = mConfig.failureRates;
+        for (int code = 1 ; code < rates.length ; ++code) {
+            if (r < rates[code]) {
+                mInjectedFailures.incrementAndGet();
+                return code;
+            }
+            r -= rates[code];
+        }
+        return googlepayment.BILLING_RESPONSE_RESULT_OK;
+    }
+
+    static Bundle response(final int code)
+    {
+        Bundle b = new Bundle();
+        b.putInt(googlepayment.RESPONSE_CODE, code);
+        return b;
+    }
+
+    // ------------------------------------------------------------------
+    // Purchase UI
+    // ------------------------------------------------------------------
+
+    // How long the user spends in the purchase UI
+    long purchaseFlowDelayMS()
+    {
+        return mConfig.purchaseFlowLatency.sampleNanos(mRandom.get()) / 1000000;
+    }
+
+    // The Intent the purchase UI would return for a buy intent from
+    // getBuyIntent.  Returns null if the user cancelled.
+    Intent purchaseFlowResult(final String sku, final String devPayload)
+    {
+        if (mRandom.get().nextDouble() < mConfig.userCancelRate) {
+            return null;
+        }
+
+        final String[] item = addOwned(sku, (null == devPayload)?
+                                       (""):(devPayload));
+        Intent data = new Intent();
+        data.putExtra(googlepayment.RESPONSE_CODE,
+                      googlepayment.BILLING_RESPONSE_RESULT_OK);
+        data.putExtra(googlepayment.RESPONSE_INAPP_PURCHASE_DATA, item[1]);
+        data.putExtra(googlepayment.RESPONSE_INAPP_SIGNATURE, item[2]);
+        return data;
+    }
+
+    // ------------------------------------------------------------------
+    // IInAppBillingService
+    // ------------------------------------------------------------------
+
+    @Override
+    public int isBillingSupported(int apiVersion, String packageName,
+                                  String type)
+        throws RemoteException
+    {
+        return simulateCall(mConfig.isBillingSupportedLatency);
+    }
+
+    @Override
+    public Bundle getSkuDetails(int apiVersion, String packageName,
+                                String type, Bundle skusBundle)
+        throws RemoteException
+    {
+        final int code = simulateCall(mConfig.getSkuDetailsLatency);
+        if (googlepayment.BILLING_RESPONSE_RESULT_OK != code) {
+            return response(code);
+        }
+
+        ArrayList<String> skus = skusBundle.getStringArrayList("ITEM_ID_LIST");
+        if (null == skus || skus.size() > googlepayment.MAX_SKUS_PER_QUERY) {
+            return response
+                (googlepayment.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR);
+        }
+
+        ArrayList<String> details = new ArrayList<String>(skus.size());
+        for (String sku : skus) {
+            final String d = mDetails.get(sku);
+            if (null != d) {
+                details.add(d);
+            }
+        }
+
+        Bundle b = response(googlepayment.BILLING_RESPONSE_RESULT_OK);
+        b.putStringArrayList(googlepayment.RESPONSE_GET_SKU_DETAILS_LIST,
+                             details);
+        return b;
+    }
+
+    @Override
+    public Bundle getBuyIntent(int apiVersion, String packageName, String sku,
+                               String type, String developerPayload)
+        throws RemoteException
+    {
+        final int code = simulateCall(mConfig.getBuyIntentLatency);
+        if (googlepayment.BILLING_RESPONSE_RESULT_OK != code) {
+            return response(code);
+        }
+        if (!mDetails.containsKey(sku)) {
+            return response
+                (googlepayment.BILLING_RESPONSE_RESULT_ITEM_UNAVAILABLE);
+        }
+        if (isOwned(sku)) {
+            return response
+                (googlepayment.BILLING_RESPONSE_RESULT_ITEM_ALREADY_OWNED);
+        }
+
+        // There is no real purchase UI to launch.  simulatorpayment
+        // completes the flow with purchaseFlowResult instead.
+        return response(googlepayment.BILLING_RESPONSE_RESULT_OK);
+    }
+
+    // Continuation tokens are offsets into a snapshot of the owned
+    // items, so consumes during a pagination can skip or repeat items
+    // (as with the real service).
+    @Override
+    public Bundle getPurchases(int apiVersion, String packageName,
+                               String type, String continuationToken)
+        throws RemoteException
+    {
+        final int code = simulateCall(mConfig.getPurchasesLatency);
+        if (googlepayment.BILLING_RESPONSE_RESULT_OK != code) {
+            return response(code);
+        }
+
+        int start = 0;
+        if (null != continuationToken) {
+            try {
+                start = Integer.parseInt(continuationToken);
+            } catch (NumberFormatException e) {
+                return response
+                    (googlepayment.BILLING_RESPONSE_RESULT_DEVELOPER_ERROR);
+            }
+        }
+
+        ArrayList<String> skus = new ArrayList<String>();
+        ArrayList<String> data = new ArrayList<String>();
+        ArrayList<String> sigs = new ArrayList<String>();
+        int total;
+        synchronized (mOwned) {
+            total = mOwned.size();
+            int idx = 0;
+            for (String[] item : mOwned.values()) {
+                if (idx >= start + mConfig.pageSize) {
+                    break;
+                }
+                if (idx++ >= start) {
+                    skus.add(item[0]);
+                    data.add(item[1]);
+                    sigs.add(item[2]);
+                }
+            }
+        }
+
+        Bundle b = response(googlepayment.BILLING_RESPONSE_RESULT_OK);
+        b.putStringArrayList(googlepayment.RESPONSE_INAPP_ITEM_LIST, skus);
+        b.putStringArrayList(googlepayment.RESPONSE_INAPP_PURCHASE_DATA_LIST,
+                             data);
+        b.putStringArrayList(googlepayment.RESPONSE_INAPP_SIGNATURE_LIST,
+                             sigs);
+        final int end = start + skus.size();
+        if (end < total) {
+            b.putString(googlepayment.INAPP_CONTINUATION_TOKEN,
+                        Integer.toString(end));
+        }
+        return b;
+    }
+
+    @Override
+    public int consumePurchase(int apiVersion, String packageName,
+                               String purchaseToken)
+        throws RemoteException
+    {
+        final int code = simulateCall(mConfig.consumePurchaseLatency);
+        if (googlepayment.BILLING_RESPONSE_RESULT_OK != code) {
+            return code;
+        }
+
+        synchronized (mOwned) {
+            if (null == mOwned.remove(purchaseToken)) {
+                return googlepayment.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED;
+            }
+        }
+        return googlepayment.BILLING_RESPONSE_RESULT_OK;
+    }
+}
@@ -0,0 +1,69 @@
+// Copyright (c) 2013 Turbulenz Limited
+// See LICENSE for full license text.
+
+package com.turbulenz.turbulenz;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.Intent;
+
+// googlepayment connected to a simulatedbillingservice instead of the
+// Play Store, for load and fault testing.  Everything except the
+// purchase UI goes through the normal googlepayment code.  Install
+// with:
+//
+//   payment.initialize(activity, requestCode, handler,
+//                      new simulatorpayment(activity, requestCode,
+//                                           new simulatedbillingservice
+//                                           (config)));
+//
+// Purchases are not signed, so leave the public key unset.
+public class simulatorpayment extends googlepayment
+{
+    final simulatedbillingservice mSimService;
+
+    public simulatorpayment(Activity activity, int purchaseRequestCode,
+                            simulatedbillingservice service)
+    {
+        super(activity, purchaseRequestCode, service);
+        mSimService = service;
+    }
+
+    public simulatedbillingservice getService()
+    {
+        return mSimService;
+    }
+
+    // Complete the purchase after the simulated time in the UI, as if
+    // the activity had received the result.
+    @Override
+    void launchBuyIntent(final PurchaseRequest req,
+                         final PendingIntent pendingIntent)
+    {
+        mMainHandler.postDelayed(new Runnable() {
+                @Override public void run() {
+                    final Intent data =
+                        mSimService.purchaseFlowResult(req.sku,
+                                                       req.devPayload);
+                    handleActivityResult(mPurchaseRequestCode,
+                                         (null == data)?
+                                         (Activity.RESULT_CANCELED):
+                                         (Activity.RESULT_OK),
+                                         data);
+                }
+            }, mSimService.purchaseFlowDelayMS());
+    }
+
+    // Drop the service connection, as if the Play Store process had
+    // died.  The agent reconnects as it would on a device.
+    public void simulateDisconnect()
+    {
+        mMainHandler.post(new Runnable() {
+                @Override public void run() {
+                    if (null != mServiceConnection) {
+                        mServiceConnection.onServiceDisconnected(null);
+                    }
+                }
+            });
+    }
+}